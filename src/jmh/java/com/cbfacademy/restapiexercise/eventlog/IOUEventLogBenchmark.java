@@ -0,0 +1,118 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.util.unit.DataSize;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+
+// Append throughput of the IOU event log (outside a transaction, so this is the encode plus write() cost and not an fsync),
+// and the time to replay a whole log of 10M events - the part of a rebuild that doesn't touch the database. The replay log
+// is written to target/jmh-event-log once and reused, like the tables in IOUValueQueryBenchmark.
+@Fork(1)
+public class IOUEventLogBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class AppendState {
+
+        private Path directory;
+        IOUEventLog eventLog;
+        IOU iou;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("iou-event-log");
+            eventLog = new IOUEventLog(directory, DataSize.ofMegabytes(64));
+            iou = newIOU(new SplittableRandom(42), 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            eventLog.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ReplayState {
+
+        @Param({ "10000000" })
+        int events;
+
+        IOUEventLog eventLog;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            eventLog = new IOUEventLog(Path.of("target/jmh-event-log/events-" + events), DataSize.ofMegabytes(64));
+            SplittableRandom random = new SplittableRandom(42);
+            for (long i = eventLog.lastSequence(); i < events; i++) { // Tops up whatever an earlier run left behind
+                eventLog.append(IOUEvent.Type.CREATED, newIOU(random, (int) i));
+            }
+            eventLog.sync();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            eventLog.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public IOUEvent append(AppendState state) {
+        return state.eventLog.append(IOUEvent.Type.UPDATED, state.iou);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public long replay(ReplayState state, Blackhole blackhole) {
+        long[] read = { 0 };
+        state.eventLog.read(1, event -> {
+            blackhole.consume(event);
+            read[0]++;
+            return true;
+        });
+        return read[0];
+    }
+
+    private static IOU newIOU(SplittableRandom random, int i) {
+        IOU iou = new IOU("borrower-" + random.nextInt(10_000), "lender-" + random.nextInt(10_000),
+                BigDecimal.valueOf(random.nextLong(1, 1_000_001), 2), Instant.parse("2024-01-01T00:00:00Z").plusSeconds(i));
+        iou.setId(UUID.randomUUID());
+        iou.setVersion(0L);
+        return iou;
+    }
+}
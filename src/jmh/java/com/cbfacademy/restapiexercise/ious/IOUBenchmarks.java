@@ -0,0 +1,70 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.cbfacademy.restapiexercise.RestApiExerciseApplication;
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.UuidV7Generator;
+
+// Shared setup for the IOU benchmarks: booting the application without a web server and generating IOU data
+final class IOUBenchmarks {
+
+    static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+    private IOUBenchmarks() {
+    }
+
+    // Starts the full application context (services, repositories, caches, listeners) against the database in args,
+    // or the in-memory H2 database from the test configuration when there are none
+    static ConfigurableApplicationContext start(String... args) {
+        List<String> all = new ArrayList<>(List.of(args));
+        all.add("--logging.level.root=WARN");
+        all.add("--logging.level.org.springframework=WARN");
+        all.add("--ious.aggregate.reconcile-interval=PT24H");
+        return new SpringApplicationBuilder(RestApiExerciseApplication.class)
+                .web(WebApplicationType.NONE)
+                .run(all.toArray(String[]::new));
+    }
+
+    // Same, but with the embedded web server on a random port, for benchmarks that go through HTTP
+    static ConfigurableApplicationContext startServer(String... args) {
+        List<String> all = new ArrayList<>(List.of(args));
+        all.add("--server.port=0");
+        all.add("--logging.level.root=WARN");
+        all.add("--logging.level.org.springframework=WARN");
+        all.add("--ious.aggregate.reconcile-interval=PT24H");
+        return new SpringApplicationBuilder(RestApiExerciseApplication.class)
+                .web(WebApplicationType.SERVLET)
+                .run(all.toArray(String[]::new));
+    }
+
+    static IOU newIOU(SplittableRandom random, int i) { // Amounts are spread evenly between 0.01 and 10,000.00
+        return new IOU("borrower-" + random.nextInt(10_000), "lender-" + random.nextInt(10_000),
+                BigDecimal.valueOf(random.nextLong(1, 1_000_001), 2), START.plusSeconds(i));
+    }
+
+    // Tops the ious table up to the given number of rows with plain JDBC batches - saving millions of rows through JPA would take far longer than the benchmark
+    static void seed(JdbcTemplate jdbcTemplate, int rows) {
+        Integer existing = jdbcTemplate.queryForObject("select count(*) from ious", Integer.class);
+        SplittableRandom random = new SplittableRandom(42);
+        List<Object[]> batch = new ArrayList<>();
+        for (int i = existing == null ? 0 : existing; i < rows; i++) {
+            IOU iou = newIOU(random, i);
+            batch.add(new Object[] { UuidV7Generator.next(), iou.getBorrower(), iou.getLender(), iou.getAmount(), Timestamp.from(iou.getDateTime()) });
+            if (batch.size() == 10_000 || i == rows - 1) {
+                jdbcTemplate.batchUpdate("insert into ious (id, borrower, lender, amount, date_time, version) values (?, ?, ?, ?, ?, 0)", batch);
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+// GET /api/ious?limit=500 over HTTP from 16 clients sharing a 4-connection pool, with open-session-in-view on and off. With it on,
+// each request keeps its connection until the 500-IOU response has been serialized and written; with it off, only for the query.
+// Besides throughput, the mean time a connection was held and the mean wait for one are printed at the end of each iteration
+// (from Hikari's hikaricp.connections.usage and .acquire timers).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(16)
+@Fork(1)
+public class IOUConnectionHoldBenchmark {
+
+    private static final int ROWS = 10_000;
+
+    @Param({ "true", "false" })
+    private boolean openInView;
+
+    private ConfigurableApplicationContext context;
+    private HttpClient http;
+    private HttpRequest page;
+    private MeterRegistry meterRegistry;
+    private long usageCount; // Timer totals at the start of the iteration, so each printout covers just that iteration
+    private double usageMillis;
+    private long acquireCount;
+    private double acquireMillis;
+
+    @Setup
+    public void setUp() {
+        context = IOUBenchmarks.startServer(
+                "--spring.jpa.open-in-view=" + openInView,
+                "--spring.datasource.hikari.maximum-pool-size=4",
+                "--spring.cache.type=none");
+        IOUBenchmarks.seed(context.getBean(JdbcTemplate.class), ROWS);
+        meterRegistry = context.getBean(MeterRegistry.class);
+        http = HttpClient.newHttpClient();
+        String port = context.getEnvironment().getProperty("local.server.port");
+        page = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/ious?limit=500")).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        usageCount = timer("hikaricp.connections.usage").count();
+        usageMillis = timer("hikaricp.connections.usage").totalTime(TimeUnit.MILLISECONDS);
+        acquireCount = timer("hikaricp.connections.acquire").count();
+        acquireMillis = timer("hikaricp.connections.acquire").totalTime(TimeUnit.MILLISECONDS);
+    }
+
+    @TearDown(Level.Iteration)
+    public void printPoolUse() {
+        Timer usage = timer("hikaricp.connections.usage");
+        Timer acquire = timer("hikaricp.connections.acquire");
+        System.out.printf("%n  open-in-view=%s: connection held %.3f ms, waited for %.3f ms on average%n", openInView,
+                (usage.totalTime(TimeUnit.MILLISECONDS) - usageMillis) / Math.max(1, usage.count() - usageCount),
+                (acquire.totalTime(TimeUnit.MILLISECONDS) - acquireMillis) / Math.max(1, acquire.count() - acquireCount));
+    }
+
+    @Benchmark
+    public int getPage() throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = http.send(page, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("GET /api/ious returned " + response.statusCode());
+        }
+        return response.body().length;
+    }
+
+    private Timer timer(String name) {
+        return meterRegistry.get(name).timer();
+    }
+}
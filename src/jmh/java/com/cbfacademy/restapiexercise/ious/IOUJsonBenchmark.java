@@ -0,0 +1,85 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+// Jackson round trips of the IOU body, where the BigDecimal amount and the Instant dateTime are the expensive fields.
+// One IOU is a POST/PUT body or GET /id response, a list of 100 is a page from GET /api/ious.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IOUJsonBenchmark {
+
+    private ObjectWriter iouWriter;
+    private ObjectReader iouReader;
+    private ObjectWriter pageWriter;
+    private ObjectReader pageReader;
+
+    private IOU iou;
+    private List<IOU> page;
+    private String iouJson;
+    private String pageJson;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build(); // Same defaults Spring Boot gives the controllers: ISO-8601 Instants, JavaTimeModule registered
+        JavaType listOfIOUs = objectMapper.getTypeFactory().constructCollectionType(List.class, IOU.class);
+        iouWriter = objectMapper.writerFor(IOU.class);
+        iouReader = objectMapper.readerFor(IOU.class);
+        pageWriter = objectMapper.writerFor(listOfIOUs);
+        pageReader = objectMapper.readerFor(listOfIOUs);
+
+        SplittableRandom random = new SplittableRandom(42);
+        page = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            page.add(IOUBenchmarks.newIOU(random, i));
+        }
+        iou = page.get(0);
+        iouJson = iouWriter.writeValueAsString(iou);
+        pageJson = pageWriter.writeValueAsString(page);
+    }
+
+    @Benchmark
+    public String serializeIOU() throws JsonProcessingException {
+        return iouWriter.writeValueAsString(iou);
+    }
+
+    @Benchmark
+    public IOU deserializeIOU() throws JsonProcessingException {
+        return iouReader.readValue(iouJson);
+    }
+
+    @Benchmark
+    public String serializePage() throws JsonProcessingException {
+        return pageWriter.writeValueAsString(page);
+    }
+
+    @Benchmark
+    public List<IOU> deserializePage() throws JsonProcessingException {
+        return pageReader.readValue(pageJson);
+    }
+}
@@ -0,0 +1,98 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUPage;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+// IOUService reads and writes through the whole Spring/JPA stack against an in-memory H2 database holding 10k IOUs.
+// getIOU goes to the database every time (the cache is turned off) so this measures the JPA path rather than Caffeine.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IOUServiceBenchmark {
+
+    private static final int ROWS = 10_000;
+
+    private ConfigurableApplicationContext context;
+    private IOUService iouService;
+    private List<UUID> ids;
+    private SplittableRandom random;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        context = IOUBenchmarks.start("--spring.cache.type=none");
+        IOUBenchmarks.seed(context.getBean(JdbcTemplate.class), ROWS);
+        iouService = context.getBean(IOUService.class);
+        ids = context.getBean(IOURepository.class).findAll().stream().map(IOU::getId).toList();
+        random = new SplittableRandom(7);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @TearDown(Level.Iteration)
+    public void trimTable() { // Keeps createIOU from growing the table across iterations
+        context.getBean(JdbcTemplate.class).update("delete from ious where date_time > ?", Timestamp.from(IOUBenchmarks.START.plusSeconds(ROWS)));
+    }
+
+    @Benchmark
+    public IOU getIOU() {
+        return iouService.getIOU(randomId()).orElseThrow();
+    }
+
+    @Benchmark
+    public IOUPage getFirstPage() {
+        return iouService.getIOUPage(null, 100);
+    }
+
+    @Benchmark
+    public List<IOU> getIOUsByBorrower() {
+        return iouService.getIOUsByBorrower("borrower-" + random.nextInt(10_000));
+    }
+
+    @Benchmark
+    public void createIOU() {
+        IOU iou = IOUBenchmarks.newIOU(random, ROWS + 1 + next++);
+        iouService.createIOU(iou);
+    }
+
+    @Benchmark
+    public IOU updateIOU() {
+        UUID id = randomId();
+        IOU changed = IOUBenchmarks.newIOU(random, random.nextInt(ROWS));
+        iouService.updateIOU(id, changed);
+        return changed;
+    }
+
+    private UUID randomId() {
+        return ids.get(random.nextInt(ids.size()));
+    }
+}
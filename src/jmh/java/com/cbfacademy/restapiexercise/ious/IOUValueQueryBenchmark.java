@@ -0,0 +1,73 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUReadModel;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+// GET /high and /low at three table sizes. Each returns roughly half the table, so this tracks how the result materialisation
+// scales as much as the query itself. The tables live in H2 files under target/jmh-db and are only seeded once, since
+// generating 10M rows takes minutes. The 10M case needs a bigger heap than the default, e.g. -jvmArgsAppend -Xmx12g.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class IOUValueQueryBenchmark {
+
+    @Param({ "10000", "1000000", "10000000" })
+    private int rows;
+
+    @Param({ "false", "true" }) // Whether the queries are answered by the in-memory IOUReadModel instead of the database
+    private boolean readModel;
+
+    private ConfigurableApplicationContext context;
+    private IOUService iouService;
+
+    @Setup
+    public void setUp() {
+        context = IOUBenchmarks.start(
+                "--spring.datasource.url=jdbc:h2:file:./target/jmh-db/ious-" + rows + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE",
+                "--spring.jpa.hibernate.ddl-auto=update", // Keep the rows from a previous run
+                "--ious.read-model.enabled=" + readModel);
+        IOUBenchmarks.seed(context.getBean(JdbcTemplate.class), rows);
+        if (readModel) {
+            context.getBean(IOUReadModel.class).load(); // Loaded at startup, before the seeding
+        }
+        iouService = context.getBean(IOUService.class);
+        iouService.getHighValueIOUs(); // Loads the running average, so the measured calls only run the range query
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<IOU> highValueIOUs() {
+        return iouService.getHighValueIOUs();
+    }
+
+    @Benchmark
+    public List<IOU> belowOrEqualValueIOUs() {
+        return iouService.getBelowOrEqualValueIOUs();
+    }
+}
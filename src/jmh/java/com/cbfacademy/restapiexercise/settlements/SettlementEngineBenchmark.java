@@ -0,0 +1,66 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import java.math.BigDecimal;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Plans a settlement for a random IOU graph: building the net balances from every IOU plus running the greedy engine.
+// The target is well under a second for 1M IOUs between 100k users.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class SettlementEngineBenchmark {
+
+    @Param({ "1000000" })
+    private int ious;
+
+    @Param({ "100000" })
+    private int users;
+
+    private String[] borrowers;
+    private String[] lenders;
+    private BigDecimal[] amounts;
+    private final SettlementEngine engine = new SettlementEngine();
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        String[] names = new String[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = "user-" + i;
+        }
+
+        borrowers = new String[ious];
+        lenders = new String[ious];
+        amounts = new BigDecimal[ious];
+        for (int i = 0; i < ious; i++) {
+            borrowers[i] = names[random.nextInt(users)];
+            lenders[i] = names[random.nextInt(users)];
+            amounts[i] = BigDecimal.valueOf(random.nextInt(1, 1_000_000), 2);
+        }
+    }
+
+    @Benchmark
+    public SettlementPlan plan() {
+        NetBalances balances = new NetBalances(users);
+        for (int i = 0; i < ious; i++) {
+            balances.add(borrowers[i], lenders[i], amounts[i]);
+        }
+        return engine.settle(balances);
+    }
+}
@@ -0,0 +1,70 @@
+package com.cbfacademy.restapiexercise.load;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.time.Instant;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Builds the HTTP request for each operation. Reads and updates go to the seeded IOUs, which are never deleted, so they
+// don't fail just because a delete got there first. Deletes take IOUs the run itself created, newest first.
+final class IOUTraffic {
+
+    static final int USERS = 1_000; // borrowers and lenders are picked from User0..User999
+
+    private final String base;
+    private final List<UUID> seededIds;
+    private final ConcurrentLinkedDeque<UUID> createdIds = new ConcurrentLinkedDeque<>();
+    private final ObjectMapper objectMapper;
+
+    IOUTraffic(String base, List<UUID> seededIds, ObjectMapper objectMapper) {
+        this.base = base;
+        this.seededIds = seededIds;
+        this.objectMapper = objectMapper;
+    }
+
+    // The request to send for an operation. A delete with nothing left to delete becomes a create, so the
+    // caller should record the operation returned in the Call rather than the one it asked for.
+    Call call(Operation operation, SplittableRandom random) {
+        return switch (operation) {
+            case CREATE -> new Call(Operation.CREATE, HttpRequest.newBuilder(URI.create(base)).header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body(random))).build());
+            case UPDATE -> new Call(operation, HttpRequest.newBuilder(URI.create(base + "/" + seededId(random))).header("Content-Type", "application/json")
+                    .PUT(HttpRequest.BodyPublishers.ofString(body(random))).build());
+            case DELETE -> {
+                UUID id = createdIds.pollLast();
+                yield id == null ? call(Operation.CREATE, random) : new Call(operation, HttpRequest.newBuilder(URI.create(base + "/" + id)).DELETE().build());
+            }
+            case BY_ID -> new Call(operation, HttpRequest.newBuilder(URI.create(base + "/id/" + seededId(random))).GET().build());
+            case BY_BORROWER -> new Call(operation, HttpRequest.newBuilder(URI.create(base + "?borrower=User" + random.nextInt(USERS))).GET().build());
+            case HIGH -> new Call(operation, HttpRequest.newBuilder(URI.create(base + "/high")).GET().build());
+            case LOW -> new Call(operation, HttpRequest.newBuilder(URI.create(base + "/low")).GET().build());
+        };
+    }
+
+    void created(String responseBody) { // Remembers the id from a successful POST so a later delete can remove it
+        try {
+            createdIds.add(UUID.fromString(objectMapper.readTree(responseBody).get("id").asText()));
+        } catch (Exception e) {
+            throw new IllegalStateException("Couldn't read the id from the create response " + responseBody, e);
+        }
+    }
+
+    private UUID seededId(SplittableRandom random) {
+        return seededIds.get(random.nextInt(seededIds.size()));
+    }
+
+    private static String body(SplittableRandom random) {
+        BigDecimal amount = BigDecimal.valueOf(random.nextLong(1, 1_000_001), 2);
+        return "{\"borrower\":\"User" + random.nextInt(USERS) + "\",\"lender\":\"User" + random.nextInt(USERS)
+                + "\",\"amount\":" + amount + ",\"dateTime\":\"" + Instant.now() + "\"}";
+    }
+
+    record Call(Operation operation, HttpRequest request) {
+    }
+}
@@ -0,0 +1,62 @@
+package com.cbfacademy.restapiexercise.load;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.ThreadMXBean;
+
+// Watches the JVM the harness and the application share: every stop-the-world GC pause goes into a histogram, and
+// allocation is read from the per-thread counters. Both include the load generator's own garbage, which is small
+// next to the application's but not zero.
+final class JvmMonitor implements AutoCloseable {
+
+    private final Recorder pauses = new Recorder(3); // microseconds
+    private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final NotificationListener listener = (notification, handback) -> {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        if (info.getGcName().contains("Concurrent")) {
+            return; // G1's and ZGC's concurrent cycles run alongside the application, only their pauses stop it
+        }
+        pauses.recordValue(Math.max(0, info.getGcInfo().getDuration()) * 1_000);
+        heapAfterLastGc = info.getGcInfo().getMemoryUsageAfterGc().values().stream().mapToLong(MemoryUsage::getUsed).sum();
+    };
+
+    private volatile long heapAfterLastGc = -1;
+
+    JvmMonitor() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+        }
+    }
+
+    Histogram pausesSinceLastCall() { // GC pauses recorded since the previous call, in microseconds
+        return pauses.getIntervalHistogram();
+    }
+
+    long allocatedBytes() { // Heap bytes allocated since the JVM started, by every thread including finished ones (virtual threads count against their carriers)
+        return threads.getTotalThreadAllocatedBytes();
+    }
+
+    long heapAfterLastGc() { // Heap in use right after the most recent pause, or -1 before the first; a soak run that leaks shows it climbing
+        return heapAfterLastGc;
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).removeNotificationListener(listener);
+        }
+    }
+}
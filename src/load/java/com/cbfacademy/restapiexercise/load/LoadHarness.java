@@ -0,0 +1,319 @@
+package com.cbfacademy.restapiexercise.load;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.cbfacademy.restapiexercise.RestApiExerciseApplication;
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Stress and soak harness for the IOU API. Boots the whole application with its web server (against the in-memory H2
+// database from the test configuration unless --spring.datasource.* says otherwise), seeds IOUs, then starts requests from
+// a weighted mix at a fixed rate. Latency is measured from when each request was due to start rather than when it was
+// sent, so a stalled server shows up as latency instead of quietly lowering the rate (coordinated omission).
+// Prints a progress line per interval and a summary at the end, and exits with 1 when a threshold is breached.
+// Run it with: ./mvnw -P load test-compile exec:exec -Dload.args="--load.rps=500 --load.duration=PT30M"
+public final class LoadHarness {
+
+    private final LoadOptions options;
+    private final ConfigurableApplicationContext context;
+    private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+    private final LongAdder dropped = new LongAdder(); // requests not sent because max-in-flight were already outstanding
+    private final Histogram gcPauses = new Histogram(3); // microseconds, over the measured window
+    private final PrintStream out = System.out;
+
+    private JvmMonitor jvm;
+    private HistogramLogWriter histogramLog;
+    private long measureFromMillis; // wall clock, for the histogram log and the interval lines
+    private long allocatedAtStart;
+    private long allocatedAtLastInterval;
+    private long lastIntervalNanos;
+    private long heapAfterFirstGc = -1;
+
+    private LoadHarness(LoadOptions options, ConfigurableApplicationContext context) {
+        this.options = options;
+        this.context = context;
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadOptions options = LoadOptions.parse(args);
+        List<String> failures;
+        try (ConfigurableApplicationContext context = start(options.applicationArgs())) {
+            failures = new LoadHarness(options, context).run();
+        }
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static ConfigurableApplicationContext start(List<String> applicationArgs) {
+        List<String> all = new ArrayList<>(applicationArgs);
+        addDefault(all, "--server.port=", "0");
+        addDefault(all, "--logging.level.root=", "WARN");
+        addDefault(all, "--logging.level.org.springframework=", "WARN");
+        System.setProperty("spring.devtools.restart.enabled", "false"); // A devtools restart would rerun main() without the --load.* options, in a slower class loader
+        return new SpringApplicationBuilder(RestApiExerciseApplication.class).run(all.toArray(String[]::new));
+    }
+
+    private static void addDefault(List<String> args, String prefix, String value) { // Repeating a property would make Spring join both values
+        if (args.stream().noneMatch(arg -> arg.startsWith(prefix))) {
+            args.add(prefix + value);
+        }
+    }
+
+    private List<String> run() throws Exception {
+        String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port") + "/api/ious";
+        IOUTraffic traffic = new IOUTraffic(base, seed(), context.getBean(ObjectMapper.class));
+        SplittableRandom random = new SplittableRandom(42);
+        AtomicInteger inFlight = new AtomicInteger();
+        out.printf("%nSending %.0f req/s for %s (plus %s warmup), mix %s%n", options.rps(), options.duration(), options.warmup(), options.mix());
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor(); JvmMonitor monitor = new JvmMonitor()) {
+            jvm = monitor;
+            HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(clients).build();
+            long start = System.nanoTime();
+            long measureFrom = start + options.warmup().toNanos();
+            long stopAt = measureFrom + options.duration().toNanos();
+            reporter.schedule(this::beginMeasuring, options.warmup().toNanos(), TimeUnit.NANOSECONDS);
+            reporter.scheduleAtFixedRate(this::reportInterval, options.warmup().plus(options.reportInterval()).toNanos(),
+                    options.reportInterval().toNanos(), TimeUnit.NANOSECONDS);
+
+            for (long i = 0;; i++) {
+                long due = start + (long) (i * 1_000_000_000L / options.rps()); // a fixed schedule, whatever the responses are doing
+                if (due >= stopAt) {
+                    break;
+                }
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                IOUTraffic.Call call = traffic.call(options.nextOperation(random), random);
+                boolean measured = due >= measureFrom;
+                if (inFlight.incrementAndGet() > options.maxInFlight()) {
+                    inFlight.decrementAndGet();
+                    if (measured) {
+                        dropped.increment();
+                    }
+                    continue;
+                }
+                clients.execute(() -> {
+                    try {
+                        send(http, traffic, call, due, measured);
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+            }
+        } // Waits for the requests still in flight
+
+        reporter.shutdown();
+        reporter.awaitTermination(1, TimeUnit.MINUTES);
+        reportInterval(); // Picks up whatever finished after the last scheduled interval
+        if (histogramLog != null) {
+            histogramLog.close();
+        }
+        return summarise();
+    }
+
+    private void send(HttpClient http, IOUTraffic traffic, IOUTraffic.Call call, long due, boolean measured) {
+        OperationStats operationStats = stats.get(call.operation());
+        boolean failed;
+        try {
+            HttpResponse<String> response = http.send(call.request(), HttpResponse.BodyHandlers.ofString());
+            failed = response.statusCode() >= 400;
+            if (!failed && call.operation() == Operation.CREATE) {
+                traffic.created(response.body());
+            }
+        } catch (IOException e) {
+            failed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (measured) {
+            operationStats.latency.recordValue(Math.max(0, System.nanoTime() - due) / 1_000);
+            if (failed) {
+                operationStats.errors.increment();
+            }
+        }
+    }
+
+    // Creates the IOUs reads and updates go to, through the service so caches, aggregates and the read model all see them
+    private List<UUID> seed() {
+        IOUService iouService = context.getBean(IOUService.class);
+        SplittableRandom random = new SplittableRandom(7);
+        List<UUID> ids = new ArrayList<>(options.seedRows());
+        for (int i = 0; i < options.seedRows(); i++) {
+            IOU iou = new IOU("User" + (i % IOUTraffic.USERS), "User" + random.nextInt(IOUTraffic.USERS),
+                    BigDecimal.valueOf(random.nextLong(1, 1_000_001), 2), Instant.now());
+            ids.add(iouService.createIOU(iou).getId());
+        }
+        if (ids.isEmpty()) {
+            throw new IllegalArgumentException("--load.seed-rows must be at least 1, updates and reads by id need something to target");
+        }
+        return ids;
+    }
+
+    private void beginMeasuring() { // Runs on the reporter thread when the warmup ends
+        measureFromMillis = System.currentTimeMillis();
+        jvm.pausesSinceLastCall(); // Throws away the warmup's GC pauses
+        stats.values().forEach(operationStats -> operationStats.latency.reset()); // Warmup requests aren't recorded, this just restarts the interval clock
+        allocatedAtStart = jvm.allocatedBytes();
+        allocatedAtLastInterval = allocatedAtStart;
+        lastIntervalNanos = System.nanoTime();
+        if (options.histogramLog() != null) {
+            try {
+                Files.createDirectories(options.histogramLog().toAbsolutePath().getParent());
+                histogramLog = new HistogramLogWriter(options.histogramLog().toFile());
+            } catch (IOException e) {
+                throw new IllegalStateException("Couldn't create the histogram log " + options.histogramLog(), e);
+            }
+            histogramLog.setBaseTime(measureFromMillis);
+            histogramLog.outputLogFormatVersion();
+            histogramLog.outputStartTime(measureFromMillis);
+            histogramLog.outputLegend();
+        }
+    }
+
+    // Moves each recorder's latest interval into the run's totals and prints one progress line. Runs on the reporter thread,
+    // and once more on the main thread after the reporter has stopped, so the totals are only ever touched by one thread at a time.
+    private void reportInterval() {
+        Histogram interval = new Histogram(3);
+        long errors = 0;
+        for (Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+            Histogram latest = entry.getValue().latency.getIntervalHistogram();
+            entry.getValue().total.add(latest);
+            interval.add(latest);
+            long operationErrors = entry.getValue().errors.sumThenReset();
+            entry.getValue().totalErrors += operationErrors;
+            errors += operationErrors;
+            log(entry.getKey().key, latest);
+        }
+        Histogram pauses = jvm.pausesSinceLastCall();
+        gcPauses.add(pauses);
+        log("gc-pause", pauses);
+        if (heapAfterFirstGc < 0) {
+            heapAfterFirstGc = jvm.heapAfterLastGc();
+        }
+
+        long now = System.nanoTime();
+        long allocated = jvm.allocatedBytes();
+        double seconds = (now - lastIntervalNanos) / 1e9;
+        out.printf("[%6.0fs] %8.1f req/s  p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms  errors %5d  gc %3d pauses, max %6.2f ms  alloc %7.1f MB/s  heap after gc %6.1f MB%n",
+                (System.currentTimeMillis() - measureFromMillis) / 1000.0, interval.getTotalCount() / seconds,
+                millis(interval.getValueAtPercentile(50)), millis(interval.getValueAtPercentile(99)), millis(interval.getMaxValue()), errors,
+                pauses.getTotalCount(), millis(pauses.getMaxValue()), (allocated - allocatedAtLastInterval) / seconds / 1_048_576,
+                jvm.heapAfterLastGc() / 1_048_576.0);
+        lastIntervalNanos = now;
+        allocatedAtLastInterval = allocated;
+    }
+
+    private List<String> summarise() {
+        double seconds = options.duration().toNanos() / 1e9;
+        Histogram all = new Histogram(3);
+        long errors = dropped.sum();
+        List<String> failures = new ArrayList<>();
+
+        out.printf("%n%-12s %9s %9s %9s %9s %9s %9s %9s %8s%n", "operation", "count", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+        for (Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+            Histogram total = entry.getValue().total;
+            if (total.getTotalCount() == 0 && entry.getValue().totalErrors == 0) {
+                continue;
+            }
+            out.println(row(entry.getKey().key, total, seconds, entry.getValue().totalErrors));
+            all.add(total);
+            errors += entry.getValue().totalErrors;
+
+            Double limit = options.maxP99MillisByOperation().get(entry.getKey());
+            if (limit != null && limit > 0 && millis(total.getValueAtPercentile(99)) > limit) {
+                failures.add(String.format("%s p99 %.2f ms is over %.2f ms", entry.getKey().key, millis(total.getValueAtPercentile(99)), limit));
+            }
+        }
+        out.println(row("all", all, seconds, errors));
+
+        double throughput = all.getTotalCount() / seconds;
+        long attempted = all.getTotalCount() + dropped.sum();
+        double errorRate = attempted == 0 ? 0 : errors / (double) attempted;
+        double allocationMbPerSecond = (allocatedAtLastInterval - allocatedAtStart) / seconds / 1_048_576;
+        out.printf("%nThroughput %.1f req/s of %.1f targeted, %d dropped at max-in-flight, error rate %.3f%%%n", throughput, options.rps(), dropped.sum(), errorRate * 100);
+        out.printf("GC: %d pauses, total %.1f ms, p99 %.2f ms, max %.2f ms; heap after gc %.1f MB at the start, %.1f MB at the end%n",
+                gcPauses.getTotalCount(), gcPauses.getMean() * gcPauses.getTotalCount() / 1_000, millis(gcPauses.getValueAtPercentile(99)),
+                millis(gcPauses.getMaxValue()), heapAfterFirstGc / 1_048_576.0, jvm.heapAfterLastGc() / 1_048_576.0);
+        out.printf("Allocation: %.1f MB/s%n", allocationMbPerSecond);
+        if (options.histogramLog() != null) {
+            out.printf("Interval histograms written to %s%n", options.histogramLog());
+        }
+
+        if (options.maxP99Millis() > 0 && millis(all.getValueAtPercentile(99)) > options.maxP99Millis()) {
+            failures.add(String.format("p99 %.2f ms is over %.2f ms", millis(all.getValueAtPercentile(99)), options.maxP99Millis()));
+        }
+        if (errorRate > options.maxErrorRate()) {
+            failures.add(String.format("error rate %.3f%% is over %.3f%%", errorRate * 100, options.maxErrorRate() * 100));
+        }
+        if (throughput < options.rps() * options.minThroughputRatio()) {
+            failures.add(String.format("throughput %.1f req/s is under %.0f%% of the %.1f targeted", throughput, options.minThroughputRatio() * 100, options.rps()));
+        }
+        if (options.maxGcPauseMillis() > 0 && millis(gcPauses.getMaxValue()) > options.maxGcPauseMillis()) {
+            failures.add(String.format("longest GC pause %.2f ms is over %.2f ms", millis(gcPauses.getMaxValue()), options.maxGcPauseMillis()));
+        }
+        if (options.maxAllocationMbPerSecond() > 0 && allocationMbPerSecond > options.maxAllocationMbPerSecond()) {
+            failures.add(String.format("allocation %.1f MB/s is over %.1f MB/s", allocationMbPerSecond, options.maxAllocationMbPerSecond()));
+        }
+
+        out.println(failures.isEmpty() ? "\nPASSED" : "\nFAILED:\n  " + String.join("\n  ", failures));
+        return failures;
+    }
+
+    private static String row(String name, Histogram histogram, double seconds, long errors) {
+        return String.format("%-12s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %8d", name, histogram.getTotalCount(), histogram.getTotalCount() / seconds,
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)), millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue()), errors);
+    }
+
+    private void log(String tag, Histogram interval) { // One line per tag per interval; values are microseconds, so max is shown in ms
+        if (histogramLog == null) {
+            return;
+        }
+        interval.setTag(tag);
+        histogramLog.outputIntervalHistogram((interval.getStartTimeStamp() - measureFromMillis) / 1000.0,
+                (interval.getEndTimeStamp() - measureFromMillis) / 1000.0, interval, 1_000.0);
+    }
+
+    private static double millis(long micros) {
+        return micros / 1_000.0;
+    }
+
+    private static final class OperationStats {
+        final Recorder latency = new Recorder(3); // microseconds from when the request was due, successes and failures alike
+        final Histogram total = new Histogram(3); // every measured interval so far, only touched by whoever runs reportInterval()
+        final LongAdder errors = new LongAdder(); // since the last interval
+        long totalErrors;
+    }
+}
@@ -0,0 +1,124 @@
+package com.cbfacademy.restapiexercise.load;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+// Settings for one load run. Every --load.* argument is read here, anything else is passed on to the application.
+// A threshold of 0 is switched off.
+record LoadOptions(
+        double rps, // requests started per second, whether or not earlier ones have finished
+        Duration warmup, // sent but not measured, while the JIT and caches settle
+        Duration duration, // measured
+        Duration reportInterval, // how often a progress line is printed, and the granularity of the histogram log
+        Map<Operation, Integer> mix, // relative weight of each operation
+        int seedRows, // IOUs in the table before the run starts
+        int maxInFlight, // requests beyond this are dropped and counted as errors rather than queued without limit
+        Path histogramLog, // interval histograms in HdrHistogram's log format, for HistogramLogAnalyzer and similar tools
+        double maxP99Millis,
+        Map<Operation, Double> maxP99MillisByOperation,
+        double maxErrorRate, // fraction of measured requests that failed or were dropped
+        double minThroughputRatio, // fraction of the target rps that must actually complete
+        double maxGcPauseMillis,
+        double maxAllocationMbPerSecond,
+        List<String> applicationArgs) {
+
+    static final Map<Operation, Integer> DEFAULT_MIX = Map.of(
+            Operation.BY_ID, 40, Operation.BY_BORROWER, 15, Operation.HIGH, 10, Operation.LOW, 10,
+            Operation.CREATE, 12, Operation.UPDATE, 8, Operation.DELETE, 5);
+
+    static LoadOptions parse(String... args) {
+        double rps = 200;
+        Duration warmup = Duration.ofSeconds(10);
+        Duration duration = Duration.ofSeconds(60);
+        Duration reportInterval = Duration.ofSeconds(10);
+        Map<Operation, Integer> mix = DEFAULT_MIX;
+        int seedRows = 1_000;
+        int maxInFlight = 2_000;
+        Path histogramLog = Path.of("target", "load-latency.hlog");
+        double maxP99Millis = 0;
+        Map<Operation, Double> maxP99MillisByOperation = new EnumMap<>(Operation.class);
+        double maxErrorRate = 0.01;
+        double minThroughputRatio = 0.95;
+        double maxGcPauseMillis = 0;
+        double maxAllocationMbPerSecond = 0;
+        List<String> applicationArgs = new ArrayList<>();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--load.")) {
+                applicationArgs.add(arg);
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected --load.<name>=<value> but got " + arg);
+            }
+            String name = arg.substring("--load.".length(), equals);
+            String value = arg.substring(equals + 1);
+            if (name.startsWith("max-p99-ms.")) {
+                maxP99MillisByOperation.put(Operation.of(name.substring("max-p99-ms.".length())), Double.parseDouble(value));
+                continue;
+            }
+            switch (name) {
+                case "rps" -> rps = Double.parseDouble(value);
+                case "warmup" -> warmup = Duration.parse(value);
+                case "duration" -> duration = Duration.parse(value);
+                case "report-interval" -> reportInterval = Duration.parse(value);
+                case "mix" -> mix = parseMix(value);
+                case "seed-rows" -> seedRows = Integer.parseInt(value);
+                case "max-in-flight" -> maxInFlight = Integer.parseInt(value);
+                case "histogram-log" -> histogramLog = value.isEmpty() ? null : Path.of(value);
+                case "max-p99-ms" -> maxP99Millis = Double.parseDouble(value);
+                case "max-error-rate" -> maxErrorRate = Double.parseDouble(value);
+                case "min-throughput-ratio" -> minThroughputRatio = Double.parseDouble(value);
+                case "max-gc-pause-ms" -> maxGcPauseMillis = Double.parseDouble(value);
+                case "max-allocation-mb-per-s" -> maxAllocationMbPerSecond = Double.parseDouble(value);
+                default -> throw new IllegalArgumentException("Unknown load option --load." + name);
+            }
+        }
+        if (rps <= 0 || duration.isZero() || duration.isNegative() || reportInterval.isZero() || reportInterval.isNegative()) {
+            throw new IllegalArgumentException("--load.rps, --load.duration and --load.report-interval must be positive");
+        }
+
+        return new LoadOptions(rps, warmup, duration, reportInterval, mix, seedRows, maxInFlight, histogramLog, maxP99Millis,
+                Collections.unmodifiableMap(maxP99MillisByOperation), maxErrorRate, minThroughputRatio, maxGcPauseMillis,
+                maxAllocationMbPerSecond, List.copyOf(applicationArgs));
+    }
+
+    // e.g. "byId=70,create=20,delete=10"; operations that aren't listed aren't sent
+    private static Map<Operation, Integer> parseMix(String value) {
+        Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        for (String entry : value.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected <operation>=<weight> in --load.mix but got " + entry);
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weights in --load.mix can't be negative: " + entry);
+            }
+            mix.put(Operation.of(parts[0].trim()), weight);
+        }
+        if (mix.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+            throw new IllegalArgumentException("--load.mix has no operations with a weight above 0");
+        }
+        return Collections.unmodifiableMap(mix);
+    }
+
+    Operation nextOperation(SplittableRandom random) { // Picks an operation with probability proportional to its weight
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int roll = random.nextInt(total);
+        for (Operation operation : Operation.values()) {
+            roll -= mix.getOrDefault(operation, 0);
+            if (roll < 0) {
+                return operation;
+            }
+        }
+        throw new IllegalStateException("Unreachable: roll exceeded the mix total");
+    }
+}
@@ -0,0 +1,25 @@
+package com.cbfacademy.restapiexercise.load;
+
+import java.util.Arrays;
+
+// The IOU API calls the load harness can send, named as they are in --load.mix and the per-operation thresholds
+enum Operation {
+    CREATE("create"), // POST /api/ious
+    UPDATE("update"), // PUT /api/ious/{id}
+    DELETE("delete"), // DELETE /api/ious/{id}, only ever of an IOU the harness created itself
+    BY_ID("byId"), // GET /api/ious/id/{id}
+    BY_BORROWER("byBorrower"), // GET /api/ious?borrower=
+    HIGH("high"), // GET /api/ious/high
+    LOW("low"); // GET /api/ious/low
+
+    final String key;
+
+    Operation(String key) {
+        this.key = key;
+    }
+
+    static Operation of(String key) {
+        return Arrays.stream(values()).filter(operation -> operation.key.equals(key)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown operation " + key + ", expected one of " + Arrays.stream(values()).map(o -> o.key).toList()));
+    }
+}
@@ -0,0 +1,331 @@
+package com.cbfacademy.restapiexercise.load;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.ToDoubleFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import com.cbfacademy.restapiexercise.RestApiExerciseApplication;
+
+// Startup time and first-request latency of the application as it ships, one fresh JVM (or native executable) per run:
+//   jar        java -jar on the plain Spring Boot jar
+//   extracted  the same jar extracted by the cds profile, without AOT or CDS, so the effect of extracting is seen on its own
+//   aot        extracted, with the Spring AOT code the cds profile generated (-Dspring.aot.enabled=true)
+//   aot-cds    extracted, AOT and the class data sharing archive from the cds profile's training run
+//   native     the GraalVM executable from the native profile
+// Each run reports when the web server was listening, the "Started ... in" time Spring logs, and how long the first
+// GET of --startup.path took, and so when the first response arrived after the process was launched. Variants take turns
+// run by run, so a noisy neighbour or a thermal slowdown lands on all of them. Build first with ./mvnw -P cds package, then
+// run it with: ./mvnw -P load test-compile exec:exec -Dload.main=com.cbfacademy.restapiexercise.load.StartupBenchmark -Dload.args="--startup.runs=10"
+// Without --spring.datasource.url the application gets an empty in-memory H2 database, the H2 jar from this classpath added
+// to its own. Every argument that isn't a --startup.* option is passed on to the application.
+public final class StartupBenchmark {
+
+    private static final Pattern LISTENING = Pattern.compile("Tomcat started on port (\\d+)");
+    private static final Pattern STARTED = Pattern.compile("Started \\S+ in ([\\d.]+) seconds");
+
+    private final Options options;
+    private final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final PrintStream out = System.out;
+
+    private StartupBenchmark(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new StartupBenchmark(Options.parse(args)).run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        for (Variant variant : options.variants()) {
+            Path required = variant.required(options);
+            if (!Files.exists(required)) {
+                throw new IllegalStateException(required + " is missing for the " + variant.key + " variant - build it first, see the README");
+            }
+        }
+        Map<Variant, List<Sample>> samples = new EnumMap<>(Variant.class);
+        options.variants().forEach(variant -> samples.put(variant, new ArrayList<>()));
+        boolean ok = true;
+
+        out.printf("%n%d runs of %s (plus %d warmup), first request GET %s%n", options.runs(), options.variants().stream().map(variant -> variant.key).toList(),
+                options.warmupRuns(), options.path());
+        for (int run = -options.warmupRuns(); run < options.runs(); run++) {
+            for (Variant variant : options.variants()) {
+                Sample sample;
+                try {
+                    sample = launch(variant);
+                } catch (Exception e) {
+                    out.printf("%-10s run %3d failed: %s%n", variant.key, run, e.getMessage());
+                    ok = false;
+                    continue;
+                }
+                if (run < 0) {
+                    continue; // Warms the page cache and the disk, not measured
+                }
+                samples.get(variant).add(sample);
+                out.printf("%-10s run %3d  listening %7.0f ms  spring %7.0f ms  first request %6.1f ms  first response %7.0f ms%s%n", variant.key, run,
+                        sample.listeningMillis(), sample.springMillis(), sample.firstRequestMillis(), sample.firstResponseMillis(),
+                        sample.warning() == null ? "" : "  (" + sample.warning() + ")");
+            }
+        }
+        report(samples);
+        return ok;
+    }
+
+    private Sample launch(Variant variant) throws Exception {
+        Path eventLog = Files.createTempDirectory("startup-event-log"); // A fresh event log each run, so there's nothing to replay
+        List<String> command = new ArrayList<>(variant.command(options));
+        command.addAll(options.applicationArgs());
+        command.add("--server.port=0");
+        command.add("--ious.event-log.directory=" + eventLog);
+
+        long launched = System.nanoTime();
+        Process process = new ProcessBuilder(command).directory(variant.directory(options).toFile()).redirectErrorStream(true).start();
+        try {
+            CompletableFuture<Integer> port = new CompletableFuture<>();
+            CompletableFuture<Double> springSeconds = new CompletableFuture<>();
+            long[] listeningAt = new long[1];
+            String[] warning = new String[1];
+            Thread.ofVirtual().start(() -> {
+                try (BufferedReader lines = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                        Matcher listening = LISTENING.matcher(line);
+                        Matcher started = STARTED.matcher(line);
+                        if (listening.find()) {
+                            listeningAt[0] = System.nanoTime();
+                            port.complete(Integer.parseInt(listening.group(1)));
+                        } else if (started.find()) {
+                            springSeconds.complete(Double.parseDouble(started.group(1)));
+                        } else if (line.contains("[cds]") && warning[0] == null) {
+                            warning[0] = line.trim(); // e.g. the archive was rejected because the class path differs from the training run
+                        }
+                    }
+                } catch (IOException e) {
+                    // The process was stopped
+                }
+                port.completeExceptionally(new IllegalStateException("the process ended before the web server started"));
+            });
+
+            long timeoutNanos = options.timeout().toNanos();
+            int listeningPort;
+            try {
+                listeningPort = port.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                throw new IllegalStateException("no web server after " + options.timeout());
+            }
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + listeningPort + options.path()))
+                    .timeout(options.timeout()).GET().build();
+            long sent = System.nanoTime();
+            HttpResponse<Void> response = http.send(request, HttpResponse.BodyHandlers.discarding());
+            long received = System.nanoTime();
+            if (response.statusCode() / 100 != 2) {
+                throw new IllegalStateException("GET " + options.path() + " returned " + response.statusCode());
+            }
+            double spring;
+            try {
+                spring = springSeconds.get(timeoutNanos - (System.nanoTime() - launched), TimeUnit.NANOSECONDS) * 1_000;
+            } catch (TimeoutException e) {
+                spring = Double.NaN;
+            }
+            return new Sample(millis(listeningAt[0] - launched), spring, millis(received - sent), millis(received - launched), warning[0]);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+            try (Stream<Path> files = Files.walk(eventLog)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private void report(Map<Variant, List<Sample>> samples) {
+        out.printf("%n%-10s %5s %14s %14s %14s %16s %9s%n", "variant", "runs", "listening ms", "spring ms", "first req ms", "first resp ms", "vs first");
+        double baseline = Double.NaN;
+        for (Map.Entry<Variant, List<Sample>> entry : samples.entrySet()) {
+            List<Sample> runs = entry.getValue();
+            if (runs.isEmpty()) {
+                continue;
+            }
+            double firstResponse = median(runs, Sample::firstResponseMillis);
+            if (Double.isNaN(baseline)) {
+                baseline = firstResponse;
+            }
+            out.printf("%-10s %5d %14.0f %14.0f %14.1f %16.0f %8.2fx%n", entry.getKey().key, runs.size(), median(runs, Sample::listeningMillis),
+                    median(runs, Sample::springMillis), median(runs, Sample::firstRequestMillis), firstResponse, firstResponse / baseline);
+        }
+        out.printf("Medians. \"vs first\" compares the time to the first response with the first variant listed%n");
+    }
+
+    private static double median(List<Sample> samples, ToDoubleFunction<Sample> value) {
+        double[] values = samples.stream().mapToDouble(value).sorted().toArray();
+        int middle = values.length / 2;
+        return values.length % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private record Sample(double listeningMillis, double springMillis, double firstRequestMillis, double firstResponseMillis, String warning) {
+    }
+
+    private enum Variant {
+        JAR("jar"), EXTRACTED("extracted"), AOT("aot"), AOT_CDS("aot-cds"), NATIVE("native");
+
+        private final String key;
+
+        Variant(String key) {
+            this.key = key;
+        }
+
+        static Variant of(String key) {
+            return Arrays.stream(values()).filter(variant -> variant.key.equals(key)).findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown variant " + key + ", expected one of jar, extracted, aot, aot-cds, native"));
+        }
+
+        Path required(Options options) {
+            return switch (this) {
+                case JAR -> options.jar();
+                case EXTRACTED, AOT -> options.extracted().resolve(options.jar().getFileName());
+                case AOT_CDS -> options.extracted().resolve("application.jsa");
+                case NATIVE -> options.executable();
+            };
+        }
+
+        // The extracted variants run from the directory the training run used, with the jar named the same way,
+        // as the JVM only uses the archive when the class path starts with the one it was recorded with
+        Path directory(Options options) {
+            return this == JAR || this == NATIVE ? Path.of("").toAbsolutePath() : options.extracted();
+        }
+
+        List<String> command(Options options) {
+            if (this == NATIVE) {
+                return List.of(options.executable().toAbsolutePath().toString());
+            }
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(options.jvmArgs());
+            String jar = options.jar().toAbsolutePath().toString();
+            String extraClasspath = options.extraClasspath() == null ? "" : options.extraClasspath().toString();
+            switch (this) {
+                case JAR -> {
+                    if (extraClasspath.isEmpty()) {
+                        command.addAll(List.of("-jar", jar));
+                    } else { // Spring Boot's launcher that takes extra jars
+                        command.addAll(List.of("-Dloader.path=" + extraClasspath, "-cp", jar, "org.springframework.boot.loader.launch.PropertiesLauncher"));
+                    }
+                }
+                case EXTRACTED, AOT, AOT_CDS -> {
+                    if (this == AOT_CDS) {
+                        command.add("-XX:SharedArchiveFile=application.jsa");
+                    }
+                    if (this != EXTRACTED) {
+                        command.add("-Dspring.aot.enabled=true");
+                    }
+                    String classpath = options.jar().getFileName().toString(); // Its manifest lists the lib/ jars next to it
+                    command.addAll(List.of("-cp", extraClasspath.isEmpty() ? classpath : classpath + java.io.File.pathSeparator + extraClasspath,
+                            RestApiExerciseApplication.class.getName()));
+                }
+                default -> throw new IllegalStateException("Unreachable: " + this);
+            }
+            return command;
+        }
+    }
+
+    // Every --startup.* argument is read here, anything else is passed on to the application
+    private record Options(
+            int runs,
+            int warmupRuns, // launched but not measured, so the first measured run doesn't pay for a cold page cache
+            List<Variant> variants, // in the order they are run and reported, the first is what the others are compared with
+            String path, // the first request
+            Duration timeout, // for a launch to answer its first request
+            Path jar,
+            Path extracted, // where the cds profile extracted the jar and wrote the archive
+            Path executable, // the native image
+            Path extraClasspath, // the JDBC driver for the database the runs use, H2 by default
+            List<String> jvmArgs,
+            List<String> applicationArgs) {
+
+        static Options parse(String... args) throws Exception {
+            int runs = 5;
+            int warmupRuns = 1;
+            List<Variant> variants = List.of(Variant.JAR, Variant.EXTRACTED, Variant.AOT, Variant.AOT_CDS);
+            String path = "/api/ious";
+            Duration timeout = Duration.ofMinutes(2);
+            Path jar = Path.of("target", "restapiexercise-0.0.1-SNAPSHOT.jar");
+            Path extracted = Path.of("target", "cds");
+            Path executable = Path.of("target", "restapiexercise");
+            Path extraClasspath = null;
+            List<String> jvmArgs = List.of();
+            List<String> applicationArgs = new ArrayList<>();
+
+            for (String arg : args) {
+                if (!arg.startsWith("--startup.")) {
+                    applicationArgs.add(arg);
+                    continue;
+                }
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Expected --startup.<name>=<value> but got " + arg);
+                }
+                String name = arg.substring("--startup.".length(), equals);
+                String value = arg.substring(equals + 1);
+                switch (name) {
+                    case "runs" -> runs = Integer.parseInt(value);
+                    case "warmup-runs" -> warmupRuns = Integer.parseInt(value);
+                    case "variants" -> variants = Arrays.stream(value.split(",")).map(String::trim).map(Variant::of).distinct().toList();
+                    case "path" -> path = value;
+                    case "timeout" -> timeout = Duration.parse(value);
+                    case "jar" -> jar = Path.of(value);
+                    case "extracted" -> extracted = Path.of(value);
+                    case "executable" -> executable = Path.of(value);
+                    case "classpath" -> extraClasspath = value.isEmpty() ? null : Path.of(value);
+                    case "jvm-args" -> jvmArgs = value.isBlank() ? List.of() : List.of(value.trim().split("\\s+"));
+                    default -> throw new IllegalArgumentException("Unknown startup option --startup." + name);
+                }
+            }
+            if (runs <= 0 || warmupRuns < 0 || variants.isEmpty()) {
+                throw new IllegalArgumentException("--startup.runs must be positive, --startup.warmup-runs can't be negative and --startup.variants can't be empty");
+            }
+
+            if (applicationArgs.stream().noneMatch(arg -> arg.startsWith("--spring.datasource.url="))) {
+                if (variants.contains(Variant.NATIVE)) {
+                    throw new IllegalArgumentException("The native variant can't load the H2 driver, give it a database with --spring.datasource.url and friends");
+                }
+                applicationArgs.addAll(List.of(
+                        "--spring.datasource.url=jdbc:h2:mem:startup;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+                        "--spring.datasource.driver-class-name=org.h2.Driver",
+                        "--spring.datasource.username=sa",
+                        "--spring.datasource.password=",
+                        "--spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect"));
+                if (extraClasspath == null) {
+                    extraClasspath = Path.of(org.h2.Driver.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                }
+            }
+            return new Options(runs, warmupRuns, variants, path, timeout, jar.toAbsolutePath(), extracted.toAbsolutePath(), executable, extraClasspath,
+                    jvmArgs, List.copyOf(applicationArgs));
+        }
+    }
+}
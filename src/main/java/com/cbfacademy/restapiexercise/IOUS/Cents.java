@@ -0,0 +1,23 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// Amounts as whole cents in a long, for code that keeps a lot of them in primitive arrays (IOUReadModel, NetBalances).
+// Rounds to the two decimal places of the ious.amount column half away from zero, the way MySQL rounds a DECIMAL on insert,
+// so a converted amount always matches the stored one - every such conversion should go through here.
+public final class Cents {
+
+    public static final int SCALE = 2; // The scale of the ious.amount column
+
+    private Cents() {
+    }
+
+    public static long of(BigDecimal amount) {
+        return amount.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    public static BigDecimal toAmount(long cents) {
+        return BigDecimal.valueOf(cents, SCALE);
+    }
+}
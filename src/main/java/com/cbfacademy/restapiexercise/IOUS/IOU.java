@@ -5,17 +5,22 @@ import java.time.Instant;
 import java.util.UUID;
 
 import jakarta.persistence.Entity;
-import jakarta.persistence.GeneratedValue;
-import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 
 @Entity // IOU class is marked as an entitiy that will be stored in the database
-@Table(name = "ious") // Table name ious
+@Table(name = "ious", indexes = { // Table name ious
+    @Index(name = "idx_ious_date_time_id", columnList = "dateTime, id"), // Backs the (dateTime, id) ordering used by cursor pagination and streaming
+    @Index(name = "idx_ious_amount", columnList = "amount"), // Turns the /high and /low filters into range scans
+    @Index(name = "idx_ious_borrower_date_time", columnList = "borrower, dateTime"), // ?borrower= with or without a time window, already in page order
+    @Index(name = "idx_ious_lender_date_time", columnList = "lender, dateTime") // Same for ?lender=
+})
 public class IOU {
     
     @Id // Marks the id field as the primary key of the table
-    @GeneratedValue(strategy = GenerationType.AUTO) // Tells the table to automatically generate a unique value for the id field whenever a new IOU is added. GenerationType.AUTO will handle generating the ID
+    @UuidV7 // Tells the table to automatically generate a unique value for the id field whenever a new IOU is added. Version 7 UUIDs are time-ordered, so new rows are appended to the end of the primary key index
     private UUID id;
 
     private String borrower;
@@ -23,6 +28,9 @@ public class IOU {
     private BigDecimal amount;
     private Instant dateTime;
 
+    @Version // Bumped on every update, so concurrent edits are detected instead of one silently overwriting the other
+    private Long version;
+
     public IOU() {
     }
 
@@ -33,6 +41,18 @@ public class IOU {
         this.dateTime = dateTime;
     }
 
+    public IOU (UUID id, String borrower, String lender, BigDecimal amount, Instant dateTime, Long version) { // Used by the SELECT_DETACHED queries in IOURepository
+        this(borrower, lender, amount, dateTime);
+        this.id = id;
+        this.version = version;
+    }
+
+    public IOU (IOU other) { // Copy constructor - used to keep a detached snapshot of an IOU before it is changed
+        this(other.borrower, other.lender, other.amount, other.dateTime);
+        this.id = other.id;
+        this.version = other.version;
+    }
+
     public UUID getId () {
         return id;
     }
@@ -72,4 +92,12 @@ public class IOU {
     public void setDateTime(Instant dateTime) {
         this.dateTime = dateTime;
     }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
 }
@@ -0,0 +1,130 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import com.cbfacademy.restapiexercise.datasource.ReplicaRoutingDataSource;
+
+// Keeps a running count and sum of IOU amounts so the average behind /high and /low is an O(1) read
+// instead of an AVG() over the whole table on every request. The totals are always read from the primary: a replica's
+// lagging totals would be kept until the next reconcile(), and the changes applied on top of them would never catch up. They are
+// loaded once the application is ready, outside any request: /high and /low are served inside IOUChangeTracker.ifChanged(), whose
+// transaction is already on the replica by the time average() runs, and loading there would mean holding a second connection.
+@Component
+public class IOUAmountAggregate {
+
+    private static final Logger log = LoggerFactory.getLogger(IOUAmountAggregate.class);
+
+    private final IOURepository iouRepository;
+    private final ReentrantLock lock = new ReentrantLock(); // A lock rather than a monitor: the first average() queries the table while holding it, which would pin a virtual thread
+
+    private boolean loaded; // false until the totals have been read from the table once
+    private long count;
+    private BigDecimal sum = BigDecimal.ZERO;
+    private long changes; // bumped on every applied change, so reconcile() can tell whether a write raced with it
+
+    @Autowired
+    public IOUAmountAggregate(IOURepository iouRepository) {
+        this.iouRepository = iouRepository;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        average();
+    }
+
+    public Optional<BigDecimal> average() { // Average amount across all IOUs, empty when there are none
+        lock.lock();
+        try {
+            if (!loaded) { // Only for a request that beats load() at startup
+                reset(readTotals());
+            }
+            if (count == 0) {
+                return Optional.empty();
+            }
+
+            return Optional.of(sum.divide(BigDecimal.valueOf(count), MathContext.DECIMAL128));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public IOUAmountTotals totals() {
+        lock.lock();
+        try {
+            return new IOUAmountTotals(count, sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true) // Applied after commit, so a rolled back write never reaches the totals
+    public void onIOUChanged(IOUChangedEvent event) {
+        lock.lock();
+        try {
+            if (!loaded) {
+                return; // The first read will load totals that already include this change
+            }
+            if (event.previous() != null && event.previous().getAmount() != null) { // Take the old amount out...
+                count--;
+                sum = sum.subtract(event.previous().getAmount());
+            }
+            if (event.current() != null && event.current().getAmount() != null) { // ...and put the new one in
+                count++;
+                sum = sum.add(event.current().getAmount());
+            }
+            changes++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Re-derives the totals from the table and reports any drift, e.g. from writes made by another instance or straight to the database
+    @Scheduled(fixedDelayString = "${ious.aggregate.reconcile-interval:PT5M}", initialDelayString = "${ious.aggregate.reconcile-interval:PT5M}")
+    public void reconcile() {
+        long changesBefore;
+        lock.lock();
+        try {
+            changesBefore = changes;
+        } finally {
+            lock.unlock();
+        }
+
+        IOUAmountTotals actual = readTotals(); // Read outside the lock so writers aren't held up by the scan
+
+        lock.lock();
+        try {
+            if (changes != changesBefore) {
+                log.debug("Skipping IOU aggregate reconciliation, {} change(s) were applied while it ran", changes - changesBefore);
+                return; // Can't tell which side of the scan those writes landed on - try again next time
+            }
+            if (loaded && (count != actual.count() || sum.compareTo(actual.sum()) != 0)) {
+                log.warn("IOU aggregate drifted from the ious table: count {} vs {}, sum {} vs {}", count, actual.count(), sum, actual.sum());
+            }
+            reset(actual);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private IOUAmountTotals readTotals() {
+        return ReplicaRoutingDataSource.onPrimary(iouRepository::sumAmounts);
+    }
+
+    private void reset(IOUAmountTotals totals) {
+        count = totals.count();
+        sum = totals.sum();
+        loaded = true;
+    }
+}
@@ -0,0 +1,12 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.math.BigDecimal;
+
+// Number of IOUs and the sum of their amounts, as read straight from the ious table
+public record IOUAmountTotals(Long count, BigDecimal sum) {
+
+    public IOUAmountTotals {
+        count = count == null ? 0L : count;
+        sum = sum == null ? BigDecimal.ZERO : sum; // SUM() over an empty table is NULL
+    }
+}
@@ -0,0 +1,11 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.util.List;
+
+// Outcome of a POST /api/ious/batch request: how many IOUs were read and saved, and why the rest were not
+public record IOUBatchResult(int received, int created, List<Failure> failures) {
+
+    // A single IOU that was not saved, identified by its position (0-based) in the request
+    public record Failure(int index, String reason) {
+    }
+}
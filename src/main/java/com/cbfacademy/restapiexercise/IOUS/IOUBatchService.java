@@ -0,0 +1,147 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceException;
+
+// Bulk ingestion of IOUs. Rows are saved in chunks, one transaction per chunk, so Hibernate can send each chunk
+// as a handful of JDBC batches (see hibernate.jdbc.batch_size) instead of one round-trip and commit per IOU.
+@Service
+public class IOUBatchService {
+
+    private final IOURepository iouRepository;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate; // chunks commit on their own, so one bad chunk doesn't undo the others
+    private final ApplicationEventPublisher eventPublisher;
+    private final int chunkSize;
+    private final int maxItems;
+
+    @Autowired
+    public IOUBatchService(IOURepository iouRepository, EntityManager entityManager, TransactionTemplate transactionTemplate,
+            ApplicationEventPublisher eventPublisher, @Value("${ious.batch.chunk-size:500}") int chunkSize,
+            @Value("${ious.batch.max-items:50000}") int maxItems) {
+        this.iouRepository = iouRepository;
+        this.entityManager = entityManager;
+        this.transactionTemplate = transactionTemplate;
+        this.eventPublisher = eventPublisher;
+        this.chunkSize = chunkSize;
+        this.maxItems = maxItems;
+    }
+
+    // Saves every valid IOU the iterator yields. Items are pulled lazily, so a streamed request body is never held in memory all at once.
+    // Problems with individual IOUs (including ones that can't be parsed) are reported in the result rather than failing the whole batch.
+    public IOUBatchResult createIOUs(Iterator<IOU> ious) {
+        List<IOUBatchResult.Failure> failures = new ArrayList<>();
+        List<IOU> chunk = new ArrayList<>(chunkSize);
+        List<Integer> chunkIndexes = new ArrayList<>(chunkSize); // request position of each IOU in the chunk, for error reporting
+        int received = 0;
+        int created = 0;
+
+        while (hasNext(ious, received, failures)) {
+            int index = received++;
+            IOU iou;
+            try {
+                iou = ious.next();
+            } catch (RuntimeException e) { // The item couldn't be read, but the reader can skip past it
+                failures.add(new IOUBatchResult.Failure(index, "Unreadable IOU: " + e.getMessage()));
+                continue;
+            }
+
+            String problem = validate(iou);
+            if (problem != null) {
+                failures.add(new IOUBatchResult.Failure(index, problem)); // Rejected without touching the database
+                continue;
+            }
+
+            iou.setId(null); // Ids are always generated here - a batch must never overwrite existing IOUs
+            iou.setVersion(null);
+            chunk.add(iou);
+            chunkIndexes.add(index);
+            if (chunk.size() == chunkSize) {
+                created += saveChunk(chunk, chunkIndexes, failures);
+                chunk.clear();
+                chunkIndexes.clear();
+            }
+        }
+
+        if (!chunk.isEmpty()) {
+            created += saveChunk(chunk, chunkIndexes, failures);
+        }
+
+        return new IOUBatchResult(received, created, failures);
+    }
+
+    private boolean hasNext(Iterator<IOU> ious, int received, List<IOUBatchResult.Failure> failures) { // Stops reading at the size limit or when the input is broken beyond repair
+        try {
+            if (!ious.hasNext()) {
+                return false;
+            }
+        } catch (RuntimeException e) {
+            failures.add(new IOUBatchResult.Failure(received, "Stopped reading the batch: " + e.getMessage()));
+            return false;
+        }
+        if (received == maxItems) {
+            failures.add(new IOUBatchResult.Failure(received, "Stopped reading the batch: at most " + maxItems + " IOUs are accepted per request"));
+            return false;
+        }
+        return true;
+    }
+
+    private int saveChunk(List<IOU> chunk, List<Integer> chunkIndexes, List<IOUBatchResult.Failure> failures) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> persist(chunk));
+            return chunk.size();
+        } catch (DataAccessException | PersistenceException e) {
+            entityManager.clear(); // Drop whatever the failed chunk left behind
+        }
+
+        int created = 0; // The chunk was rolled back - save its IOUs one at a time to find the ones that fail
+        for (int i = 0; i < chunk.size(); i++) {
+            IOU iou = chunk.get(i);
+            iou.setId(null); // Throw away the id and version assigned during the rolled back attempt
+            iou.setVersion(null);
+            try {
+                transactionTemplate.executeWithoutResult(status -> persist(List.of(iou)));
+                created++;
+            } catch (DataAccessException | PersistenceException e) {
+                entityManager.clear();
+                failures.add(new IOUBatchResult.Failure(chunkIndexes.get(i), NestedExceptionUtils.getMostSpecificCause(e).getMessage()));
+            }
+        }
+        return created;
+    }
+
+    private void persist(List<IOU> ious) {
+        iouRepository.saveAll(ious);
+        entityManager.flush(); // Sends the inserts as JDBC batches
+        ious.forEach(iou -> eventPublisher.publishEvent(IOUChangedEvent.created(iou))); // Delivered after this chunk commits
+        entityManager.clear(); // Keeps the persistence context from growing chunk after chunk
+    }
+
+    public static String validate(IOU iou) { // Returns why the IOU can't be saved, or null if it looks fine
+        if (iou == null) {
+            return "IOU is missing";
+        }
+        if (iou.getBorrower() == null || iou.getBorrower().isBlank()) {
+            return "borrower is required";
+        }
+        if (iou.getLender() == null || iou.getLender().isBlank()) {
+            return "lender is required";
+        }
+        if (iou.getAmount() == null) {
+            return "amount is required";
+        }
+        return null;
+    }
+}
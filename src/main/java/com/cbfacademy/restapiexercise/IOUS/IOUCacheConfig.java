@@ -0,0 +1,29 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.util.concurrent.Executors;
+
+import org.springframework.boot.autoconfigure.cache.CacheManagerCustomizer;
+import org.springframework.boot.autoconfigure.cache.CacheProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.util.StringUtils;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+// Runs the caches in Caffeine's async mode. A sync = true miss otherwise loads from the database inside ConcurrentHashMap.compute,
+// which holds a monitor and pins the caller's virtual thread for the whole query. In async mode the map only stores a future
+// and the load runs on its own virtual thread, while callers wait on the future and still share the one load.
+@Configuration
+public class IOUCacheConfig {
+
+    @Bean
+    public CacheManagerCustomizer<CaffeineCacheManager> asyncIOUCaches(CacheProperties cacheProperties) {
+        return cacheManager -> {
+            String spec = cacheProperties.getCaffeine().getSpec();
+            Caffeine<Object, Object> caffeine = StringUtils.hasText(spec) ? Caffeine.from(spec) : Caffeine.newBuilder();
+            cacheManager.setCaffeine(caffeine.executor(Executors.newVirtualThreadPerTaskExecutor()));
+            cacheManager.setAsyncCacheMode(true);
+        };
+    }
+}
@@ -0,0 +1,61 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+// The in-process caches in front of IOUService's lookups. Bounded by size and age (spring.cache.caffeine.spec), and invalidated
+// precisely on every write: the IOU itself, plus the borrower lists it was in before and after the change.
+@Component
+public class IOUCaches {
+
+    public static final String IOU_CACHE = "ious"; // IOU by id
+    public static final String BORROWER_CACHE = "iousByBorrower"; // IOUs by borrower name
+
+    private final CacheManager cacheManager;
+
+    @Autowired
+    public IOUCaches(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true) // After commit, so a reader can't re-cache the old row from a transaction that hasn't finished yet
+    public void onIOUChanged(IOUChangedEvent event) {
+        evict(IOU_CACHE, event.id());
+        if (event.previous() != null) {
+            evict(BORROWER_CACHE, event.previous().getBorrower());
+        }
+        if (event.current() != null) {
+            evict(BORROWER_CACHE, event.current().getBorrower()); // Differs from the previous borrower when an update moves the IOU
+        }
+    }
+
+    public Map<String, Stats> stats() { // Hit/miss/eviction counts for each cache, since startup
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        for (String cacheName : new String[] { IOU_CACHE, BORROWER_CACHE }) {
+            if (cacheManager.getCache(cacheName) instanceof CaffeineCache cache) {
+                CacheStats counts = cache.getNativeCache().stats();
+                stats.put(cacheName, new Stats(counts.hitCount(), counts.missCount(), counts.evictionCount(), cache.getNativeCache().estimatedSize()));
+            }
+        }
+        return stats;
+    }
+
+    private void evict(String cacheName, Object key) {
+        Cache cache = cacheManager.getCache(cacheName);
+        if (cache != null && key != null) {
+            cache.evict(key);
+        }
+    }
+
+    public record Stats(long hits, long misses, long evictions, long size) {
+    }
+}
@@ -0,0 +1,57 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.time.Instant;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+// One slot of the persisted count of committed IOU changes (see IOUChangeTracker). The count is spread over a few rows so
+// concurrent writes rarely queue on the same row lock; the table's version is the sum of them all
+@Entity
+@Table(name = "ious_changes")
+public class IOUChangeCounter {
+
+    @Id
+    private int slot;
+
+    @Column(nullable = false)
+    private long changes;
+
+    @Column(nullable = false)
+    private Instant modifiedAt; // When this slot last moved
+
+    public IOUChangeCounter() {
+    }
+
+    public IOUChangeCounter(int slot, long changes, Instant modifiedAt) {
+        this.slot = slot;
+        this.changes = changes;
+        this.modifiedAt = modifiedAt;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    public long getChanges() {
+        return changes;
+    }
+
+    public void setChanges(long changes) {
+        this.changes = changes;
+    }
+
+    public Instant getModifiedAt() {
+        return modifiedAt;
+    }
+
+    public void setModifiedAt(Instant modifiedAt) {
+        this.modifiedAt = modifiedAt;
+    }
+}
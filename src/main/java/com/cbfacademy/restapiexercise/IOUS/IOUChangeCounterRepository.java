@@ -0,0 +1,23 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.time.Instant;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.ListCrudRepository;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface IOUChangeCounterRepository extends ListCrudRepository<IOUChangeCounter, Integer> {
+
+    // Counts one change in the given slot. Returns the number of rows changed - 0 when the slot hasn't been created yet
+    @Transactional // Not the repository's read-only default; joins the writer's transaction when there is one
+    @Modifying
+    @Query("UPDATE IOUChangeCounter c SET c.changes = c.changes + 1, c.modifiedAt = :now WHERE c.slot = :slot")
+    int increment(int slot, Instant now);
+
+    // The table's version: every change counted so far and when the latest one was made
+    @Query("SELECT new com.cbfacademy.restapiexercise.IOUS.IOUTableVersion(SUM(c.changes), MAX(c.modifiedAt)) FROM IOUChangeCounter c")
+    IOUTableVersion version();
+}
@@ -0,0 +1,100 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.cbfacademy.restapiexercise.datasource.ReplicaRoutingDataSource;
+
+// Versions the list responses (GET /api/ious, /high, /low) for conditional GETs. Every transaction that changes IOUs also bumps a
+// counter in ious_changes before it commits, so the count moves with the data on every instance and on the replica, and survives
+// restarts. A list is served by ifChanged(), which reads the version in the same transaction as the rows it describes.
+@Component
+public class IOUChangeTracker {
+
+    static final int SLOTS = 16; // Rows the count is spread over, see IOUChangeCounter
+
+    private final IOUChangeCounterRepository counters;
+
+    @Autowired
+    public IOUChangeTracker(IOUChangeCounterRepository counters) {
+        this.counters = counters;
+    }
+
+    @EventListener(ApplicationReadyEvent.class) // Create the slots up front so writers only ever UPDATE them
+    public void createSlots() {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int checked = slot;
+            if (!ReplicaRoutingDataSource.onPrimary(() -> counters.existsById(checked))) { // Not the replica, which may not have caught up
+                try {
+                    counters.save(new IOUChangeCounter(slot, 0, Instant.now()));
+                } catch (DataIntegrityViolationException e) {
+                    // Another instance created it first
+                }
+            }
+        }
+    }
+
+    @EventListener // Synchronously, inside the writer's transaction: the count commits (or rolls back) together with the change
+    public void onIOUChanged(IOUChangedEvent event) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            touch();
+            return;
+        }
+        if (TransactionSynchronizationManager.hasResource(this)) {
+            return; // Already counted - one bump per transaction, however many IOUs it changes
+        }
+        TransactionSynchronizationManager.bindResource(this, Boolean.TRUE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                touch();
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResource(IOUChangeTracker.this);
+            }
+        });
+    }
+
+    @Transactional // Joins the caller's transaction, if there is one
+    public void touch() { // Also for changes that don't publish IOUChangedEvent, e.g. rebuilding the table from the event log
+        int slot = ThreadLocalRandom.current().nextInt(SLOTS);
+        Instant now = Instant.now();
+        if (counters.increment(slot, now) == 0) {
+            counters.save(new IOUChangeCounter(slot, 1, now)); // Slots not created yet, e.g. a write before startup finished
+        }
+    }
+
+    // Reads the table version and, unless unchanged says the client's copy is still current, runs the query in the same read-only
+    // transaction - so the version describes the rows returned, whichever database served them. Empty when unchanged
+    @Transactional(readOnly = true)
+    public <T> Optional<T> ifChanged(Predicate<IOUTableVersion> unchanged, Supplier<T> query) {
+        if (unchanged.test(counters.version())) {
+            return Optional.empty();
+        }
+        return Optional.of(query.get());
+    }
+
+    // For reads that have to pick their own route, like the cached lookups that load from the primary - in ifChanged() the
+    // version's query would already have put them on the replica. The version is read first, in its own transaction, so a change
+    // landing in between leaves the response with an already stale ETag, never a stale body under a new one
+    public <T> Optional<T> ifChangedSeparately(Predicate<IOUTableVersion> unchanged, Supplier<T> query) {
+        if (unchanged.test(counters.version())) {
+            return Optional.empty();
+        }
+        return Optional.of(query.get());
+    }
+}
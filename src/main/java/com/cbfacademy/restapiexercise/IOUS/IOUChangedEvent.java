@@ -0,0 +1,24 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.util.UUID;
+
+// Published by IOUService whenever an IOU is created, updated or deleted, so derived data (aggregates, caches...) can follow along.
+// Both sides are detached copies: previous is null for a create and current is null for a delete.
+public record IOUChangedEvent(IOU previous, IOU current) {
+
+    public static IOUChangedEvent created(IOU iou) {
+        return new IOUChangedEvent(null, new IOU(iou));
+    }
+
+    public static IOUChangedEvent updated(IOU previous, IOU current) {
+        return new IOUChangedEvent(new IOU(previous), new IOU(current));
+    }
+
+    public static IOUChangedEvent deleted(IOU iou) {
+        return new IOUChangedEvent(new IOU(iou), null);
+    }
+
+    public UUID id() { // The id of the IOU that changed
+        return current != null ? current.getId() : previous.getId();
+    }
+}
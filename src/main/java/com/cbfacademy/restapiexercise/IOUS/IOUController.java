@@ -1,62 +1,268 @@
 package com.cbfacademy.restapiexercise.IOUS;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.cbfacademy.restapiexercise.idempotency.IdempotencyKeyMismatchException;
+import com.cbfacademy.restapiexercise.idempotency.IdempotentIOUService;
+import com.cbfacademy.restapiexercise.writebehind.IOUWriteBehind;
+import com.cbfacademy.restapiexercise.writebehind.WriteQueueFullException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
 
 @RestController // Indicates that this class is a Spring REST controller, meaning it handles HTTP requests.
 @RequestMapping(path = "/api/ious") // (Sets the base URL path for this controller)
 public class IOUController { 
 
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor"; // Response header carrying the ?after= token for the next page
+    public static final String NDJSON_VALUE = "application/x-ndjson"; // One JSON document per line
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    public static final String IDEMPOTENT_REPLAYED_HEADER = "Idempotent-Replayed"; // Set on responses that repeat an earlier request's result
+    private static final int DEFAULT_PAGE_SIZE = 100; // Page size used when a client passes ?after= without ?limit=
+
     private final IOUService iouService; // This is a reference to the service layer that handles the business logic
+    private final IOUBatchService iouBatchService; // Bulk ingestion behind POST /api/ious/batch
+    private final IOUCaches iouCaches; // Caches in front of the by-id and by-borrower lookups
+    private final IOUExportService iouExportService; // CSV/NDJSON dumps behind GET /api/ious/export
+    private final ObjectMapper objectMapper; // Spring's configured JSON mapper, reused for the NDJSON stream
+    private final ObjectProvider<IOUWriteBehind> writeBehind; // Only there when ious.write-behind.enabled=true
+    private final IdempotentIOUService idempotentIOUService; // Idempotency-Key handling for POST /api/ious
+    private final IOUChangeTracker iouChangeTracker; // Versions the list responses for conditional GETs
 
     @Autowired 
-    public IOUController(IOUService iouService) { // dependency injection - Saying that the above IOUService iouService should be autowired/instansiated by Spring and injected into the below constructor when the application starts
+    public IOUController(IOUService iouService, IOUBatchService iouBatchService, IOUCaches iouCaches, IOUExportService iouExportService, ObjectMapper objectMapper,
+            ObjectProvider<IOUWriteBehind> writeBehind, IdempotentIOUService idempotentIOUService, IOUChangeTracker iouChangeTracker) { // dependency injection - Saying that the above IOUService iouService should be autowired/instansiated by Spring and injected into the below constructor when the application starts
         this.iouService = iouService; // **constructor for the iouController class. It accepts a IOUService object and assigns it to the iouService variable. This allows the controller to use the service to perform business logic.
+        this.iouBatchService = iouBatchService;
+        this.iouCaches = iouCaches;
+        this.iouExportService = iouExportService;
+        this.objectMapper = objectMapper;
+        this.writeBehind = writeBehind;
+        this.idempotentIOUService = idempotentIOUService;
+        this.iouChangeTracker = iouChangeTracker;
     }
 
     // Mapped to the base path (/api/ious) and handles requests without any specific ID. It retrieves all IOUs.
+    // Passing ?limit= (and ?after= from the X-Next-Cursor header of the previous response) returns one page at a time instead of the whole table.
+    // borrower, lender, from/to (ISO-8601, to is exclusive) and minAmount/maxAmount filter the IOUs in any combination; filtered results are always paged.
     @GetMapping // maps HTTP GET requests to this method. When someone sends a GET request to /api/ious, this method will be called. Retrieves and returns a list of all IOU objects.***
-    public List<IOU> getAllIOUs(@RequestParam(required = false) String borrower) { // method returns a list of all IOUs. It calls the getAllIOUs() method from IOUService to retrieve the list.
-        if (borrower !=null) { // If the borrower is provided (not null)
-            return iouService.getIOUsByBorrower(borrower); // return only IOUs that belong to this specific borrower
-        } else { // If the borrower is not provided (null)
-        return iouService.getAllIOUs(); // retrieves the list of ALL IOUs from the service and sends it back as the response in JSON format.
+    public ResponseEntity<List<IOU>> getAllIOUs(@RequestParam(required = false) String borrower, @RequestParam(required = false) String lender,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+            @RequestParam(required = false) BigDecimal minAmount, @RequestParam(required = false) BigDecimal maxAmount,
+            @RequestParam(required = false) Integer limit, @RequestParam(required = false) String after, ServletWebRequest request) { // method returns a list of all IOUs. It calls the getAllIOUs() method from IOUService to retrieve the list.
+        IOUFilter filter;
+        try {
+            filter = new IOUFilter(borrower, lender, from, to, minAmount, maxAmount);
+        } catch (IllegalArgumentException e) { // e.g. from after to
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+        boolean paged = limit != null || after != null;
+        if (filter.isBorrowerOnly() && !paged) { // If only the borrower is provided (not null)
+            return cachedListIfModified(request, () -> ResponseEntity.ok(iouService.getIOUsByBorrower(borrower))); // return only IOUs that belong to this specific borrower
+        }
+        return listIfModified(request, () -> {
+            if (paged || !filter.isEmpty()) { // If the client asked for a page, or filtered the IOUs
+                IOUPage page;
+                try {
+                    page = iouService.getIOUPage(filter, after == null ? null : IOUCursor.decode(after), limit == null ? DEFAULT_PAGE_SIZE : limit);
+                } catch (IllegalArgumentException e) { // Bad limit or a cursor we didn't issue
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+                }
+
+                ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+                if (page.hasNext()) {
+                    response.header(NEXT_CURSOR_HEADER, page.next().encode()); // No header means this was the last page
+                }
+                return response.body(page.items());
+            } else { // If no filter or page is provided
+            return ResponseEntity.ok(iouService.getAllIOUs()); // retrieves the list of ALL IOUs from the service and sends it back as the response in JSON format.
+            }
+        });
+    }
+
+    // Streams every IOU as newline-delimited JSON, writing each row as it is read so heap use stays flat however big the table gets
+    @GetMapping(path = "/stream", produces = NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAllIOUs() {
+        StreamingResponseBody body = outputStream -> {
+            try (SequenceWriter writer = objectMapper.writer().withRootValueSeparator("\n").writeValues(outputStream)) {
+                iouService.streamAllIOUs(iou -> {
+                    try {
+                        writer.write(iou);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e); // Client went away - abort the stream and release the cursor
+                    }
+                });
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_VALUE)).body(body);
+    }
+
+    // Nightly dump of IOUs as CSV or NDJSON, optionally limited to from <= dateTime < to. Rows are streamed from a database cursor
+    // straight to the response, gzipped when asked for with ?gzip=true or Accept-Encoding: gzip
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportIOUs(@RequestParam(defaultValue = "csv") String format,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+            @RequestParam(defaultValue = "false") boolean gzip, @RequestHeader(name = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        IOUExportService.Format exportFormat;
+        try {
+            exportFormat = IOUExportService.Format.parse(format);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+        if (from != null && to != null && !from.isBefore(to)) { // Checked here, once the body starts streaming it's too late for a 400
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "from must be before to");
+        }
+
+        boolean compress = gzip || (acceptEncoding != null && acceptEncoding.contains("gzip"));
+        StreamingResponseBody body = outputStream -> {
+            if (compress) {
+                try (GZIPOutputStream gzipped = new GZIPOutputStream(outputStream, 64 * 1024)) {
+                    iouExportService.export(exportFormat, from, to, gzipped);
+                }
+            } else {
+                iouExportService.export(exportFormat, from, to, outputStream);
+            }
+        };
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(exportFormat.contentType()))
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename("ious." + exportFormat.extension()).build().toString());
+        if (compress) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
         }
+        return response.body(body);
     }
 
     // Mapped to a path that includes an ID (/api/ious/{id}). It retrieves a specific IOU by its ID.
+    // The ETag is the IOU's version, so a client sending it back in If-None-Match gets a 304 with no body until the IOU changes.
+    // The IOU comes from the IOU_CACHE when it is there, in which case a 304 doesn't touch the database either
     @GetMapping(path = "/id/{id}") // maps HTTP GET requests to this method. When someone sends a GET request to /api/ious/{id}, this method will be called. Retrieves and returns a specific IOU object by its unique ID.***
-    public IOU getIOU(@PathVariable UUID id) { // @PathVariable UUID id annotation tells Spring to extract the id from the URL path and pass it as a parameter to the method. The method then calls iouService.getIOU(id) to fetch the IOU with the specified ID.
-        return iouService.getIOU(id).orElseThrow(NoSuchElementException::new); // ***The specific IOU object is returned as the HTTP response in JSON format. Or an exception is thrown if the IOU cannot be found by its ID.
+    public IOU getIOU(@PathVariable UUID id, ServletWebRequest request) { // @PathVariable UUID id annotation tells Spring to extract the id from the URL path and pass it as a parameter to the method. The method then calls iouService.getIOU(id) to fetch the IOU with the specified ID.
+        IOU iou = iouService.getIOU(id).orElseThrow(NoSuchElementException::new); // ***The specific IOU object is returned as the HTTP response in JSON format. Or an exception is thrown if the IOU cannot be found by its ID.
+        request.getResponse().setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue()); // Clients may keep it, but must revalidate
+        if (request.checkNotModified(Long.toString(iou.getVersion() == null ? 0 : iou.getVersion()))) {
+            return null; // 304 - Spring writes no body
+        }
+        return iou;
     }
 
     @GetMapping("/high") // Mapped to a path (/high). This then calls the getHighValueIOUs() method in the service layer to call the method in the repository and get the high value IOUs 
-    public List<IOU> getHighValueIOUs() {
-        return iouService.getHighValueIOUs();
+    public List<IOU> getHighValueIOUs(ServletWebRequest request) {
+        return listIfModified(request, iouService::getHighValueIOUs);
     }
 
     @GetMapping("/low") // Mapped to a path (/low). This then calls the getBelowOrEqualValueIOUs() method in the service layer to call the method in the repository and get the below value IOUs or equal to the average value
-    public List<IOU> getBelowOrEqualValueIOUs() {
-        return iouService.getBelowOrEqualValueIOUs();
+    public List<IOU> getBelowOrEqualValueIOUs(ServletWebRequest request) {
+        return listIfModified(request, iouService::getBelowOrEqualValueIOUs);
+    }
+
+    // List responses carry an ETag and Last-Modified from the persisted table version, read in the same transaction as the list
+    // itself. The ETag also hashes the path and the sorted query parameters, so two different queries never share one. Returns
+    // null when the client's copy is still current - the 304 has then been set up and the query never runs
+    private <T> T listIfModified(ServletWebRequest request, Supplier<T> query) {
+        request.getResponse().setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        return iouChangeTracker.ifChanged(version -> request.checkNotModified(listEtag(request, version), version.lastModified()), query).orElse(null);
+    }
+
+    // Same, for lists served from a cache: those load from the primary, so they can't share the version's (replica) transaction
+    private <T> T cachedListIfModified(ServletWebRequest request, Supplier<T> query) {
+        request.getResponse().setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        return iouChangeTracker.ifChangedSeparately(version -> request.checkNotModified(listEtag(request, version), version.lastModified()), query).orElse(null);
+    }
+
+    private static String listEtag(ServletWebRequest request, IOUTableVersion version) {
+        StringBuilder query = new StringBuilder(request.getRequest().getRequestURI());
+        new TreeMap<>(request.getParameterMap()).forEach((name, values) -> query.append('&').append(name).append('=').append(String.join(",", values)));
+        // The modification time as well as the count, so a table that was wiped and rebuilt can't repeat an old ETag
+        return version.changes() + "-" + Long.toString(version.lastModified(), 36) + "-" + Integer.toHexString(query.toString().hashCode());
+    }
+
+    @GetMapping("/cache/stats") // Hit, miss and eviction counts for the IOU caches
+    public Map<String, IOUCaches.Stats> getCacheStats() {
+        return iouCaches.stats();
     }
 
     // TO ADD A NEW IOU
     @PostMapping // maps HTTP POST requests to this method. When someone sends a POST request to /api/ious, this method will be called.
-    // method registers a new IOU
-    public void registerNewIOU (@RequestBody IOU iou) { // @RequestBody annotation tells Spring to take the JSON data sent in the request body and convert it into a IOU object.
-        iouService.createIOU(iou);
+    // method registers a new IOU and returns its id. With write-behind on, the IOU is only queued: the response is 202, and the Location
+    // header says where to check that it has reached the database. A full queue is a 503 - try again shortly.
+    // A client that may retry sends an Idempotency-Key header: a repeat of the request with the same key returns the id of the IOU the first one
+    // created (with Idempotent-Replayed: true) instead of creating another. Reusing a key for a different IOU is a 422.
+    public ResponseEntity<Map<String, UUID>> registerNewIOU (@RequestBody IOU iou, // @RequestBody annotation tells Spring to take the JSON data sent in the request body and convert it into a IOU object.
+            @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        IOUWriteBehind queue = writeBehind.getIfAvailable();
+        try {
+            UUID id;
+            boolean replayed = false;
+            if (idempotencyKey == null) {
+                id = queue != null ? queue.submit(iou) : iouService.createIOU(iou).getId();
+            } else {
+                IdempotentIOUService.Result result = queue != null
+                        ? idempotentIOUService.createIOU(idempotencyKey, iou, queue::prepare, queue::enqueue) // Queued once the key has committed
+                        : idempotentIOUService.createIOU(idempotencyKey, iou, newIOU -> iouService.createIOU(newIOU).getId());
+                id = result.id();
+                replayed = result.replayed();
+            }
+            ResponseEntity.BodyBuilder response = queue != null
+                    ? ResponseEntity.accepted().location(URI.create("/api/ious/write-behind/" + id))
+                    : ResponseEntity.ok();
+            if (replayed) {
+                response.header(IDEMPOTENT_REPLAYED_HEADER, "true");
+            }
+            return response.body(Map.of("id", id));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        } catch (IdempotencyKeyMismatchException e) {
+            throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, e.getMessage(), e);
+        } catch (WriteQueueFullException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+        }
+    }
+
+    // TO ADD MANY IOUS AT ONCE - accepts either a JSON array or newline-delimited JSON. The body is parsed one IOU at a time while it is
+    // being saved, so large uploads don't have to fit in memory. IOUs that can't be saved are listed in the response instead of failing the request.
+    @PostMapping(path = "/batch", consumes = { MediaType.APPLICATION_JSON_VALUE, NDJSON_VALUE })
+    public IOUBatchResult registerNewIOUs(InputStream body) throws IOException {
+        try (MappingIterator<IOU> ious = objectMapper.readerFor(IOU.class).readValues(body)) { // Iterates the elements of a top-level array, or each line of NDJSON
+            return iouBatchService.createIOUs(ious);
+        }
     }
 
     @PutMapping(path = "/{id}") // maps HTTP PUT requests for this method - for updating an existing IOU with a specified ID. 
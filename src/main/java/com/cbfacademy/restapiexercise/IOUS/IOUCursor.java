@@ -0,0 +1,39 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.UUID;
+
+// Position of the last IOU a client has seen when paging through /api/ious. Pages are ordered by (dateTime, id),
+// so the next page is simply every row that sorts after this pair - no OFFSET, so the database never re-reads skipped rows.
+// dateTime is null for an IOU created without one; those sort first, as they do in the database.
+public record IOUCursor(Instant dateTime, UUID id) {
+
+    private static final String SEPARATOR = "|";
+
+    public static IOUCursor of(IOU iou) { // Builds a cursor pointing at the given IOU
+        return new IOUCursor(iou.getDateTime(), iou.getId());
+    }
+
+    public String encode() { // Turns the cursor into an opaque, URL-safe token that clients pass back as ?after=
+        String raw = (dateTime == null ? "" : dateTime.toString()) + SEPARATOR + id; // Nothing before the separator for a null dateTime
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static IOUCursor decode(String token) throws IllegalArgumentException { // Reverses encode(), rejecting tokens we didn't issue
+        String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        int separator = raw.indexOf(SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalArgumentException("Malformed cursor: " + token);
+        }
+
+        try {
+            Instant dateTime = separator == 0 ? null : Instant.parse(raw.substring(0, separator));
+            return new IOUCursor(dateTime, UUID.fromString(raw.substring(separator + 1)));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Malformed cursor: " + token, e);
+        }
+    }
+}
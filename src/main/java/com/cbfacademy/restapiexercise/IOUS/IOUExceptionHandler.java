@@ -0,0 +1,52 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.util.NoSuchElementException;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ProblemDetail;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import com.cbfacademy.restapiexercise.sharding.ShardBucketMovingException;
+import com.cbfacademy.restapiexercise.sharding.ShardKeyChangeException;
+
+@RestControllerAdvice // Turns the exceptions IOUService documents into the matching HTTP status codes
+public class IOUExceptionHandler {
+
+    @ExceptionHandler(NoSuchElementException.class) // The IOU doesn't exist
+    public ProblemDetail handleNotFound(NoSuchElementException e) {
+        return ProblemDetail.forStatusAndDetail(HttpStatus.NOT_FOUND, e.getMessage() == null ? "IOU not found" : e.getMessage());
+    }
+
+    @ExceptionHandler(OptimisticLockingFailureException.class) // Somebody else changed the IOU first - the client should re-read it and try again
+    public ProblemDetail handleConflict(OptimisticLockingFailureException e) {
+        return ProblemDetail.forStatusAndDetail(HttpStatus.CONFLICT, e.getMessage());
+    }
+
+    // No database connection could be had in time, e.g. the connection bulkhead is full, or the write lost a lock wait or a
+    // deadlock - either way nothing was changed, so tell the client to back off briefly and retry
+    @ExceptionHandler({ CannotCreateTransactionException.class, DataAccessResourceFailureException.class, PessimisticLockingFailureException.class })
+    public ResponseEntity<ProblemDetail> handleUnavailable(RuntimeException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(ProblemDetail.forStatusAndDetail(HttpStatus.SERVICE_UNAVAILABLE, "The database is busy, please retry shortly"));
+    }
+
+    @ExceptionHandler(ShardBucketMovingException.class) // The IOU's shard is being rebalanced - writes to it pause for a few seconds
+    public ResponseEntity<ProblemDetail> handleMoving(ShardBucketMovingException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(ProblemDetail.forStatusAndDetail(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage()));
+    }
+
+    @ExceptionHandler(ShardKeyChangeException.class) // With sharding on, an update can't move an IOU to a borrower on another shard
+    public ProblemDetail handleShardKeyChange(ShardKeyChangeException e) {
+        return ProblemDetail.forStatusAndDetail(HttpStatus.BAD_REQUEST, e.getMessage());
+    }
+}
@@ -0,0 +1,235 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.cbfacademy.restapiexercise.sharding.ShardedIOURepository;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+// Writes IOUs straight from a forward-only JDBC cursor to an output stream, one row at a time. Nothing goes through JPA,
+// so no entities are created or attached to a persistence context, and memory use is the same for ten rows or ten million.
+@Service
+public class IOUExportService {
+
+    public enum Format {
+        CSV("text/csv", "csv"),
+        NDJSON(IOUController.NDJSON_VALUE, "ndjson");
+
+        private final String contentType;
+        private final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String contentType() {
+            return contentType;
+        }
+
+        public String extension() {
+            return extension;
+        }
+
+        public static Format parse(String format) throws IllegalArgumentException { // Case-insensitive, e.g. ?format=csv
+            try {
+                return valueOf(format.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unsupported export format: " + format + " (use csv or ndjson)", e);
+            }
+        }
+    }
+
+    static final String CSV_HEADER = "id,borrower,lender,amount,dateTime,version";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectProvider<ShardedIOURepository> shardedRepository; // when ious.sharding.enabled=true, the ious table lives on the shards
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    @Autowired
+    public IOUExportService(JdbcTemplate jdbcTemplate, ObjectProvider<ShardedIOURepository> shardedRepository) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.shardedRepository = shardedRepository;
+    }
+
+    // Exports every IOU with from <= dateTime < to (either bound may be null) in (dateTime, id) order, which walks idx_ious_date_time_id.
+    // The transaction keeps MySQL's server-side cursor (useCursorFetch=true) open while rows are fetched STREAM_FETCH_SIZE at a time
+    @Transactional(readOnly = true)
+    public long export(Format format, Instant from, Instant to, OutputStream out) throws IOException {
+        if (from != null && to != null && !from.isBefore(to)) {
+            throw new IllegalArgumentException("from must be before to");
+        }
+
+        ShardedIOURepository sharded = shardedRepository.getIfAvailable();
+        if (sharded != null) {
+            return exportSharded(sharded, format, from, to, out);
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT id, borrower, lender, amount, date_time, version FROM ious");
+        List<Object> args = new ArrayList<>();
+        if (from != null) {
+            sql.append(" WHERE date_time >= ?");
+            args.add(Timestamp.from(from));
+        }
+        if (to != null) {
+            sql.append(from == null ? " WHERE" : " AND").append(" date_time < ?");
+            args.add(Timestamp.from(to));
+        }
+        sql.append(" ORDER BY date_time, id");
+
+        RowWriter writer = format == Format.CSV ? new CsvRowWriter(out) : new NdjsonRowWriter(jsonFactory.createGenerator(out));
+        long[] rows = { 0 };
+        jdbcTemplate.query(connection -> {
+            var statement = connection.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(IOURepository.STREAM_FETCH_SIZE);
+            for (int i = 0; i < args.size(); i++) {
+                statement.setObject(i + 1, args.get(i));
+            }
+            return statement;
+        }, resultSet -> {
+            try {
+                writer.write(UuidColumns.read(resultSet.getObject(1)), resultSet.getString(2), resultSet.getString(3), resultSet.getBigDecimal(4),
+                        instant(resultSet.getTimestamp(5)), resultSet.getObject(6) == null ? null : resultSet.getLong(6));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Client went away - stop reading and release the cursor
+            }
+            rows[0]++;
+        });
+        writer.finish();
+        return rows[0];
+    }
+
+    // The shards' cursors merged into one (dateTime, id) ordered stream. Each shard reads its whole table, so from and to are applied here
+    private long exportSharded(ShardedIOURepository sharded, Format format, Instant from, Instant to, OutputStream out) throws IOException {
+        RowWriter writer = format == Format.CSV ? new CsvRowWriter(out) : new NdjsonRowWriter(jsonFactory.createGenerator(out));
+        long rows = 0;
+        try (Stream<IOU> ious = sharded.streamAll()) {
+            for (IOU iou : (Iterable<IOU>) ious::iterator) {
+                Instant dateTime = iou.getDateTime();
+                boolean inWindow = (from == null || (dateTime != null && !dateTime.isBefore(from))) && (to == null || (dateTime != null && dateTime.isBefore(to)));
+                if (!inWindow) {
+                    continue;
+                }
+                writer.write(iou.getId(), iou.getBorrower(), iou.getLender(), iou.getAmount(), dateTime, iou.getVersion());
+                rows++;
+            }
+        }
+        writer.finish();
+        return rows;
+    }
+
+    private static Instant instant(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toInstant();
+    }
+
+    private interface RowWriter {
+        void write(UUID id, String borrower, String lender, BigDecimal amount, Instant dateTime, Long version) throws IOException;
+
+        void finish() throws IOException; // Flushes buffered output, leaving the stream itself open for the caller
+    }
+
+    private static class CsvRowWriter implements RowWriter { // RFC 4180: fields with commas, quotes or line breaks are quoted
+
+        private final Writer out;
+
+        CsvRowWriter(OutputStream out) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+            this.out.write(CSV_HEADER);
+            this.out.write("\r\n");
+        }
+
+        @Override
+        public void write(UUID id, String borrower, String lender, BigDecimal amount, Instant dateTime, Long version) throws IOException {
+            out.write(String.valueOf(id));
+            out.write(',');
+            field(borrower);
+            out.write(',');
+            field(lender);
+            out.write(',');
+            out.write(amount == null ? "" : amount.toPlainString());
+            out.write(',');
+            out.write(dateTime == null ? "" : dateTime.toString());
+            out.write(',');
+            out.write(version == null ? "" : version.toString());
+            out.write("\r\n");
+        }
+
+        private void field(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                out.write(value);
+                return;
+            }
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static class NdjsonRowWriter implements RowWriter { // Same field names and formats as the IOU JSON the rest of the API returns
+
+        private final JsonGenerator json;
+
+        NdjsonRowWriter(JsonGenerator json) {
+            this.json = json;
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.setRootValueSeparator(null); // Rows are separated by the newline written after each one
+        }
+
+        @Override
+        public void write(UUID id, String borrower, String lender, BigDecimal amount, Instant dateTime, Long version) throws IOException {
+            json.writeStartObject();
+            json.writeStringField("id", id.toString());
+            json.writeStringField("borrower", borrower);
+            json.writeStringField("lender", lender);
+            json.writeFieldName("amount");
+            if (amount == null) {
+                json.writeNull();
+            } else {
+                json.writeNumber(amount);
+            }
+            json.writeStringField("dateTime", dateTime == null ? null : dateTime.toString());
+            json.writeFieldName("version");
+            if (version == null) {
+                json.writeNull();
+            } else {
+                json.writeNumber(version);
+            }
+            json.writeEndObject();
+            json.writeRaw('\n');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            json.close(); // Flushes without closing the response stream (AUTO_CLOSE_TARGET is off)
+        }
+    }
+}
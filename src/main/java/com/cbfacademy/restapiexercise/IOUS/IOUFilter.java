@@ -0,0 +1,64 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import org.springframework.data.jpa.domain.Specification;
+
+// Optional filters for GET /api/ious. Any field may be null, the ones that are set are ANDed together.
+// from is inclusive and to exclusive, minAmount and maxAmount are both inclusive.
+// Each combination is served by one of the indexes on the ious table: (borrower, dateTime), (lender, dateTime),
+// (dateTime, id) or (amount) - IOUQueryPlanTest checks that this stays true.
+public record IOUFilter(String borrower, String lender, Instant from, Instant to, BigDecimal minAmount, BigDecimal maxAmount) {
+
+    public static final IOUFilter NONE = new IOUFilter(null, null, null, null, null, null);
+
+    public IOUFilter {
+        if (from != null && to != null && !from.isBefore(to)) {
+            throw new IllegalArgumentException("from must be before to");
+        }
+        if (minAmount != null && maxAmount != null && minAmount.compareTo(maxAmount) > 0) {
+            throw new IllegalArgumentException("minAmount must not be greater than maxAmount");
+        }
+    }
+
+    public boolean isEmpty() {
+        return equals(NONE);
+    }
+
+    public boolean isBorrowerOnly() { // The one filter that has its own cached lookup
+        return borrower != null && equals(new IOUFilter(borrower, null, null, null, null, null));
+    }
+
+    Specification<IOU> toSpecification(IOUCursor after) { // The WHERE clause for this filter, continuing after the cursor when there is one
+        Specification<IOU> spec = Specification.where(null);
+        if (borrower != null) {
+            spec = spec.and((iou, query, cb) -> cb.equal(iou.get("borrower"), borrower));
+        }
+        if (lender != null) {
+            spec = spec.and((iou, query, cb) -> cb.equal(iou.get("lender"), lender));
+        }
+        if (from != null) {
+            spec = spec.and((iou, query, cb) -> cb.greaterThanOrEqualTo(iou.get("dateTime"), from));
+        }
+        if (to != null) {
+            spec = spec.and((iou, query, cb) -> cb.lessThan(iou.get("dateTime"), to));
+        }
+        if (minAmount != null) {
+            spec = spec.and((iou, query, cb) -> cb.greaterThanOrEqualTo(iou.get("amount"), minAmount));
+        }
+        if (maxAmount != null) {
+            spec = spec.and((iou, query, cb) -> cb.lessThanOrEqualTo(iou.get("amount"), maxAmount));
+        }
+        if (after != null && after.dateTime() == null) { // Same as IOURepository.findPageAfterUndated
+            spec = spec.and((iou, query, cb) -> cb.or(
+                    cb.and(cb.isNull(iou.get("dateTime")), cb.greaterThan(iou.get("id"), after.id())),
+                    cb.isNotNull(iou.get("dateTime"))));
+        } else if (after != null) { // Same keyset condition as IOURepository.findPageAfter
+            spec = spec.and((iou, query, cb) -> cb.or(
+                    cb.greaterThan(iou.get("dateTime"), after.dateTime()),
+                    cb.and(cb.equal(iou.get("dateTime"), after.dateTime()), cb.greaterThan(iou.get("id"), after.id()))));
+        }
+        return spec;
+    }
+}
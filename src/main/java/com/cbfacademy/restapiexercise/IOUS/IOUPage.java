@@ -0,0 +1,11 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.util.List;
+
+// One page of IOUs plus the cursor for the following page (null when this is the last page)
+public record IOUPage(List<IOU> items, IOUCursor next) {
+
+    public boolean hasNext() {
+        return next != null;
+    }
+}
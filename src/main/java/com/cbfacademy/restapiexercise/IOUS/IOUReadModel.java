@@ -0,0 +1,496 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+// Optional in-process copy of the ious table held column by column in primitive arrays, so /high, /low and the top debtor and
+// creditor reports are parallel scans over memory instead of queries. Amounts are whole cents, timestamps epoch microseconds and
+// borrower/lender small ints into a shared name dictionary. Each IOU costs 48 bytes of columns plus 8-16 bytes of id index,
+// about 60MB per million IOUs (more while the arrays have room to grow), plus roughly 100 bytes per distinct user name.
+// Loaded when the application is ready and reloaded every ious.read-model.reload-interval; until the first load finishes,
+// callers fall back to the database.
+@Component
+@ConditionalOnProperty(name = "ious.read-model.enabled", havingValue = "true")
+public class IOUReadModel implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(IOUReadModel.class);
+    private static final int CHUNK = 1 << 16; // Rows per parallel scan task
+    private static final long NULL = Long.MIN_VALUE; // Stands in for a null amount, dateTime or version
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Scans share it, applying a change takes it exclusively
+    private final ReentrantLock loadLock = new ReentrantLock(); // One (re)load at a time
+
+    private Columns columns = new Columns(16);
+    private boolean loaded; // false until the first load finishes, or after a change couldn't be applied
+    private List<IOUChangedEvent> pending; // Changes seen while a load is reading the table, null otherwise
+
+    @Autowired
+    public IOUReadModel(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true); // Keeps MySQL's server-side cursor open while the rows stream in
+    }
+
+    // Rebuilds the columns from the table without blocking readers or writers, then swaps them in and replays the changes
+    // that arrived meanwhile. Versions make the replay safe for changes the load had already seen
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelayString = "${ious.read-model.reload-interval:PT1H}", initialDelayString = "${ious.read-model.reload-interval:PT1H}")
+    public void load() {
+        loadLock.lock();
+        try {
+            long started = System.nanoTime();
+            lock.writeLock().lock();
+            try {
+                pending = new ArrayList<>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            Columns fresh = new Columns(Math.max(16, size()));
+            try {
+                transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+                    var statement = connection.prepareStatement("SELECT id, borrower, lender, amount, date_time, version FROM ious",
+                            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    statement.setFetchSize(IOURepository.STREAM_FETCH_SIZE);
+                    return statement;
+                }, resultSet -> {
+                    Timestamp dateTime = resultSet.getTimestamp(5);
+                    fresh.upsert(UuidColumns.read(resultSet.getObject(1)), resultSet.getString(2), resultSet.getString(3),
+                            toCents(resultSet.getBigDecimal(4)), dateTime == null ? NULL : toMicros(dateTime.toInstant()),
+                            resultSet.getObject(6) == null ? NULL : resultSet.getLong(6));
+                }));
+            } catch (RuntimeException e) { // e.g. the database is down - keep serving what we had, or fall back to the database
+                lock.writeLock().lock();
+                try {
+                    pending = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                log.error("Could not load the IOU read model", e);
+                return;
+            }
+
+            lock.writeLock().lock();
+            try {
+                columns = fresh;
+                loaded = true;
+                List<IOUChangedEvent> missed = pending;
+                pending = null;
+                missed.forEach(this::apply);
+                log.info("Loaded {} IOUs into the read model ({} MB) in {} ms", columns.size, footprintBytes() >> 20, (System.nanoTime() - started) / 1_000_000);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true) // After commit, like the other derived data
+    public void onIOUChanged(IOUChangedEvent event) {
+        lock.writeLock().lock();
+        try {
+            if (pending != null) {
+                pending.add(event); // Replayed on top of the table being loaded
+            }
+            if (loaded) {
+                apply(event);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isLoaded() {
+        lock.readLock().lock();
+        try {
+            return loaded;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return columns.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long footprintBytes() { // Heap held by the columns, index and name dictionary
+        lock.readLock().lock();
+        try {
+            return columns.footprintBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Same results as the database path in IOUService: IOUs with an amount above / at or below the average. Empty when not loaded
+    public Optional<List<IOU>> getHighValueIOUs() {
+        return scanAgainstAverage(true);
+    }
+
+    public Optional<List<IOU>> getBelowOrEqualValueIOUs() {
+        return scanAgainstAverage(false);
+    }
+
+    // Users with the biggest net debts (most negative net) or credits (most positive net), biggest first, as
+    // [user, borrowed, lent, net] totals over every IOU. Ties are broken by name. Empty when not loaded
+    public Optional<List<UserTotals>> getTopDebtors(int limit) {
+        return top(limit, true);
+    }
+
+    public Optional<List<UserTotals>> getTopCreditors(int limit) {
+        return top(limit, false);
+    }
+
+    public record UserTotals(String user, BigDecimal borrowed, BigDecimal lent, BigDecimal net) {
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("ious.read_model.rows", this, IOUReadModel::size).description("IOUs held in the in-memory read model").register(registry);
+        Gauge.builder("ious.read_model.bytes", this, IOUReadModel::footprintBytes).description("Heap used by the in-memory read model")
+                .baseUnit("bytes").register(registry);
+    }
+
+    private void apply(IOUChangedEvent event) { // Caller holds the write lock
+        try {
+            if (event.current() == null) {
+                columns.remove(event.previous().getId(), version(event.previous()));
+            } else {
+                IOU iou = event.current();
+                columns.upsert(iou.getId(), iou.getBorrower(), iou.getLender(), toCents(iou.getAmount()),
+                        iou.getDateTime() == null ? NULL : toMicros(iou.getDateTime()), version(iou));
+            }
+        } catch (ArithmeticException e) { // An amount too big for a long - serve from the database until the next reload
+            loaded = false;
+            log.error("Could not apply the change to IOU {} to the read model, falling back to the database", event.id(), e);
+        }
+    }
+
+    private Optional<List<IOU>> scanAgainstAverage(boolean above) {
+        lock.readLock().lock();
+        try {
+            if (!loaded) {
+                return Optional.empty();
+            }
+            Columns scanned = columns;
+            if (scanned.count == 0) {
+                return Optional.of(List.of()); // No IOUs means nothing is above or below the average
+            }
+            // amount > sum / count is tested as amount * count > sum, in 128 bits so nothing is rounded or overflows
+            long count = scanned.count;
+            long sum = scanned.sum;
+            return Optional.of(IntStream.range(0, chunks(scanned.size)).parallel()
+                    .mapToObj(chunk -> {
+                        List<IOU> matches = new ArrayList<>();
+                        for (int row = chunk * CHUNK, end = Math.min(scanned.size, row + CHUNK); row < end; row++) {
+                            long amount = scanned.amounts[row];
+                            if (amount != NULL && (compareProduct(amount, count, sum) > 0) == above) {
+                                matches.add(scanned.iou(row));
+                            }
+                        }
+                        return matches;
+                    })
+                    .flatMap(List::stream)
+                    .toList());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Optional<List<UserTotals>> top(int limit, boolean debtors) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        lock.readLock().lock();
+        try {
+            if (!loaded) {
+                return Optional.empty();
+            }
+            Columns scanned = columns;
+            int users = scanned.names.size();
+            long[][] totals = IntStream.range(0, chunks(scanned.size)).parallel() // [0] borrowed and [1] lent, in cents, per user id
+                    .mapToObj(chunk -> {
+                        long[][] partial = new long[2][users];
+                        for (int row = chunk * CHUNK, end = Math.min(scanned.size, row + CHUNK); row < end; row++) {
+                            long amount = scanned.amounts[row];
+                            if (amount == NULL) {
+                                continue;
+                            }
+                            if (scanned.borrowers[row] >= 0) {
+                                partial[0][scanned.borrowers[row]] += amount;
+                            }
+                            if (scanned.lenders[row] >= 0) {
+                                partial[1][scanned.lenders[row]] += amount;
+                            }
+                        }
+                        return partial;
+                    })
+                    .reduce(new long[2][users], (a, b) -> {
+                        long[][] merged = new long[2][users];
+                        for (int user = 0; user < users; user++) {
+                            merged[0][user] = a[0][user] + b[0][user];
+                            merged[1][user] = a[1][user] + b[1][user];
+                        }
+                        return merged;
+                    });
+
+            Comparator<Integer> biggestFirst = Comparator.comparingLong(user -> debtors ? totals[1][user] - totals[0][user] : totals[0][user] - totals[1][user]);
+            return Optional.of(IntStream.range(0, users)
+                    .filter(user -> debtors ? totals[1][user] < totals[0][user] : totals[1][user] > totals[0][user])
+                    .boxed()
+                    .sorted(biggestFirst.thenComparing(user -> scanned.names.get(user)))
+                    .limit(limit)
+                    .map(user -> new UserTotals(scanned.names.get(user), fromCents(totals[0][user]), fromCents(totals[1][user]),
+                            fromCents(totals[1][user] - totals[0][user])))
+                    .toList());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int chunks(int rows) {
+        return (rows + CHUNK - 1) / CHUNK;
+    }
+
+    static int compareProduct(long a, long b, long c) { // Compares a * b with c without overflowing
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        long cHigh = c >> 63; // c sign-extended to 128 bits
+        return high != cHigh ? Long.compare(high, cHigh) : Long.compareUnsigned(low, c);
+    }
+
+    private static long version(IOU iou) {
+        return iou.getVersion() == null ? NULL : iou.getVersion();
+    }
+
+    private static long toCents(BigDecimal amount) { // Rounded the way the database rounds on insert
+        return amount == null ? NULL : Cents.of(amount);
+    }
+
+    private static BigDecimal fromCents(long cents) {
+        return Cents.toAmount(cents);
+    }
+
+    private static long toMicros(Instant instant) { // Rounded to the microsecond like the datetime(6) column does
+        return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000L), (instant.getNano() + 500) / 1000);
+    }
+
+    private static Instant fromMicros(long micros) {
+        return Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000L), Math.floorMod(micros, 1_000_000L) * 1000);
+    }
+
+    // The columns themselves. Row i of every array is one IOU; deleting moves the last row into the gap so the rows stay dense.
+    // ids are found through an open-addressing hash table of row numbers (+1, so 0 means empty) with linear probing
+    private static final class Columns {
+
+        private int size;
+        private long[] idHigh;
+        private long[] idLow;
+        private long[] amounts;
+        private long[] times;
+        private long[] versions;
+        private int[] borrowers;
+        private int[] lenders;
+        private int[] index;
+
+        private long count; // IOUs with an amount, and the sum of those amounts in cents - the average behind /high and /low
+        private long sum;
+
+        private final Map<String, Integer> userIds = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        Columns(int capacity) {
+            idHigh = new long[capacity];
+            idLow = new long[capacity];
+            amounts = new long[capacity];
+            times = new long[capacity];
+            versions = new long[capacity];
+            borrowers = new int[capacity];
+            lenders = new int[capacity];
+            index = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        }
+
+        void upsert(UUID id, String borrower, String lender, long amount, long time, long version) {
+            int slot = slotOf(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            int row = index[slot] - 1;
+            if (row < 0) {
+                if (size == idHigh.length) {
+                    grow();
+                }
+                if ((size + 1) * 2 > index.length) {
+                    rehash(index.length * 2);
+                    slot = slotOf(id.getMostSignificantBits(), id.getLeastSignificantBits());
+                }
+                row = size++;
+                idHigh[row] = id.getMostSignificantBits();
+                idLow[row] = id.getLeastSignificantBits();
+                index[slot] = row + 1;
+            } else if (versions[row] > version) {
+                return; // A later version is already here - this change arrived out of order
+            } else {
+                untally(row);
+            }
+            amounts[row] = amount;
+            times[row] = time;
+            versions[row] = version;
+            borrowers[row] = userId(borrower);
+            lenders[row] = userId(lender);
+            if (amount != NULL) {
+                count++;
+                sum = Math.addExact(sum, amount);
+            }
+        }
+
+        void remove(UUID id, long version) {
+            int slot = slotOf(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            int row = index[slot] - 1;
+            if (row < 0 || versions[row] > version) {
+                return;
+            }
+            untally(row);
+            clearSlot(slot);
+            int last = --size;
+            if (row != last) { // Move the last row into the gap
+                idHigh[row] = idHigh[last];
+                idLow[row] = idLow[last];
+                amounts[row] = amounts[last];
+                times[row] = times[last];
+                versions[row] = versions[last];
+                borrowers[row] = borrowers[last];
+                lenders[row] = lenders[last];
+                index[slotOf(idHigh[row], idLow[row])] = row + 1;
+            }
+        }
+
+        IOU iou(int row) {
+            IOU iou = new IOU(name(borrowers[row]), name(lenders[row]), amounts[row] == NULL ? null : fromCents(amounts[row]),
+                    times[row] == NULL ? null : fromMicros(times[row]));
+            iou.setId(new UUID(idHigh[row], idLow[row]));
+            iou.setVersion(versions[row] == NULL ? null : versions[row]);
+            return iou;
+        }
+
+        long footprintBytes() {
+            long columns = 5L * 8 * idHigh.length + 2L * 4 * borrowers.length + 4L * index.length;
+            long dictionary = 0;
+            for (String name : names) {
+                dictionary += 100 + name.length(); // String, its byte[] and a HashMap entry, roughly
+            }
+            return columns + dictionary;
+        }
+
+        private void untally(int row) {
+            if (amounts[row] != NULL) {
+                count--;
+                sum -= amounts[row];
+            }
+        }
+
+        private String name(int userId) {
+            return userId < 0 ? null : names.get(userId);
+        }
+
+        private int userId(String name) {
+            if (name == null) {
+                return -1;
+            }
+            Integer id = userIds.get(name);
+            if (id == null) {
+                id = names.size();
+                names.add(name);
+                userIds.put(name, id);
+            }
+            return id;
+        }
+
+        private int slotOf(long high, long low) { // The slot holding this id, or the empty slot where it would go
+            int mask = index.length - 1;
+            int slot = hash(high, low) & mask;
+            while (index[slot] != 0) {
+                int row = index[slot] - 1;
+                if (idHigh[row] == high && idLow[row] == low) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void clearSlot(int slot) { // Backward-shift deletion, so probes never need tombstones
+            int mask = index.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (index[next] != 0) {
+                int row = index[next] - 1;
+                int home = hash(idHigh[row], idLow[row]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) { // Its home is at or before the hole, so it can move back into it
+                    index[hole] = index[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            index[hole] = 0;
+        }
+
+        private void grow() {
+            int capacity = idHigh.length + (idHigh.length >> 1);
+            idHigh = Arrays.copyOf(idHigh, capacity);
+            idLow = Arrays.copyOf(idLow, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            times = Arrays.copyOf(times, capacity);
+            versions = Arrays.copyOf(versions, capacity);
+            borrowers = Arrays.copyOf(borrowers, capacity);
+            lenders = Arrays.copyOf(lenders, capacity);
+        }
+
+        private void rehash(int slots) {
+            index = new int[slots];
+            for (int row = 0; row < size; row++) {
+                index[slotOf(idHigh[row], idLow[row])] = row + 1;
+            }
+        }
+
+        private static int hash(long high, long low) {
+            long mixed = (high ^ low) * 0x9E3779B97F4A7C15L;
+            return (int) (mixed >>> 32);
+        }
+    }
+}
@@ -1,21 +1,83 @@
 package com.cbfacademy.restapiexercise.IOUS;
 
+import java.math.BigDecimal;
+import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Stream;
 
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.ListCrudRepository;
 import org.springframework.stereotype.Repository;
 
+import jakarta.persistence.QueryHint;
+
 @Repository
-public interface IOURepository extends ListCrudRepository<IOU, UUID> {
-    
+public interface IOURepository extends ListCrudRepository<IOU, UUID>, JpaSpecificationExecutor<IOU> { // Specifications back the filtered GET /api/ious, see IOUFilter
+
+    int STREAM_FETCH_SIZE = 500; // Rows fetched per round-trip when streaming (MySQL needs useCursorFetch=true on the URL to honour it)
+
+    // The queries behind the GET endpoints select through this constructor expression instead of loading entities. The IOUs come back
+    // as plain objects that never enter the persistence context - no snapshot for dirty checking, nothing to flush - and are done with
+    // the database as soon as the query returns, so the connection goes back to the pool before the response is serialized
+    String SELECT_DETACHED = "SELECT new com.cbfacademy.restapiexercise.IOUS.IOU(i.id, i.borrower, i.lender, i.amount, i.dateTime, i.version) FROM IOU i";
+
+    @Query(SELECT_DETACHED)
+    List<IOU> findAllDetached();
+
+    @Query(SELECT_DETACHED + " WHERE i.id = :id")
+    Optional<IOU> findDetachedById(UUID id);
+
+    @Query(SELECT_DETACHED + " WHERE i.borrower = :borrower")
     List<IOU> findByBorrower(String borrower); // Returning a list of IOUs for each borrower
 
-    @Query(value = "SELECT * FROM ious WHERE amount > (SELECT AVG(amount) FROM ious)", nativeQuery = true)
-    List<IOU> findHighValueIOUs();
+    // The average is supplied by IOUAmountAggregate, so these are plain range scans on idx_ious_amount
+    @Query(SELECT_DETACHED + " WHERE i.amount > :amount")
+    List<IOU> findByAmountGreaterThan(BigDecimal amount);
+
+    @Query(SELECT_DETACHED + " WHERE i.amount <= :amount")
+    List<IOU> findByAmountLessThanEqual(BigDecimal amount);
+
+    // Count and sum of every amount - used to (re)build IOUAmountAggregate
+    @Query("SELECT new com.cbfacademy.restapiexercise.IOUS.IOUAmountTotals(COUNT(i), SUM(i.amount)) FROM IOU i WHERE i.amount IS NOT NULL")
+    IOUAmountTotals sumAmounts();
+
+    // Overwrites an IOU in one statement, but only if nobody has changed it since version was read. Returns the number of rows changed (0 or 1).
+    // COALESCE covers rows written before the version column existed. The persistence context is cleared afterwards so no stale copy survives
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("UPDATE IOU i SET i.borrower = :borrower, i.lender = :lender, i.amount = :amount, i.dateTime = :dateTime, i.version = COALESCE(i.version, 0) + 1 "
+            + "WHERE i.id = :id AND COALESCE(i.version, 0) = :version")
+    int updateIfVersionMatches(UUID id, long version, String borrower, String lender, BigDecimal amount, Instant dateTime);
+
+    // Deletes an IOU in one statement, but only if nobody has changed it since version was read. Returns the number of rows deleted (0 or 1)
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("DELETE FROM IOU i WHERE i.id = :id AND COALESCE(i.version, 0) = :version")
+    int deleteIfVersionMatches(UUID id, long version);
+
+    // First page of the keyset pagination - the oldest IOUs, ordered by (dateTime, id)
+    @Query(SELECT_DETACHED + " ORDER BY i.dateTime, i.id")
+    List<IOU> findFirstPage(Limit limit);
+
+    // Every following page starts strictly after the (dateTime, id) of the last row the client saw, so it is an index range scan rather than an OFFSET
+    @Query(SELECT_DETACHED + " WHERE i.dateTime > :dateTime OR (i.dateTime = :dateTime AND i.id > :id) ORDER BY i.dateTime, i.id")
+    List<IOU> findPageAfter(Instant dateTime, UUID id, Limit limit);
+
+    // The same after an IOU with no dateTime. Those sort first, so the page carries on through the rest of them by id, then every dated IOU
+    @Query(SELECT_DETACHED + " WHERE (i.dateTime IS NULL AND i.id > :id) OR i.dateTime IS NOT NULL ORDER BY i.dateTime, i.id")
+    List<IOU> findPageAfterUndated(UUID id, Limit limit);
 
-    @Query(value = "SELECT * FROM ious WHERE amount <= (SELECT AVG(amount) FROM ious)", nativeQuery = true)
-    List<IOU> findBelowOrEqualValueIOUs();
+    // Streams every IOU through a forward-only cursor instead of building one big list. Must be called inside a transaction and closed after use
+    @Query("SELECT i FROM IOU i ORDER BY i.dateTime, i.id")
+    @QueryHints({
+        @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "" + STREAM_FETCH_SIZE),
+        @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    Stream<IOU> streamAll();
 
 }
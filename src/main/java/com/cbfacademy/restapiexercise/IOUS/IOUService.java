@@ -4,61 +4,168 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.cbfacademy.restapiexercise.datasource.ReplicaRoutingDataSource;
+
+import jakarta.persistence.EntityManager;
+
+// Every method runs in a transaction that ends before the controller serializes the result (open-in-view is off). Reads are
+// read-only transactions: Hibernate skips flushing and dirty checking, and with ious.replica.enabled=true they go to the replica,
+// except the cached lookups, which load from the primary. The writes below override this with their own @Transactional
 @Service // Service component in Spring, containing business logic to define what should happen when certain actions are requested.
+@Transactional(readOnly = true)
 public class IOUService  {
 
+    public static final int MAX_PAGE_SIZE = 1000; // Upper bound on a single page so one request can't pull the whole table
+    private static final Sort PAGE_ORDER = Sort.by("dateTime", "id"); // Order of every page, matching IOUCursor
+
     private final IOURepository iouRepository; // will be used to interact with the database
+    private final EntityManager entityManager; // used to detach streamed IOUs so they don't pile up in the persistence context
+    private final IOUAmountAggregate amountAggregate; // running count/sum of amounts behind /high and /low
+    private final ApplicationEventPublisher eventPublisher; // tells derived data about every create/update/delete
+    private final ObjectProvider<IOUReadModel> readModel; // in-memory copy of the table, when ious.read-model.enabled=true
     
     @Autowired // Tells spring to automatically inject an instance of IOURepository into the service class when the application starts
-    public IOUService(IOURepository iouRepository) { // Constructor that accepts IOURepository object 
+    public IOUService(IOURepository iouRepository, EntityManager entityManager, IOUAmountAggregate amountAggregate, ApplicationEventPublisher eventPublisher, ObjectProvider<IOUReadModel> readModel) { // Constructor that accepts IOURepository object 
         this.iouRepository = iouRepository; // and assigns it to the iouRepository variable
+        this.entityManager = entityManager;
+        this.amountAggregate = amountAggregate;
+        this.eventPublisher = eventPublisher;
+        this.readModel = readModel;
     }
 
     public List<IOU> getAllIOUs() { // Return a list of all IOUs from the iouRepository
-        return iouRepository.findAll(); // Retrieves IOUs from the database and returns them as a list
+        return iouRepository.findAllDetached(); // Retrieves IOUs from the database and returns them as a list
+    }
+
+    public IOUPage getIOUPage(IOUCursor after, int limit) throws IllegalArgumentException { // Returns up to limit IOUs that come after the cursor (or the first page when it is null)
+        return getIOUPage(IOUFilter.NONE, after, limit);
+    }
+
+    // Same as above, but only IOUs matching the filter. Pages keep the (dateTime, id) order whatever the filter is
+    public IOUPage getIOUPage(IOUFilter filter, IOUCursor after, int limit) throws IllegalArgumentException {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        Limit lookAhead = Limit.of(limit + 1); // Fetch one extra row to find out whether another page exists without a COUNT query
+        List<IOU> rows;
+        if (!filter.isEmpty()) {
+            rows = iouRepository.findBy(filter.toSpecification(after), query -> query.sortBy(PAGE_ORDER).limit(lookAhead.max()).all());
+        } else if (after == null) {
+            rows = iouRepository.findFirstPage(lookAhead);
+        } else if (after.dateTime() == null) {
+            rows = iouRepository.findPageAfterUndated(after.id(), lookAhead);
+        } else {
+            rows = iouRepository.findPageAfter(after.dateTime(), after.id(), lookAhead);
+        }
+
+        if (rows.size() <= limit) {
+            return new IOUPage(rows, null); // Nothing beyond this page
+        }
+
+        List<IOU> items = rows.subList(0, limit);
+        return new IOUPage(items, IOUCursor.of(items.get(limit - 1)));
+    }
+
+    @Transactional(readOnly = true) // The underlying cursor only stays open for the lifetime of a transaction
+    public void streamAllIOUs(Consumer<IOU> consumer) { // Hands every IOU to the consumer one at a time, so memory use doesn't grow with the table
+        try (Stream<IOU> ious = iouRepository.streamAll()) {
+            ious.forEach(iou -> {
+                consumer.accept(iou);
+                entityManager.detach(iou); // Let the IOU be garbage collected once it has been written out
+            });
+        }
     }
 
+    // Served from the IOU_CACHE when possible. sync = true makes concurrent misses share one load, and lets an eviction
+    // for a write that commits mid-load wait for that load and discard it, so a stale row can't be put back afterwards.
+    // Loaded from the primary: a miss straight after a write's eviction would otherwise cache the replica's lagging copy
+    @Cacheable(cacheNames = IOUCaches.IOU_CACHE, sync = true)
     public Optional<IOU> getIOU(UUID id) throws NoSuchElementException  { // 
-        return iouRepository.findById(id);
+        return ReplicaRoutingDataSource.onPrimary(() -> iouRepository.findDetachedById(id));
     }
     
-    public void createIOU(IOU iou) throws IllegalArgumentException, OptimisticLockingFailureException { 
-        iouRepository.save(iou);
+    @Transactional
+    public IOU createIOU(IOU iou) throws IllegalArgumentException, OptimisticLockingFailureException { // Returns the saved IOU, with its new id
+        iou.setId(null); // Ids and versions are assigned by the database layer, never taken from the request
+        iou.setVersion(null);
+        IOU saved = iouRepository.save(iou);
+        eventPublisher.publishEvent(IOUChangedEvent.created(saved)); // Listeners see the change once the transaction commits
+        return saved;
     }
 
-    public IOU updateIOU(UUID id, IOU updatedIOU) throws NoSuchElementException {
-        if (iouRepository.existsById(id)) { // Checking if there is an pre-existing IOU with this ID, if there isn't the following line is
-            updatedIOU.setId(id); // updating the IOU with the new ID
-            return iouRepository.save(updatedIOU); // Saving the new ID to an updated IOU and returning the updated IOU
+    // Overwrites an IOU with a single conditional UPDATE. If updatedIOU carries the version the client last read, the update only goes
+    // through when nobody has changed the IOU since; otherwise the version read here is used, which still catches a write racing with this one
+    @Transactional
+    public IOU updateIOU(UUID id, IOU updatedIOU) throws NoSuchElementException, OptimisticLockingFailureException {
+        IOU previous = iouRepository.findById(id) // Loading the pre-existing IOU with this ID, the old values are needed to keep the aggregates right
+                .orElseThrow(() -> new NoSuchElementException("The following ID " + id + " does not exist"));
+
+        long expectedVersion = updatedIOU.getVersion() != null ? updatedIOU.getVersion() : currentVersion(previous);
+        int updated = iouRepository.updateIfVersionMatches(id, expectedVersion, updatedIOU.getBorrower(), updatedIOU.getLender(), updatedIOU.getAmount(), updatedIOU.getDateTime());
+        if (updated == 0) { // Someone else changed or deleted the IOU first
+            throw new OptimisticLockingFailureException("IOU " + id + " was modified concurrently (expected version " + expectedVersion + ")");
         }
 
-        return null; 
+        IOU saved = new IOU(updatedIOU);
+        saved.setId(id); // updating the IOU with the new ID
+        saved.setVersion(expectedVersion + 1);
+        eventPublisher.publishEvent(IOUChangedEvent.updated(previous, saved));
+        return saved;
     }
 
-    public void deleteIOU(UUID id) { // Method to delete a student from the database using their ID
-        boolean exists = iouRepository.existsById(id); // Checks whether a Id exists in the database 
-        if (!exists) { // If the Id does not exists the following code block is executed
-            throw new IllegalStateException("The following ID " + id + " does not exist"); // Throws an exception, signalling that the ID cannot be deleted because it doesn't exist in the database
+    @Transactional
+    public void deleteIOU(UUID id) throws NoSuchElementException, OptimisticLockingFailureException { // Method to delete a student from the database using their ID
+        IOU previous = iouRepository.findById(id) // Loads the IOU so we know what is being taken out of the aggregates
+                .orElseThrow(() -> new NoSuchElementException("The following ID " + id + " does not exist")); // Answered with a 404 by IOUExceptionHandler
+        if (iouRepository.deleteIfVersionMatches(id, currentVersion(previous)) == 0) { // A single DELETE that fails if the IOU changed after we read it
+            throw new OptimisticLockingFailureException("IOU " + id + " was modified concurrently");
         }
+        eventPublisher.publishEvent(IOUChangedEvent.deleted(previous));
+    }
 
-        iouRepository.deleteById(id); // If the ID exists, this line deletes it from the database
+    private static long currentVersion(IOU iou) { // Rows written before the version column existed have no version yet
+        return iou.getVersion() == null ? 0 : iou.getVersion();
     }
 
+    @Cacheable(cacheNames = IOUCaches.BORROWER_CACHE, sync = true) // From the primary, like getIOU
     public List<IOU> getIOUsByBorrower(String borrower) {
-        return iouRepository.findByBorrower(borrower);
+        return List.copyOf(ReplicaRoutingDataSource.onPrimary(() -> iouRepository.findByBorrower(borrower))); // Cached lists are shared between requests, so hand out a read-only copy
     }
 
-    public List<IOU> getHighValueIOUs() { // Method calls the findHighValueIOUs() method from the repository to get the high value IOUs
-        return iouRepository.findHighValueIOUs();
+    public List<IOU> getHighValueIOUs() { // Returns the IOUs above the average amount, using the running average instead of an AVG() scan
+        IOUReadModel model = readModel.getIfAvailable();
+        Optional<List<IOU>> inMemory = model == null ? Optional.empty() : model.getHighValueIOUs(); // Empty until the read model has loaded
+        if (inMemory.isPresent()) {
+            return inMemory.get();
+        }
+        return amountAggregate.average()
+                .map(iouRepository::findByAmountGreaterThan)
+                .orElse(List.of()); // No IOUs means nothing is above average
     }
 
-    public List<IOU> getBelowOrEqualValueIOUs() { // Method calls the findBelowValueIOUs() method from the repository to get the below value IOUs
-        return iouRepository.findBelowOrEqualValueIOUs();
+    public List<IOU> getBelowOrEqualValueIOUs() { // Returns the IOUs below or equal to the average amount
+        IOUReadModel model = readModel.getIfAvailable();
+        Optional<List<IOU>> inMemory = model == null ? Optional.empty() : model.getBelowOrEqualValueIOUs();
+        if (inMemory.isPresent()) {
+            return inMemory.get();
+        }
+        return amountAggregate.average()
+                .map(iouRepository::findByAmountLessThanEqual)
+                .orElse(List.of());
     }
     
 }
@@ -0,0 +1,15 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.time.Instant;
+
+// Version of the ious table as persisted in ious_changes: the number of committed changes and when the latest was made
+public record IOUTableVersion(Long changes, Instant modifiedAt) {
+
+    public IOUTableVersion {
+        changes = changes == null ? 0L : changes; // SUM() over an empty table is NULL
+    }
+
+    public long lastModified() { // Epoch millis, or -1 (no Last-Modified) before the first change
+        return modifiedAt == null ? -1 : modifiedAt.toEpochMilli();
+    }
+}
@@ -0,0 +1,33 @@
+package com.cbfacademy.restapiexercise.IOUS;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.UUID;
+
+// Converts IOU ids to and from the ious.id column for code that bypasses JPA. Hibernate stores UUIDs as binary(16) on MySQL
+// and as the native uuid type on H2, so plain JDBC has to know which one it is talking to.
+public final class UuidColumns {
+
+    private UuidColumns() {
+    }
+
+    public static UUID read(Object column) throws SQLException { // Whatever ResultSet.getObject returned for the id column
+        if (column instanceof UUID id) {
+            return id;
+        }
+        if (column instanceof byte[] bytes && bytes.length == 16) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            return new UUID(buffer.getLong(), buffer.getLong());
+        }
+        throw new SQLException("Unexpected id column value: " + column);
+    }
+
+    public static Object write(UUID id, Connection connection) throws SQLException { // The value to bind with setObject on this connection
+        String database = connection.getMetaData().getDatabaseProductName();
+        if (database.startsWith("MySQL") || database.startsWith("MariaDB")) {
+            return ByteBuffer.allocate(16).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).array();
+        }
+        return id;
+    }
+}
@@ -2,8 +2,14 @@ package com.cbfacademy.restapiexercise;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.context.annotation.ImportRuntimeHints;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
+@EnableCaching
+@ImportRuntimeHints(RestApiRuntimeHints.class)
 public class RestApiExerciseApplication {
 
 	public static void main(String[] args) {
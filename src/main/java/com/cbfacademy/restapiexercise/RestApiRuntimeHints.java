@@ -0,0 +1,38 @@
+package com.cbfacademy.restapiexercise;
+
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountTotals;
+import com.cbfacademy.restapiexercise.IOUS.IOUBatchResult;
+import com.cbfacademy.restapiexercise.IOUS.IOUPage;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUTableVersion;
+import com.cbfacademy.restapiexercise.IOUS.UuidV7Generator;
+import com.cbfacademy.restapiexercise.eventlog.IOUEvent;
+import com.cbfacademy.restapiexercise.settlements.PairTotal;
+
+// Reflection the AOT processing can't see for itself, for the native image (./mvnw -P native native:compile). Spring's AOT
+// step already covers the beans, the JPA entities, the Spring Data repositories and the types controllers take and return.
+public class RestApiRuntimeHints implements RuntimeHintsRegistrar {
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        // JPQL "SELECT new ..." constructor expressions, looked up by name when Hibernate builds the query
+        for (Class<?> type : new Class<?>[] { IOU.class, IOUAmountTotals.class, IOUTableVersion.class, PairTotal.class }) {
+            hints.reflection().registerType(type, MemberCategory.INVOKE_DECLARED_CONSTRUCTORS);
+        }
+        // Created by Hibernate from the @UuidV7 annotation
+        hints.reflection().registerType(UuidV7Generator.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+        // Its default methods are called through the repository proxy Spring Data's AOT step registers
+        hints.reflection().registerType(IOURepository.class, MemberCategory.INVOKE_PUBLIC_METHODS);
+
+        // Written and read with the ObjectMapper directly rather than through a controller's signature: the NDJSON stream
+        // and batch upload, the event log export and the write-behind rejected file
+        new BindingReflectionHintsRegistrar().registerReflectionHints(hints.reflection(),
+                IOU.class, IOUPage.class, IOUBatchResult.class, IOUEvent.class);
+    }
+}
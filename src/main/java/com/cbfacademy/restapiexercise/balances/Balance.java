@@ -0,0 +1,63 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Objects;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Table;
+
+@Entity // Total that one borrower owes one lender across all of their IOUs, kept up to date as IOUs change
+@Table(name = "balances")
+@IdClass(Balance.Key.class) // The (borrower, lender) pair is the primary key, so looking a pair up is a single index probe
+public class Balance {
+
+    @Id
+    private String borrower;
+
+    @Id
+    private String lender;
+
+    private BigDecimal amount;
+
+    public Balance() {
+    }
+
+    public String getBorrower() {
+        return borrower;
+    }
+
+    public String getLender() {
+        return lender;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public static class Key implements Serializable { // Composite primary key of the balances table
+
+        private String borrower;
+        private String lender;
+
+        public Key() {
+        }
+
+        public Key(String borrower, String lender) {
+            this.borrower = borrower;
+            this.lender = lender;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && Objects.equals(borrower, key.borrower) && Objects.equals(lender, key.lender);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(borrower, lender);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+@RestController
+@RequestMapping(path = "/api/balances")
+public class BalanceController {
+
+    private final BalanceService balanceService;
+
+    @Autowired
+    public BalanceController(BalanceService balanceService) {
+        this.balanceService = balanceService;
+    }
+
+    @GetMapping(path = "/top-debtors") // The users who owe the most overall, biggest net debt first
+    public List<UserBalanceSummary> getTopDebtors(@RequestParam(defaultValue = "10") int limit) {
+        try {
+            return balanceService.getTopDebtors(limit);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    @GetMapping(path = "/top-creditors") // The users owed the most overall, biggest net credit first
+    public List<UserBalanceSummary> getTopCreditors(@RequestParam(defaultValue = "10") int limit) {
+        try {
+            return balanceService.getTopCreditors(limit);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    @GetMapping(path = "/{user}") // Totals borrowed and lent by one user
+    public UserBalanceSummary getUserBalance(@PathVariable String user) {
+        return balanceService.getUserBalance(user);
+    }
+
+    @GetMapping(path = "/{a}/{b}") // What a and b owe each other
+    public PairBalance getPairBalance(@PathVariable String a, @PathVariable String b) {
+        return balanceService.getPairBalance(a, b);
+    }
+
+    @PostMapping(path = "/rebuild") // Recomputes every balance from the ious table
+    public void rebuild() {
+        try {
+            balanceService.rebuild();
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+    }
+}
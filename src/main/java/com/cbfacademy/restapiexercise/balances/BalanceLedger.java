@@ -0,0 +1,83 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import java.math.BigDecimal;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUChangedEvent;
+
+// Keeps the balances and user_balances tables in step with the ious table
+@Component
+public class BalanceLedger {
+
+    // Case-insensitive first, like MySQL's default collation, so "alice" and "Alice" - one row there - sort together
+    private static final Comparator<String> NAME_ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private final BalanceRepository balanceRepository;
+    private final UserBalanceRepository userBalanceRepository;
+
+    @Autowired
+    public BalanceLedger(BalanceRepository balanceRepository, UserBalanceRepository userBalanceRepository) {
+        this.balanceRepository = balanceRepository;
+        this.userBalanceRepository = userBalanceRepository;
+    }
+
+    // Runs inside the IOU write's transaction, so the IOU and its balances commit or roll back together. The rows are upserted
+    // in one fixed order - pairs, then users, each sorted by name - so two writes touching the same people (A owes B while B owes
+    // A, say) take the row locks in the same order and queue behind each other instead of deadlocking
+    @EventListener
+    public void onIOUChanged(IOUChangedEvent event) {
+        Map<Pair, BigDecimal> pairs = new TreeMap<>();
+        Map<String, UserDelta> users = new TreeMap<>(NAME_ORDER);
+        if (event.previous() != null) {
+            collect(event.previous(), -1, pairs, users); // Take the old IOU out...
+        }
+        if (event.current() != null) {
+            collect(event.current(), 1, pairs, users); // ...and put the new one in
+        }
+
+        pairs.forEach((pair, delta) -> {
+            if (delta.signum() != 0) { // An update that kept the pair and amount leaves the row - and its lock - alone
+                balanceRepository.addToBalance(pair.borrower(), pair.lender(), delta);
+            }
+        });
+        users.forEach((name, delta) -> {
+            if (delta.borrowed.signum() != 0 || delta.lent.signum() != 0) {
+                userBalanceRepository.addToUserBalance(name, delta.borrowed, delta.lent);
+            }
+        });
+    }
+
+    private static void collect(IOU iou, int sign, Map<Pair, BigDecimal> pairs, Map<String, UserDelta> users) {
+        if (iou.getBorrower() == null || iou.getLender() == null || iou.getAmount() == null) {
+            return; // Incomplete IOUs don't count towards anyone's balance
+        }
+
+        BigDecimal delta = sign < 0 ? iou.getAmount().negate() : iou.getAmount();
+        pairs.merge(new Pair(iou.getBorrower(), iou.getLender()), delta, BigDecimal::add);
+        UserDelta borrower = users.computeIfAbsent(iou.getBorrower(), name -> new UserDelta());
+        borrower.borrowed = borrower.borrowed.add(delta);
+        UserDelta lender = users.computeIfAbsent(iou.getLender(), name -> new UserDelta());
+        lender.lent = lender.lent.add(delta);
+    }
+
+    private record Pair(String borrower, String lender) implements Comparable<Pair> {
+
+        @Override
+        public int compareTo(Pair other) { // The order of the balances primary key
+            int byBorrower = NAME_ORDER.compare(borrower, other.borrower);
+            return byBorrower != 0 ? byBorrower : NAME_ORDER.compare(lender, other.lender);
+        }
+    }
+
+    private static final class UserDelta {
+        private BigDecimal borrowed = BigDecimal.ZERO;
+        private BigDecimal lent = BigDecimal.ZERO;
+    }
+}
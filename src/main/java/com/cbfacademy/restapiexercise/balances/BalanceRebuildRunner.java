@@ -0,0 +1,25 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+// Backfills the balance tables at startup when run with --ious.balances.rebuild-on-startup=true
+@Component
+@ConditionalOnProperty(name = "ious.balances.rebuild-on-startup", havingValue = "true")
+public class BalanceRebuildRunner implements ApplicationRunner {
+
+    private final BalanceService balanceService;
+
+    @Autowired
+    public BalanceRebuildRunner(BalanceService balanceService) {
+        this.balanceService = balanceService;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        balanceService.rebuild();
+    }
+}
@@ -0,0 +1,26 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import java.math.BigDecimal;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.ListCrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface BalanceRepository extends ListCrudRepository<Balance, Balance.Key> {
+
+    // Adds delta (which may be negative) to what borrower owes lender, creating the row on first use. A single atomic statement, so concurrent IOUs for the same pair can't lose updates
+    @Modifying
+    @Query(value = "INSERT INTO balances (borrower, lender, amount) VALUES (:borrower, :lender, :delta) ON DUPLICATE KEY UPDATE amount = amount + :delta", nativeQuery = true)
+    void addToBalance(String borrower, String lender, BigDecimal delta);
+
+    @Modifying(flushAutomatically = true) // Pending IOU changes must reach the table before it is re-read
+    @Query(value = "DELETE FROM balances", nativeQuery = true)
+    void deleteAllBalances();
+
+    // Recomputes every (borrower, lender) total straight from the ious table
+    @Modifying(clearAutomatically = true)
+    @Query(value = "INSERT INTO balances (borrower, lender, amount) SELECT borrower, lender, SUM(amount) FROM ious WHERE borrower IS NOT NULL AND lender IS NOT NULL AND amount IS NOT NULL GROUP BY borrower, lender", nativeQuery = true)
+    int rebuildBalances();
+}
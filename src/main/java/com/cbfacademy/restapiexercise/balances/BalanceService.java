@@ -0,0 +1,102 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.cbfacademy.restapiexercise.IOUS.IOUReadModel;
+
+@Service // Reads the materialised balances - every lookup is a primary key probe, however many IOUs exist
+public class BalanceService {
+
+    public static final int MAX_TOP = 1000; // Longest top debtors/creditors list one request can ask for
+    private static final Logger log = LoggerFactory.getLogger(BalanceService.class);
+
+    private final BalanceRepository balanceRepository;
+    private final UserBalanceRepository userBalanceRepository;
+    private final ObjectProvider<IOUReadModel> readModel; // in-memory copy of the ious table, when ious.read-model.enabled=true
+    private final boolean sharded; // ious.sharding.enabled - the ious table is then spread over other databases
+
+    @Autowired
+    public BalanceService(BalanceRepository balanceRepository, UserBalanceRepository userBalanceRepository, ObjectProvider<IOUReadModel> readModel,
+            @Value("${ious.sharding.enabled:false}") boolean sharded) {
+        this.balanceRepository = balanceRepository;
+        this.userBalanceRepository = userBalanceRepository;
+        this.readModel = readModel;
+        this.sharded = sharded;
+    }
+
+    public UserBalanceSummary getUserBalance(String user) { // Users without any IOUs simply have zero balances
+        return userBalanceRepository.findById(user)
+                .map(balance -> new UserBalanceSummary(user, balance.getBorrowed(), balance.getLent(), balance.getLent().subtract(balance.getBorrowed())))
+                .orElse(new UserBalanceSummary(user, BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO));
+    }
+
+    public PairBalance getPairBalance(String a, String b) {
+        BigDecimal aOwesB = owed(a, b);
+        BigDecimal bOwesA = owed(b, a);
+        return new PairBalance(a, b, aOwesB, bOwesA, aOwesB.subtract(bOwesA));
+    }
+
+    // The users with the biggest net debts, biggest first. Scanned from the in-memory read model when it is on and loaded,
+    // otherwise sorted out of user_balances
+    public List<UserBalanceSummary> getTopDebtors(int limit) throws IllegalArgumentException {
+        checkTopLimit(limit);
+        IOUReadModel model = readModel.getIfAvailable();
+        Optional<List<IOUReadModel.UserTotals>> inMemory = model == null ? Optional.empty() : model.getTopDebtors(limit);
+        if (inMemory.isPresent()) {
+            return inMemory.get().stream().map(BalanceService::summary).toList();
+        }
+        return userBalanceRepository.findTopDebtors(limit).stream().map(BalanceService::summary).toList();
+    }
+
+    public List<UserBalanceSummary> getTopCreditors(int limit) throws IllegalArgumentException { // The users owed the most, biggest first
+        checkTopLimit(limit);
+        IOUReadModel model = readModel.getIfAvailable();
+        Optional<List<IOUReadModel.UserTotals>> inMemory = model == null ? Optional.empty() : model.getTopCreditors(limit);
+        if (inMemory.isPresent()) {
+            return inMemory.get().stream().map(BalanceService::summary).toList();
+        }
+        return userBalanceRepository.findTopCreditors(limit).stream().map(BalanceService::summary).toList();
+    }
+
+    @Transactional // Rebuilds both tables from the ious table, e.g. after a bulk import or when they are first introduced. Best run while writes are quiet
+    public void rebuild() throws IllegalStateException {
+        if (sharded) { // The rebuild queries join the ious table in this database, which is empty when the IOUs are on shards
+            throw new IllegalStateException("Balances can't be rebuilt while ious.sharding.enabled=true");
+        }
+        balanceRepository.deleteAllBalances();
+        userBalanceRepository.deleteAllUserBalances();
+        int pairs = balanceRepository.rebuildBalances();
+        int users = userBalanceRepository.rebuildUserBalances();
+        log.info("Rebuilt balances for {} borrower/lender pairs and {} users", pairs, users);
+    }
+
+    private static void checkTopLimit(int limit) {
+        if (limit < 1 || limit > MAX_TOP) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_TOP);
+        }
+    }
+
+    private static UserBalanceSummary summary(UserBalance balance) {
+        return new UserBalanceSummary(balance.getName(), balance.getBorrowed(), balance.getLent(), balance.getLent().subtract(balance.getBorrowed()));
+    }
+
+    private static UserBalanceSummary summary(IOUReadModel.UserTotals totals) {
+        return new UserBalanceSummary(totals.user(), totals.borrowed(), totals.lent(), totals.net());
+    }
+
+    private BigDecimal owed(String borrower, String lender) {
+        return balanceRepository.findById(new Balance.Key(borrower, lender))
+                .map(Balance::getAmount)
+                .orElse(BigDecimal.ZERO);
+    }
+}
@@ -0,0 +1,7 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import java.math.BigDecimal;
+
+// What two users owe each other. A positive net means a owes b, a negative one means b owes a
+public record PairBalance(String a, String b, BigDecimal aOwesB, BigDecimal bOwesA, BigDecimal net) {
+}
@@ -0,0 +1,33 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import java.math.BigDecimal;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+@Entity // How much one user has borrowed and lent in total, kept up to date as IOUs change
+@Table(name = "user_balances")
+public class UserBalance {
+
+    @Id
+    private String name;
+
+    private BigDecimal borrowed;
+    private BigDecimal lent;
+
+    public UserBalance() {
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public BigDecimal getBorrowed() {
+        return borrowed;
+    }
+
+    public BigDecimal getLent() {
+        return lent;
+    }
+}
@@ -0,0 +1,36 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.ListCrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface UserBalanceRepository extends ListCrudRepository<UserBalance, String> {
+
+    // Adds to a user's borrowed and lent totals, creating the row on first use
+    @Modifying
+    @Query(value = "INSERT INTO user_balances (name, borrowed, lent) VALUES (:name, :borrowed, :lent) ON DUPLICATE KEY UPDATE borrowed = borrowed + :borrowed, lent = lent + :lent", nativeQuery = true)
+    void addToUserBalance(String name, BigDecimal borrowed, BigDecimal lent);
+
+    @Modifying
+    @Query(value = "DELETE FROM user_balances", nativeQuery = true)
+    void deleteAllUserBalances();
+
+    // Recomputes every user's totals from the (already rebuilt) balances table
+    @Modifying(clearAutomatically = true)
+    @Query(value = "INSERT INTO user_balances (name, borrowed, lent) SELECT name, SUM(borrowed), SUM(lent) FROM ("
+            + "SELECT borrower AS name, amount AS borrowed, 0 AS lent FROM balances "
+            + "UNION ALL SELECT lender AS name, 0 AS borrowed, amount AS lent FROM balances) totals GROUP BY name", nativeQuery = true)
+    int rebuildUserBalances();
+
+    // Users who owe the most overall (most negative lent - borrowed) - the fallback for the top debtors report when the read model is off
+    @Query(value = "SELECT * FROM user_balances WHERE lent < borrowed ORDER BY lent - borrowed, name LIMIT :limit", nativeQuery = true)
+    List<UserBalance> findTopDebtors(int limit);
+
+    @Query(value = "SELECT * FROM user_balances WHERE lent > borrowed ORDER BY borrowed - lent, name LIMIT :limit", nativeQuery = true)
+    List<UserBalance> findTopCreditors(int limit);
+}
@@ -0,0 +1,7 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import java.math.BigDecimal;
+
+// A user's totals across all IOUs. A positive net means the user is owed money overall, a negative one means they owe it
+public record UserBalanceSummary(String user, BigDecimal borrowed, BigDecimal lent, BigDecimal net) {
+}
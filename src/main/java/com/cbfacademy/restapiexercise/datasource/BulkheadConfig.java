@@ -0,0 +1,58 @@
+package com.cbfacademy.restapiexercise.datasource;
+
+import java.time.Duration;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+// Wraps each connection pool in a BulkheadDataSource (ious.bulkhead.enabled, on by default) - with replica routing on, the
+// primary and the replica get one each. Sized to the Hikari pool unless ious.bulkhead.max-concurrent says otherwise.
+@Configuration
+@ConditionalOnProperty(name = "ious.bulkhead.enabled", havingValue = "true", matchIfMissing = true)
+public class BulkheadConfig {
+
+    @Bean
+    public static BeanPostProcessor connectionBulkhead(Environment environment) { // static, so it is registered before the DataSource is created
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof DataSource dataSource) || bean instanceof DelegatingDataSource || bean instanceof AbstractRoutingDataSource) {
+                    return bean; // Already a bulkhead, or in front of pools that get their own
+                }
+
+                int poolSize = dataSource instanceof HikariDataSource hikari ? hikari.getMaximumPoolSize()
+                        : environment.getProperty("spring.datasource.hikari.maximum-pool-size", Integer.class, 10);
+                return new BulkheadDataSource(dataSource,
+                        environment.getProperty("ious.bulkhead.max-concurrent", Integer.class, poolSize),
+                        environment.getProperty("ious.bulkhead.max-waiting", Integer.class, 1000),
+                        environment.getProperty("ious.bulkhead.acquire-timeout", Duration.class, Duration.ofSeconds(5)));
+            }
+        };
+    }
+
+    @Bean
+    public MeterBinder connectionBulkheadMetrics(Map<String, DataSource> dataSources) { // Sits next to Boot's hikaricp_connections_* gauges
+        return registry -> dataSources.forEach((name, dataSource) -> {
+            if (dataSource instanceof BulkheadDataSource bulkhead) {
+                String prefix = name.equals("replicaDataSource") ? "ious.replica.bulkhead" : "ious.bulkhead"; // The replica's, when replica routing is on
+                Gauge.builder(prefix + ".active", bulkhead, BulkheadDataSource::getActive)
+                        .description("Connections currently held through the bulkhead").register(registry);
+                Gauge.builder(prefix + ".waiting", bulkhead, BulkheadDataSource::getWaiting)
+                        .description("Callers queued for a connection").register(registry);
+            }
+        });
+    }
+}
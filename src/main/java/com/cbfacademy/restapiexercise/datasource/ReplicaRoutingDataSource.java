@@ -0,0 +1,60 @@
+package com.cbfacademy.restapiexercise.datasource;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+// Sends connections for read-only transactions to the replica and everything else to the primary. The decision is made when a
+// connection is first needed, so this must sit behind a LazyConnectionDataSourceProxy: without it the transaction manager
+// fetches the connection before the transaction is marked read-only, and every transaction would go to the primary.
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final ThreadLocal<Boolean> pinnedToPrimary = new ThreadLocal<>(); // Set for requests from a client that has just written
+
+    public enum Route {
+        PRIMARY, REPLICA
+    }
+
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica) {
+        setTargetDataSources(Map.of(Route.PRIMARY, primary, Route.REPLICA, replica));
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+    }
+
+    public static void pinToPrimary() { // Until clearPin(), even read-only transactions on this thread go to the primary
+        pinnedToPrimary.set(Boolean.TRUE);
+    }
+
+    public static void clearPin() {
+        pinnedToPrimary.remove();
+    }
+
+    // Runs the reads against the primary, whatever the transaction says. For results that outlive the request - cached, or folded
+    // into running totals - where a lagging replica's answer would stick around. The route is picked when a transaction first
+    // uses its connection, so call this before anything else in the transaction has queried the database
+    public static <T> T onPrimary(Supplier<T> reads) {
+        Boolean previous = pinnedToPrimary.get();
+        pinnedToPrimary.set(Boolean.TRUE);
+        try {
+            return reads.get();
+        } finally {
+            if (previous == null) { // Leaves a pin set by ReadYourWritesFilter in place
+                pinnedToPrimary.remove();
+            }
+        }
+    }
+
+    public static Route currentRoute() {
+        boolean readOnly = TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+        return readOnly && pinnedToPrimary.get() == null ? Route.REPLICA : Route.PRIMARY;
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return currentRoute();
+    }
+}
@@ -0,0 +1,87 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.cbfacademy.restapiexercise.IOUS.IOUController;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+@RestController
+@RequestMapping(path = "/api/events")
+@ConditionalOnProperty(name = "ious.event-log.enabled", havingValue = "true", matchIfMissing = true)
+public class EventLogController {
+
+    static final int DEFAULT_LIMIT = 1000;
+    static final int MAX_LIMIT = 10_000;
+
+    private final IOUEventLog eventLog;
+    private final IOUSnapshots snapshots;
+    private final IOUEventLogRebuilder rebuilder;
+    private final ObjectMapper objectMapper;
+    private final boolean rebuildEnabled; // The rebuild replaces the whole ious table, so it is off unless an operator turns it on
+
+    @Autowired
+    public EventLogController(IOUEventLog eventLog, IOUSnapshots snapshots, IOUEventLogRebuilder rebuilder, ObjectMapper objectMapper,
+            @Value("${ious.event-log.rebuild-endpoint.enabled:false}") boolean rebuildEnabled) {
+        this.eventLog = eventLog;
+        this.snapshots = snapshots;
+        this.rebuilder = rebuilder;
+        this.objectMapper = objectMapper;
+        this.rebuildEnabled = rebuildEnabled;
+    }
+
+    // Events with a sequence above ?after=, oldest first, one JSON object per line. Poll again with the last sequence seen to follow the log
+    @GetMapping(produces = IOUController.NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> getEvents(@RequestParam(defaultValue = "0") long after,
+            @RequestParam(defaultValue = "" + DEFAULT_LIMIT) int limit) {
+        if (after < 0 || limit < 1 || limit > MAX_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "after must be 0 or more and limit between 1 and " + MAX_LIMIT);
+        }
+        StreamingResponseBody body = outputStream -> {
+            try (SequenceWriter writer = objectMapper.writer().withRootValueSeparator("\n").writeValues(outputStream)) {
+                int[] written = { 0 };
+                eventLog.read(after + 1, event -> {
+                    try {
+                        writer.write(event);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e); // Client went away - stop reading the log
+                    }
+                    return ++written[0] < limit;
+                });
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(IOUController.NDJSON_VALUE)).body(body);
+    }
+
+    @PostMapping(path = "/snapshot") // Writes a snapshot now instead of waiting for the next scheduled one
+    public IOUSnapshots.Snapshot snapshot() {
+        return snapshots.take();
+    }
+
+    @PostMapping(path = "/rebuild") // Replaces the ious table with the latest snapshot plus the log since. ?force=true lets it shrink the table
+    public IOUEventLogRebuilder.RebuildResult rebuild(@RequestParam(defaultValue = "false") boolean force) {
+        if (!rebuildEnabled) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Rebuilding over HTTP is off, set ious.event-log.rebuild-endpoint.enabled=true");
+        }
+        try {
+            return rebuilder.rebuild(force);
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+    }
+}
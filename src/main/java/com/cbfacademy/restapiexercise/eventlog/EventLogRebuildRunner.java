@@ -0,0 +1,25 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+// Rebuilds the ious table from the event log at startup when run with --ious.event-log.rebuild-on-startup=true
+@Component
+@ConditionalOnProperty(name = "ious.event-log.rebuild-on-startup", havingValue = "true")
+public class EventLogRebuildRunner implements ApplicationRunner {
+
+    private final IOUEventLogRebuilder rebuilder;
+
+    @Autowired
+    public EventLogRebuildRunner(IOUEventLogRebuilder rebuilder) {
+        this.rebuilder = rebuilder;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        rebuilder.rebuild(false);
+    }
+}
@@ -0,0 +1,46 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+
+// One entry in the IOU event log. CREATED and UPDATED carry the IOU's full state after the change and DELETED its id and
+// last version, so replaying the log in order needs no other input. A change logged inside a transaction is written before
+// the commit with marks = AWAITS_COMMIT, and only counts once a COMMITTED marker for it follows; a ROLLED_BACK marker means the
+// commit failed. On a marker, marks is the sequence of the entry it is about. Changes logged outside a transaction (and
+// everything logged before commit markers existed) have marks = 0 and count as they are.
+public record IOUEvent(long sequence, Type type, Instant recordedAt, UUID id, Long version, String borrower, String lender,
+        BigDecimal amount, Instant dateTime, long marks) {
+
+    public static final long AWAITS_COMMIT = -1;
+
+    public enum Type {
+        CREATED, UPDATED, DELETED, ROLLED_BACK, COMMITTED // New types go at the end - the log stores the ordinal
+    }
+
+    static IOUEvent of(long sequence, Type type, Instant recordedAt, IOU iou, boolean awaitsCommit) {
+        return new IOUEvent(sequence, type, recordedAt, iou.getId(), iou.getVersion(), iou.getBorrower(), iou.getLender(),
+                iou.getAmount(), iou.getDateTime(), awaitsCommit ? AWAITS_COMMIT : 0);
+    }
+
+    static IOUEvent marker(long sequence, Type type, Instant recordedAt, long marked) { // type is ROLLED_BACK or COMMITTED
+        return new IOUEvent(sequence, type, recordedAt, null, null, null, null, null, null, marked);
+    }
+
+    boolean isMarker() {
+        return type == Type.ROLLED_BACK || type == Type.COMMITTED;
+    }
+
+    boolean awaitsCommit() { // Needs a COMMITTED marker before it counts
+        return marks == AWAITS_COMMIT;
+    }
+
+    public IOU toIOU() { // The IOU as it stood after this event
+        IOU iou = new IOU(borrower, lender, amount, dateTime);
+        iou.setId(id);
+        iou.setVersion(version);
+        return iou;
+    }
+}
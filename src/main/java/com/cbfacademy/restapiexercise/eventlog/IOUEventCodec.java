@@ -0,0 +1,175 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+// Binary layout of a log record: [int body length][int CRC32C of body][body]. The body is the event's fields in a fixed
+// order, with -1 lengths / flag bytes for nulls. A record whose length runs past the data or whose checksum doesn't match
+// is a torn write from a crash, and everything from there on is ignored.
+final class IOUEventCodec {
+
+    static final int HEADER_BYTES = 8;
+    private static final int MAX_BODY_BYTES = 1 << 20;
+
+    private IOUEventCodec() {
+    }
+
+    static ByteBuffer encode(IOUEvent event, ByteBuffer buffer) { // Returns the buffer (grown if needed), flipped and ready to write
+        while (true) {
+            try {
+                buffer.clear();
+                buffer.position(HEADER_BYTES);
+                buffer.putLong(event.sequence());
+                buffer.put((byte) event.type().ordinal());
+                buffer.putLong(event.recordedAt().toEpochMilli());
+                buffer.put((byte) (event.id() == null ? 0 : 1));
+                if (event.id() != null) {
+                    buffer.putLong(event.id().getMostSignificantBits());
+                    buffer.putLong(event.id().getLeastSignificantBits());
+                }
+                buffer.putLong(event.version() == null ? -1 : event.version());
+                putString(buffer, event.borrower());
+                putString(buffer, event.lender());
+                putAmount(buffer, event.amount());
+                buffer.put((byte) (event.dateTime() == null ? 0 : 1));
+                if (event.dateTime() != null) {
+                    buffer.putLong(event.dateTime().getEpochSecond());
+                    buffer.putInt(event.dateTime().getNano());
+                }
+                buffer.putLong(event.marks());
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+
+        int bodyLength = buffer.position() - HEADER_BYTES;
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), HEADER_BYTES, bodyLength);
+        buffer.putInt(0, bodyLength);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    // Reads the record at the buffer's position and moves past it, or returns null (position unchanged) at the end of the valid data
+    static IOUEvent decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_BYTES) {
+            return null;
+        }
+        int bodyLength = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (bodyLength <= 0 || bodyLength > MAX_BODY_BYTES || bodyLength > buffer.remaining() || checksum != checksum(buffer, bodyLength)) {
+            buffer.position(start);
+            return null;
+        }
+
+        try {
+            long sequence = buffer.getLong();
+            IOUEvent.Type type = IOUEvent.Type.values()[buffer.get()];
+            Instant recordedAt = Instant.ofEpochMilli(buffer.getLong());
+            UUID id = buffer.get() == 0 ? null : new UUID(buffer.getLong(), buffer.getLong());
+            long version = buffer.getLong();
+            String borrower = getString(buffer);
+            String lender = getString(buffer);
+            BigDecimal amount = getAmount(buffer);
+            Instant dateTime = buffer.get() == 0 ? null : Instant.ofEpochSecond(buffer.getLong(), buffer.getInt());
+            long marks = buffer.getLong();
+            return new IOUEvent(sequence, type, recordedAt, id, version < 0 ? null : version, borrower, lender, amount, dateTime, marks);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) { // Checksum matched but the body is malformed - treat as the end
+            buffer.position(start);
+            return null;
+        }
+    }
+
+    // Decodes records from the channel starting at position, handing each to the consumer until it returns false or the valid
+    // data ends. Returns the offset just past the last record read, which is where a torn tail (if any) starts
+    static long readAll(FileChannel channel, long position, Predicate<IOUEvent> consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + MAX_BODY_BYTES); // Always big enough for one whole record
+        long offset = position; // File offset of the first byte not yet decoded
+        long readAt = position;
+        while (true) {
+            int read = channel.read(buffer, readAt);
+            if (read > 0) {
+                readAt += read;
+            }
+            buffer.flip();
+
+            boolean decoded = false;
+            while (true) {
+                int before = buffer.position();
+                IOUEvent event = decode(buffer);
+                if (event == null) {
+                    break;
+                }
+                decoded = true;
+                offset += buffer.position() - before;
+                if (!consumer.test(event)) {
+                    return offset;
+                }
+            }
+            if (read <= 0 && !decoded) { // End of file, or bytes that will never decode
+                return offset;
+            }
+            buffer.compact();
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(buffer.position(), length));
+        return (int) crc.getValue();
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putAmount(ByteBuffer buffer, BigDecimal amount) { // Exact: scale plus the unscaled value's bytes
+        if (amount == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] unscaled = amount.unscaledValue().toByteArray();
+        buffer.putInt(unscaled.length);
+        buffer.put(unscaled);
+        buffer.putInt(amount.scale());
+    }
+
+    private static BigDecimal getAmount(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] unscaled = new byte[length];
+        buffer.get(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), buffer.getInt());
+    }
+}
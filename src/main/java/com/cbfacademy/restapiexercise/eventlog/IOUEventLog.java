@@ -0,0 +1,357 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.unit.DataSize;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUChangedEvent;
+
+import jakarta.annotation.PreDestroy;
+
+// Append-only log of every IOU change, kept in segment files (segment-<first sequence>.log) under ious.event-log.directory.
+// Events are appended just before the change's transaction commits, while its row locks are still held, so conflicting
+// writes reach the log in the same order they reach the table, and a failed append rolls the change back. Once the
+// transaction has finished, a COMMITTED or ROLLED_BACK marker follows; an event left with neither - the process died in
+// between - is in doubt, and is not replayed until IOUEventLogRebuilder.resolveInDoubt() has settled it against the table.
+// Appends go to the OS straight away and are fsynced every ious.event-log.sync-interval, so a process crash loses nothing
+// and a power cut at most that interval.
+@Component
+@ConditionalOnProperty(name = "ious.event-log.enabled", havingValue = "true", matchIfMissing = true)
+public class IOUEventLog {
+
+    private static final Logger log = LoggerFactory.getLogger(IOUEventLog.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final Clock clock;
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized: appends happen on request threads, which may be virtual
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>(); // Logged, but their transaction hasn't finished yet
+
+    private FileChannel segment; // The segment being appended to, null until the first append
+    private long segmentSize;
+    private long nextSequence;
+    private ByteBuffer buffer = ByteBuffer.allocate(512);
+    private volatile boolean unsynced;
+
+    private final ReentrantLock syncLock = new ReentrantLock(); // Guards the two fields below
+    private final Condition synced = syncLock.newCondition();
+    private long durableSequence; // Every event up to here has been fsynced
+    private boolean syncing; // A caller is fsyncing on behalf of everyone waiting
+
+    @Autowired
+    public IOUEventLog(@Value("${ious.event-log.directory:data/event-log}") Path directory,
+            @Value("${ious.event-log.segment-size:64MB}") DataSize segmentSize) throws IOException {
+        this(directory, segmentSize, Clock.systemUTC());
+    }
+
+    IOUEventLog(Path directory, DataSize segmentSize, Clock clock) throws IOException {
+        if (segmentSize.toBytes() < 4096 || segmentSize.toBytes() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ious.event-log.segment-size must be between 4KB and 2GB");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentSize.toBytes();
+        this.clock = clock;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT, fallbackExecution = true)
+    public void onIOUChanged(IOUChangedEvent event) {
+        if (event.previous() == null) {
+            append(IOUEvent.Type.CREATED, event.current());
+        } else if (event.current() == null) {
+            append(IOUEvent.Type.DELETED, event.previous());
+        } else {
+            append(IOUEvent.Type.UPDATED, event.current());
+        }
+    }
+
+    public IOUEvent append(IOUEvent.Type type, IOU iou) {
+        boolean inTransaction = TransactionSynchronizationManager.isSynchronizationActive();
+        IOUEvent event;
+        lock.lock();
+        try {
+            event = write(IOUEvent.of(nextSequence, type, clock.instant(), iou, inTransaction));
+            if (inTransaction) {
+                inFlight.add(event.sequence()); // Under the lock, so replayStart() can never miss it
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (inTransaction) {
+            long sequence = event.sequence();
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    appendMarker(status == STATUS_COMMITTED ? IOUEvent.Type.COMMITTED : IOUEvent.Type.ROLLED_BACK, sequence);
+                    inFlight.remove(sequence);
+                }
+            });
+        }
+        return event;
+    }
+
+    // Hands every event from fromSequence onwards, in order, to the consumer until it returns false
+    public void read(long fromSequence, Predicate<IOUEvent> consumer) {
+        List<Path> segments = segments();
+        try {
+            for (int i = 0; i < segments.size(); i++) {
+                if (i + 1 < segments.size() && firstSequence(segments.get(i + 1)) <= fromSequence) {
+                    continue; // Everything in this segment comes before fromSequence
+                }
+                boolean[] stopped = { false };
+                try (FileChannel channel = FileChannel.open(segments.get(i), StandardOpenOption.READ)) {
+                    IOUEventCodec.readAll(channel, 0, event -> {
+                        if (event.sequence() < fromSequence) {
+                            return true;
+                        }
+                        stopped[0] = !consumer.test(event);
+                        return !stopped[0];
+                    });
+                }
+                if (stopped[0]) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the IOU event log", e);
+        }
+    }
+
+    public long lastSequence() { // 0 while the log is empty
+        lock.lock();
+        try {
+            return nextSequence - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The first sequence whose effect may not be visible to a read that starts after this call returns: the oldest event still
+    // waiting on its commit, or the next one to be written. Snapshots record this so replay starts early enough to cover them
+    public long replayStart() {
+        lock.lock();
+        try {
+            return inFlight.isEmpty() ? nextSequence : Math.min(inFlight.first(), nextSequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${ious.event-log.sync-interval:PT1S}")
+    public void sync() {
+        if (!unsynced) {
+            return;
+        }
+        try {
+            syncUpTo(lastSequence());
+        } catch (UncheckedIOException e) {
+            log.warn("Could not fsync the IOU event log, will retry", e);
+        }
+    }
+
+    // Returns once every event up to sequence is on disk. Concurrent callers share one fsync (group commit): whoever finds
+    // no fsync running does one for everything written so far, and the rest wait for it
+    public void syncUpTo(long sequence) {
+        syncLock.lock();
+        try {
+            while (durableSequence < sequence) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                syncLock.unlock();
+                long forced = -1;
+                try {
+                    forced = force();
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    durableSequence = Math.max(durableSequence, forced);
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public long durableSequence() {
+        syncLock.lock();
+        try {
+            return durableSequence;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // Deletes the segments holding nothing at or after sequence. The segment being appended to is always kept
+    public void deleteSegmentsBefore(long sequence) {
+        List<Path> segments = segments();
+        try {
+            for (int i = 0; i + 1 < segments.size() && firstSequence(segments.get(i + 1)) <= sequence; i++) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete old IOU event log segments", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (segment != null) {
+                segment.force(false);
+                segment.close();
+                segment = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long force() { // fsyncs the current segment outside the append lock, so appends carry on meanwhile. Returns the last sequence covered
+        FileChannel channel;
+        long last;
+        lock.lock();
+        try {
+            channel = segment;
+            last = nextSequence - 1;
+            unsynced = false;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (ClosedChannelException e) {
+            // Rolled over to a new segment meanwhile, and roll() forces the old one before closing it
+        } catch (IOException e) {
+            unsynced = true;
+            throw new UncheckedIOException("Could not fsync the IOU event log", e);
+        }
+        return last;
+    }
+
+    void appendMarker(IOUEvent.Type type, long sequence) {
+        lock.lock();
+        try {
+            write(IOUEvent.marker(nextSequence, type, clock.instant(), sequence));
+        } catch (UncheckedIOException e) {
+            log.error("Could not record that IOU event {} was {} - it stays in doubt until a rebuild checks it against the table", sequence, type, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private IOUEvent write(IOUEvent event) { // Caller holds the lock
+        buffer = IOUEventCodec.encode(event, buffer);
+        int length = buffer.remaining();
+        try {
+            if (segment == null || (segmentSize > 0 && segmentSize + length > segmentBytes)) {
+                roll(event.sequence());
+            }
+            long start = segmentSize;
+            try {
+                while (buffer.hasRemaining()) {
+                    segmentSize += segment.write(buffer, segmentSize);
+                }
+            } catch (IOException e) {
+                segmentSize = start;
+                segment.truncate(start); // Don't leave half a record for the next append to follow
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append to the IOU event log", e);
+        }
+        nextSequence = event.sequence() + 1;
+        unsynced = true;
+        return event;
+    }
+
+    private void roll(long firstSequence) throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        segment = FileChannel.open(directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentSize = segment.size();
+    }
+
+    private void recover() throws IOException { // Finds where the last run stopped and cuts off any record it was halfway through writing
+        List<Path> segments = segments();
+        if (segments.isEmpty()) {
+            nextSequence = 1;
+            return;
+        }
+
+        Path last = segments.get(segments.size() - 1);
+        long[] lastSequence = { firstSequence(last) - 1 };
+        segment = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validEnd = IOUEventCodec.readAll(segment, 0, event -> {
+            lastSequence[0] = event.sequence();
+            return true;
+        });
+        if (validEnd < segment.size()) {
+            log.warn("Truncating {} bytes of incomplete IOU event log data at the end of {}", segment.size() - validEnd, last);
+            segment.truncate(validEnd);
+            segment.force(false);
+        }
+        segmentSize = validEnd;
+        nextSequence = lastSequence[0] + 1;
+        durableSequence = lastSequence[0];
+        log.info("IOU event log at {} holds events up to {}", directory, lastSequence[0]);
+    }
+
+    private List<Path> segments() { // Oldest first - the zero-padded names sort by sequence
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(SEGMENT_PREFIX) && file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not list the IOU event log segments in " + directory, e);
+        }
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,274 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOUChangeTracker;
+import com.cbfacademy.restapiexercise.IOUS.IOUReadModel;
+import com.cbfacademy.restapiexercise.IOUS.UuidColumns;
+import com.cbfacademy.restapiexercise.balances.BalanceService;
+import com.cbfacademy.restapiexercise.datasource.ReplicaRoutingDataSource;
+
+// Rebuilds the ious table from the newest snapshot plus the event log written since, then everything derived from it: the
+// balance tables, the amount aggregate, the read model and the caches. For recovering from a lost or damaged database - run it while
+// writes are stopped, since writes made during the rebuild are lost. The rows are loaded into a staging table, and the live table is
+// only replaced once the whole snapshot and log have been read without error. It refuses to run when there is nothing to rebuild
+// from, when the log has a gap, or (unless forced) when the result would have fewer rows than the table has now - as it would from
+// an instance's own, partial copy of the log. Changes the process died before marking as committed or rolled back are settled
+// against the table first (resolveInDoubt), and any still unsettled are left out of the replay.
+@Service
+@ConditionalOnProperty(name = "ious.event-log.enabled", havingValue = "true", matchIfMissing = true)
+public class IOUEventLogRebuilder {
+
+    private static final Logger log = LoggerFactory.getLogger(IOUEventLogRebuilder.class);
+    private static final int BATCH_SIZE = 1000;
+    private static final String STAGING = "ious_rebuild";
+    private static final String REPLACED = "ious_replaced";
+    // Upserts, because the first events replayed may already be reflected in the snapshot
+    private static final String UPSERT = "INSERT INTO " + STAGING + " (id, borrower, lender, amount, date_time, version) VALUES (?, ?, ?, ?, ?, ?)"
+            + " ON DUPLICATE KEY UPDATE borrower = VALUES(borrower), lender = VALUES(lender), amount = VALUES(amount),"
+            + " date_time = VALUES(date_time), version = VALUES(version)";
+    private static final String DELETE = "DELETE FROM " + STAGING + " WHERE id = ?";
+
+    private final IOUEventLog eventLog;
+    private final IOUSnapshots snapshots;
+    private final JdbcTemplate jdbcTemplate;
+    private final BalanceService balanceService;
+    private final IOUAmountAggregate amountAggregate;
+    private final CacheManager cacheManager;
+    private final ObjectProvider<IOUReadModel> readModel;
+    private final IOUChangeTracker changeTracker;
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public IOUEventLogRebuilder(IOUEventLog eventLog, IOUSnapshots snapshots, JdbcTemplate jdbcTemplate, BalanceService balanceService,
+            IOUAmountAggregate amountAggregate, CacheManager cacheManager, ObjectProvider<IOUReadModel> readModel,
+            IOUChangeTracker changeTracker, PlatformTransactionManager transactionManager) {
+        this.eventLog = eventLog;
+        this.snapshots = snapshots;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.balanceService = balanceService;
+        this.amountAggregate = amountAggregate;
+        this.cacheManager = cacheManager;
+        this.readModel = readModel;
+        this.changeTracker = changeTracker;
+    }
+
+    // Marks every change logged before the last shutdown or crash that has neither a COMMITTED nor a ROLLED_BACK marker, by
+    // checking the table: an upsert committed if its row is there at its version or later, a delete if the row is gone. A later
+    // change to the same IOU overrides the guess on replay either way, since every event carries the IOU's full state. Runs at
+    // startup, before any rebuild, and returns how many it marked
+    @EventListener(ApplicationReadyEvent.class)
+    public int resolveInDoubt() {
+        Optional<IOUSnapshots.Snapshot> snapshot = snapshots.latest();
+        long replayFrom = snapshot.map(IOUSnapshots.Snapshot::replayFrom).orElse(1L);
+        long inFlightFrom = eventLog.replayStart(); // Anything from here on may still be waiting on a live transaction
+        Map<Long, IOUEvent> inDoubt = new LinkedHashMap<>();
+        eventLog.read(replayFrom, event -> {
+            if (event.sequence() >= inFlightFrom) {
+                return false;
+            }
+            if (event.isMarker()) {
+                inDoubt.remove(event.marks());
+            } else if (event.awaitsCommit()) {
+                inDoubt.put(event.sequence(), event);
+            }
+            return true;
+        });
+
+        for (IOUEvent event : inDoubt.values()) {
+            boolean committed = ReplicaRoutingDataSource.onPrimary(() -> committed(event)); // The replica may not have the change yet
+            eventLog.appendMarker(committed ? IOUEvent.Type.COMMITTED : IOUEvent.Type.ROLLED_BACK, event.sequence());
+            log.warn("IOU event {} ({} {}) was never marked as committed or rolled back - the table says it {}", event.sequence(), event.type(),
+                    event.id(), committed ? "committed" : "did not");
+        }
+        return inDoubt.size();
+    }
+
+    // force accepts a rebuilt table with fewer rows than the current one, for when rows were written to the table without being logged
+    public RebuildResult rebuild(boolean force) {
+        long started = System.nanoTime();
+        resolveInDoubt();
+        Optional<IOUSnapshots.Snapshot> snapshot = snapshots.latest();
+        long replayFrom = snapshot.map(IOUSnapshots.Snapshot::replayFrom).orElse(1L);
+
+        // A first pass over the log, before anything is written: it must carry on from the snapshot, or from the very first event
+        // when there isn't one, without a gap. Markers always come after the event they settle, so find them all here too
+        Set<Long> committed = new HashSet<>();
+        Set<Long> rolledBack = new HashSet<>();
+        long[] expected = { replayFrom };
+        eventLog.read(replayFrom, event -> {
+            if (event.sequence() != expected[0]) {
+                throw new IllegalStateException("The event log in " + eventLog.directory() + " jumps from sequence " + (expected[0] - 1)
+                        + " to " + event.sequence() + ", so events are missing - refusing to rebuild the ious table from it");
+            }
+            expected[0]++;
+            if (event.type() == IOUEvent.Type.COMMITTED) {
+                committed.add(event.marks());
+            } else if (event.type() == IOUEvent.Type.ROLLED_BACK) {
+                rolledBack.add(event.marks());
+            }
+            return true;
+        });
+        if (snapshot.isEmpty() && expected[0] == 1) {
+            throw new IllegalStateException("There is no snapshot and no events in " + eventLog.directory() + " - refusing to replace the ious table with nothing");
+        }
+
+        boolean mysql = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            String database = connection.getMetaData().getDatabaseProductName();
+            return database.startsWith("MySQL") || database.startsWith("MariaDB");
+        });
+        long[] snapshotRows = { 0 };
+        long[] replayed = { 0 };
+        long[] unsettled = { 0 };
+        long[] lastSequence = { replayFrom - 1 };
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + STAGING); // Left over from a rebuild that was killed part way
+        jdbcTemplate.execute(mysql ? "CREATE TABLE " + STAGING + " LIKE ious" // Same columns, keys and indexes
+                : "CREATE TABLE " + STAGING + " AS SELECT * FROM ious WITH NO DATA");
+        try {
+            if (!mysql) {
+                jdbcTemplate.execute("ALTER TABLE " + STAGING + " ALTER COLUMN id SET NOT NULL");
+                jdbcTemplate.execute("ALTER TABLE " + STAGING + " ADD PRIMARY KEY (id)"); // The upserts match rows on it
+            }
+            Batch batch = new Batch();
+            snapshot.ifPresent(found -> snapshots.read(found, row -> { // Fails on a damaged or short snapshot, with the live table untouched
+                batch.add(row);
+                snapshotRows[0]++;
+                return true;
+            }));
+            eventLog.read(replayFrom, event -> {
+                lastSequence[0] = event.sequence();
+                if (event.isMarker() || rolledBack.contains(event.sequence())) {
+                    return true;
+                }
+                if (event.awaitsCommit() && !committed.contains(event.sequence())) {
+                    unsettled[0]++; // Still in flight, as resolveInDoubt() settled the rest
+                    return true;
+                }
+                batch.add(event);
+                replayed[0]++;
+                return true;
+            });
+            batch.flush();
+
+            long rebuilt = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + STAGING, Long.class);
+            long current = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ious", Long.class);
+            if (rebuilt < current && !force) {
+                throw new IllegalStateException("The snapshot and event log in " + eventLog.directory() + " rebuild " + rebuilt + " IOUs but the table has "
+                        + current + " - refusing to drop the difference, force the rebuild if that is intended");
+            }
+
+            if (mysql) { // One atomic rename: readers see the old table or the new one, never an empty one
+                jdbcTemplate.execute("RENAME TABLE ious TO " + REPLACED + ", " + STAGING + " TO ious");
+                jdbcTemplate.execute("DROP TABLE " + REPLACED);
+            } else { // No multi-table rename elsewhere, so copy the rows across in one transaction instead
+                transactionTemplate.executeWithoutResult(status -> {
+                    jdbcTemplate.update("DELETE FROM ious");
+                    jdbcTemplate.update("INSERT INTO ious SELECT * FROM " + STAGING);
+                });
+            }
+        } finally {
+            jdbcTemplate.execute("DROP TABLE IF EXISTS " + STAGING);
+        }
+
+        balanceService.rebuild();
+        amountAggregate.reconcile();
+        readModel.ifAvailable(IOUReadModel::load);
+        for (String cacheName : cacheManager.getCacheNames()) {
+            Cache cache = cacheManager.getCache(cacheName);
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+        changeTracker.touch(); // Clients' cached lists are out of date too
+
+        RebuildResult result = new RebuildResult(snapshot.map(IOUSnapshots.Snapshot::file).orElse(null), snapshotRows[0], replayed[0],
+                rolledBack.size(), unsettled[0], lastSequence[0], (System.nanoTime() - started) / 1_000_000);
+        log.info("Rebuilt the ious table: {}", result);
+        return result;
+    }
+
+    // snapshot is null when there wasn't one and the whole log was replayed. eventsUnsettled counts changes left out because their
+    // transaction had not finished yet
+    public record RebuildResult(String snapshot, long snapshotRows, long eventsReplayed, long eventsRolledBack, long eventsUnsettled,
+            long lastSequence, long millis) {
+    }
+
+    private boolean committed(IOUEvent event) {
+        List<Long> versions = jdbcTemplate.query("SELECT COALESCE(version, 0) FROM ious WHERE id = ?",
+                statement -> statement.setObject(1, UuidColumns.write(event.id(), statement.getConnection())),
+                (resultSet, row) -> resultSet.getLong(1));
+        if (event.type() == IOUEvent.Type.DELETED) {
+            return versions.isEmpty();
+        }
+        return !versions.isEmpty() && versions.get(0) >= (event.version() == null ? 0 : event.version());
+    }
+
+    private class Batch { // Runs consecutive events of the same kind as one JDBC batch, keeping them in log order
+
+        private final List<IOUEvent> pending = new ArrayList<>(BATCH_SIZE);
+        private boolean deletes;
+
+        void add(IOUEvent event) {
+            boolean delete = event.type() == IOUEvent.Type.DELETED;
+            if (!pending.isEmpty() && (delete != deletes || pending.size() == BATCH_SIZE)) {
+                flush();
+            }
+            deletes = delete;
+            pending.add(event);
+        }
+
+        void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            jdbcTemplate.batchUpdate(deletes ? DELETE : UPSERT, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement statement, int i) throws SQLException {
+                    IOUEvent event = pending.get(i);
+                    statement.setObject(1, UuidColumns.write(event.id(), statement.getConnection()));
+                    if (deletes) {
+                        return;
+                    }
+                    statement.setString(2, event.borrower());
+                    statement.setString(3, event.lender());
+                    statement.setBigDecimal(4, event.amount());
+                    statement.setTimestamp(5, event.dateTime() == null ? null : Timestamp.from(event.dateTime()));
+                    statement.setObject(6, event.version());
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return pending.size();
+                }
+            });
+            pending.clear();
+        }
+    }
+}
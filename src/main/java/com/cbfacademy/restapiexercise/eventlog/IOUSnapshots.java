@@ -0,0 +1,195 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.UuidColumns;
+
+// Periodic full copies of the ious table, stored next to the event log as snapshot-<replayFrom>.snap. A snapshot is read
+// from one consistent view of the table, and replayFrom is the first log sequence that view might not include, so a rebuild
+// loads the snapshot and then replays the log from there. Rows are stored as CREATED records in the log's own format.
+@Component
+@ConditionalOnProperty(name = "ious.event-log.enabled", havingValue = "true", matchIfMissing = true)
+public class IOUSnapshots {
+
+    private static final Logger log = LoggerFactory.getLogger(IOUSnapshots.class);
+    private static final long MAGIC = 0x494f55534e415031L; // "IOUSNAP1"
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final int KEEP = 2; // The newest snapshot plus one spare in case it turns out to be damaged
+
+    private final IOUEventLog eventLog;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public IOUSnapshots(IOUEventLog eventLog, JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.eventLog = eventLog;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ); // One view of the table for the whole scan
+    }
+
+    @Scheduled(fixedDelayString = "${ious.event-log.snapshot-interval:PT1H}", initialDelayString = "${ious.event-log.snapshot-interval:PT1H}")
+    public Snapshot take() {
+        // Taken before the read view exists, so every event below it has already committed (or rolled back) and is in the view
+        long replayFrom = eventLog.replayStart();
+        Path target = eventLog.directory().resolve(String.format("%s%020d%s", PREFIX, replayFrom, SUFFIX));
+        Path temporary = eventLog.directory().resolve(target.getFileName() + ".tmp");
+
+        long rows;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            SnapshotWriter writer = new SnapshotWriter(channel, replayFrom);
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+                var statement = connection.prepareStatement("SELECT id, borrower, lender, amount, date_time, version FROM ious",
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(IOURepository.STREAM_FETCH_SIZE);
+                return statement;
+            }, resultSet -> {
+                Timestamp dateTime = resultSet.getTimestamp(5);
+                writer.write(new IOUEvent(0, IOUEvent.Type.CREATED, Instant.EPOCH, UuidColumns.read(resultSet.getObject(1)),
+                        resultSet.getObject(6) == null ? null : resultSet.getLong(6), resultSet.getString(2), resultSet.getString(3),
+                        resultSet.getBigDecimal(4), dateTime == null ? null : dateTime.toInstant(), 0));
+            }));
+            rows = writer.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write IOU snapshot " + target, e);
+        }
+
+        try {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); // Readers never see a half-written snapshot
+            List<Path> snapshots = snapshots();
+            for (Path old : snapshots.subList(0, Math.max(0, snapshots.size() - KEEP))) {
+                Files.deleteIfExists(old);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not store IOU snapshot " + target, e);
+        }
+        log.info("Wrote IOU snapshot {} with {} rows", target, rows);
+        return new Snapshot(target.getFileName().toString(), replayFrom, rows);
+    }
+
+    public Optional<Snapshot> latest() {
+        List<Path> snapshots = snapshots();
+        if (snapshots.isEmpty()) {
+            return Optional.empty();
+        }
+        Path file = snapshots.get(snapshots.size() - 1);
+        return Optional.of(new Snapshot(file.getFileName().toString(), replayFrom(file), -1));
+    }
+
+    // Hands every row in the snapshot to the consumer as a CREATED event. Fails if the file is cut short, because replaying
+    // the log on top of a partial table would quietly lose rows
+    public void read(Snapshot snapshot, Predicate<IOUEvent> consumer) {
+        Path file = eventLog.directory().resolve(snapshot.file());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(24);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.remaining() < 24 || header.getLong() != MAGIC) {
+                throw new IOException("Not an IOU snapshot");
+            }
+            header.getLong(); // replayFrom, already known from the file name
+            long expected = header.getLong();
+            long[] read = { 0 };
+            boolean[] stopped = { false };
+            long end = IOUEventCodec.readAll(channel, 24, event -> {
+                read[0]++;
+                stopped[0] = !consumer.test(event);
+                return !stopped[0];
+            });
+            if (!stopped[0] && (read[0] != expected || end != channel.size())) {
+                throw new IOException("Snapshot should hold " + expected + " rows but only " + read[0] + " could be read");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read IOU snapshot " + file, e);
+        }
+    }
+
+    private List<Path> snapshots() { // Oldest first
+        try (Stream<Path> files = Files.list(eventLog.directory())) {
+            return files.filter(file -> file.getFileName().toString().startsWith(PREFIX) && file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not list IOU snapshots in " + eventLog.directory(), e);
+        }
+    }
+
+    private static long replayFrom(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    // replayFrom is the first log sequence to replay on top of this snapshot. rows is -1 when only the file name has been read
+    public record Snapshot(String file, long replayFrom, long rows) {
+    }
+
+    private static class SnapshotWriter { // Gathers encoded rows into 1MB writes, then fills in the row count once they're all down
+
+        private final FileChannel channel;
+        private final ByteBuffer out = ByteBuffer.allocateDirect(1 << 20);
+        private ByteBuffer record = ByteBuffer.allocate(512);
+        private long rows;
+
+        SnapshotWriter(FileChannel channel, long replayFrom) throws IOException {
+            this.channel = channel;
+            out.putLong(MAGIC).putLong(replayFrom).putLong(-1); // Row count, overwritten by finish()
+        }
+
+        void write(IOUEvent row) {
+            record = IOUEventCodec.encode(row, record);
+            try {
+                if (out.remaining() < record.remaining()) {
+                    drain();
+                }
+                out.put(record);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            rows++;
+        }
+
+        long finish() throws IOException {
+            drain();
+            channel.write(ByteBuffer.allocate(8).putLong(0, rows), 16);
+            channel.force(true);
+            return rows;
+        }
+
+        private void drain() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.cbfacademy.restapiexercise.idempotency;
+
+import java.time.Instant;
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+
+@Entity // An Idempotency-Key that has been used to create an IOU. The primary key is what stops two requests with the same key both creating one
+@Table(name = "idempotency_keys", indexes = {
+    @Index(name = "idx_idempotency_keys_created_at", columnList = "createdAt") // Lets the purge find expired keys without a full scan
+})
+public class IdempotencyKey {
+
+    @Id
+    @Column(name = "idempotency_key", length = IdempotentIOUService.MAX_KEY_LENGTH)
+    private String key;
+
+    @Column(nullable = false, length = 64)
+    private String requestHash; // SHA-256 of the IOU sent with the key, hex encoded
+
+    private UUID iouId; // Set in the same transaction as the key is inserted, so a committed key always has one
+
+    @Column(nullable = false)
+    private Instant createdAt;
+
+    public IdempotencyKey() {
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getRequestHash() {
+        return requestHash;
+    }
+
+    public UUID getIouId() {
+        return iouId;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+}
@@ -0,0 +1,9 @@
+package com.cbfacademy.restapiexercise.idempotency;
+
+// The Idempotency-Key was already used for a different IOU - most likely the client reused a key by mistake
+public class IdempotencyKeyMismatchException extends RuntimeException {
+
+    public IdempotencyKeyMismatchException(String key) {
+        super("Idempotency-Key " + key + " was already used with a different request body");
+    }
+}
@@ -0,0 +1,27 @@
+package com.cbfacademy.restapiexercise.idempotency;
+
+import java.time.Instant;
+import java.util.UUID;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.ListCrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface IdempotencyKeyRepository extends ListCrudRepository<IdempotencyKey, String> {
+
+    // A plain INSERT rather than save(), which would look the key up first. Throws DataIntegrityViolationException when the key
+    // is already taken - or, if the transaction that took it hasn't finished, waits for it and then throws
+    @Modifying
+    @Query(value = "INSERT INTO idempotency_keys (idempotency_key, request_hash, created_at) VALUES (:key, :requestHash, :createdAt)", nativeQuery = true)
+    void insertKey(String key, String requestHash, Instant createdAt);
+
+    @Modifying
+    @Query("UPDATE IdempotencyKey k SET k.iouId = :iouId WHERE k.key = :key")
+    void setIouId(String key, UUID iouId);
+
+    @Modifying
+    @Query("DELETE FROM IdempotencyKey k WHERE k.createdAt < :cutoff")
+    int deleteCreatedBefore(Instant cutoff);
+}
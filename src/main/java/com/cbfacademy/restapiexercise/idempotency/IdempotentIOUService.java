@@ -0,0 +1,146 @@
+package com.cbfacademy.restapiexercise.idempotency;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+// Makes POST /api/ious safe to retry: the first request with a given Idempotency-Key creates the IOU, and every later one gets
+// that IOU's id back instead of creating another. Keys seen recently are answered from memory. Anything else goes to the
+// idempotency_keys table, whose primary key lets only one request per key through - on this instance or any other.
+@Service
+public class IdempotentIOUService implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(IdempotentIOUService.class);
+    public static final int MAX_KEY_LENGTH = 255;
+
+    private final IdempotencyKeyRepository keyRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration ttl;
+    private final Cache<String, Entry> recentKeys; // Only ever holds committed keys
+
+    @Autowired
+    public IdempotentIOUService(IdempotencyKeyRepository keyRepository, TransactionTemplate transactionTemplate,
+            @Value("${ious.idempotency.ttl:PT24H}") Duration ttl, @Value("${ious.idempotency.max-cached-keys:100000}") long maxCachedKeys) {
+        this.keyRepository = keyRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.ttl = ttl;
+        this.recentKeys = Caffeine.newBuilder().maximumSize(maxCachedKeys).expireAfterWrite(ttl).recordStats().build();
+    }
+
+    // Creates the IOU with create, unless key has been used before, in which case the IOU created then is returned. create runs in
+    // the same transaction as the key is recorded, so if it throws the key is free to be used again
+    public Result createIOU(String key, IOU iou, Function<IOU, UUID> create) throws IllegalArgumentException, IdempotencyKeyMismatchException {
+        return createIOU(key, iou, newIOU -> {
+            IOU created = new IOU(newIOU);
+            created.setId(create.apply(newIOU));
+            return created;
+        }, created -> {
+        });
+    }
+
+    // For creates that can't take part in the key's transaction, like write-behind's queue on disk. prepare runs in the transaction
+    // and gives the IOU its id; publish only runs once the key has committed, so a key that rolls back never leaves behind an IOU
+    // for the retry to duplicate. If publish throws, the key is released and the client's retry starts afresh
+    public Result createIOU(String key, IOU iou, UnaryOperator<IOU> prepare, Consumer<IOU> publish)
+            throws IllegalArgumentException, IdempotencyKeyMismatchException {
+        if (key.isBlank() || key.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Idempotency-Key must be between 1 and " + MAX_KEY_LENGTH + " characters");
+        }
+        String requestHash = hash(iou);
+
+        Entry seen = recentKeys.getIfPresent(key); // Retries usually come back within seconds, so this is where most of them end
+        if (seen != null) {
+            return replay(key, seen, requestHash);
+        }
+
+        IOU prepared;
+        try {
+            prepared = transactionTemplate.execute(status -> {
+                keyRepository.insertKey(key, requestHash, Instant.now()); // First, so a concurrent request with this key waits here
+                IOU created = prepare.apply(iou);
+                keyRepository.setIouId(key, created.getId());
+                return created;
+            });
+        } catch (DataIntegrityViolationException e) { // Used before - by a request this instance hasn't seen, or one that has left the cache
+            IdempotencyKey existing = keyRepository.findById(key).orElseThrow(() -> e); // Deleted by the purge in between - let the client retry
+            Entry entry = new Entry(existing.getRequestHash(), existing.getIouId());
+            recentKeys.put(key, entry);
+            return replay(key, entry, requestHash);
+        }
+
+        try {
+            publish.accept(prepared);
+        } catch (RuntimeException e) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> keyRepository.deleteById(key));
+            } catch (RuntimeException releaseFailure) {
+                e.addSuppressed(releaseFailure);
+                log.error("Could not release idempotency key {} after its IOU failed to publish", key, releaseFailure);
+            }
+            throw e;
+        }
+        recentKeys.put(key, new Entry(requestHash, prepared.getId())); // Only now it's committed
+        return new Result(prepared.getId(), false);
+    }
+
+    // Forgets keys older than ious.idempotency.ttl, after which they can be used again
+    @Scheduled(fixedDelayString = "${ious.idempotency.purge-interval:PT1H}", initialDelayString = "${ious.idempotency.purge-interval:PT1H}")
+    public void purgeExpiredKeys() {
+        int purged = transactionTemplate.execute(status -> keyRepository.deleteCreatedBefore(Instant.now().minus(ttl)));
+        if (purged > 0) {
+            log.debug("Purged {} expired idempotency keys", purged);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) { // cache.gets{cache=idempotencyKeys,result=hit|miss} shows how many retries never reach the database
+        CaffeineCacheMetrics.monitor(registry, recentKeys, "idempotencyKeys");
+    }
+
+    private static Result replay(String key, Entry entry, String requestHash) {
+        if (!entry.requestHash().equals(requestHash)) {
+            throw new IdempotencyKeyMismatchException(key);
+        }
+        return new Result(entry.iouId(), true);
+    }
+
+    static String hash(IOU iou) { // Amounts are compared by value, so 10 and 10.00 are the same request
+        String canonical = iou.getBorrower() + '\u0000' + iou.getLender() + '\u0000'
+                + (iou.getAmount() == null ? null : iou.getAmount().stripTrailingZeros().toPlainString()) + '\u0000' + iou.getDateTime();
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(canonical.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has SHA-256
+        }
+    }
+
+    private record Entry(String requestHash, UUID iouId) {
+    }
+
+    public record Result(UUID id, boolean replayed) { // replayed is true when the IOU was created by an earlier request
+    }
+}
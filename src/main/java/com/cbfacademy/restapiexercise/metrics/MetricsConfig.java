@@ -0,0 +1,30 @@
+package com.cbfacademy.restapiexercise.metrics;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.repository.core.support.RepositoryFactoryBeanSupport;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+// Metrics that Spring Boot's own auto-configuration doesn't already provide. Endpoint timers (http.server.requests),
+// repository timers (spring.data.repository.invocations), Hikari gauges and Hibernate statistics come from Boot and are
+// tuned in application.properties. The rows-returned summary is added to every Spring Data repository here.
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public static BeanPostProcessor repositoryRowMetrics(ObjectProvider<MeterRegistry> meterRegistry) { // static, so it sees the repository factory beans
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessBeforeInitialization(Object bean, String beanName) {
+                if (bean instanceof RepositoryFactoryBeanSupport<?, ?, ?> factoryBean) {
+                    factoryBean.addRepositoryFactoryCustomizer(factory -> factory.addRepositoryProxyPostProcessor(
+                            (proxyFactory, information) -> proxyFactory.addAdvice(new RepositoryRowMetrics(meterRegistry, information.getRepositoryInterface()))));
+                }
+                return bean;
+            }
+        };
+    }
+}
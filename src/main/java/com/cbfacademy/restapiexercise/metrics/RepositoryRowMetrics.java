@@ -0,0 +1,66 @@
+package com.cbfacademy.restapiexercise.metrics;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.domain.Slice;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+// Records how many rows each repository method hands back, as the repository.rows summary (count, total and percentiles per
+// repository and method). Streams are counted as they are consumed and recorded when closed. Timings are already covered by
+// Spring Boot's spring.data.repository.invocations timer.
+class RepositoryRowMetrics implements MethodInterceptor {
+
+    static final String METRIC = "repository.rows";
+
+    private final ObjectProvider<MeterRegistry> meterRegistry; // Looked up on first use - repositories are created before the registry
+    private final String repository;
+    private final Map<Method, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    RepositoryRowMetrics(ObjectProvider<MeterRegistry> meterRegistry, Class<?> repositoryInterface) {
+        this.meterRegistry = meterRegistry;
+        this.repository = repositoryInterface.getSimpleName();
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Object result = invocation.proceed();
+
+        if (result instanceof Stream<?> stream) {
+            AtomicLong rows = new AtomicLong();
+            return stream.peek(row -> rows.incrementAndGet()).onClose(() -> record(invocation.getMethod(), rows.get()));
+        }
+        if (result instanceof Collection<?> rows) {
+            record(invocation.getMethod(), rows.size());
+        } else if (result instanceof Optional<?> row) {
+            record(invocation.getMethod(), row.isPresent() ? 1 : 0);
+        } else if (result instanceof Slice<?> page) {
+            record(invocation.getMethod(), page.getNumberOfElements());
+        }
+        return result;
+    }
+
+    private void record(Method method, long rows) {
+        MeterRegistry registry = meterRegistry.getIfAvailable();
+        if (registry == null) {
+            return;
+        }
+        summaries.computeIfAbsent(method, m -> DistributionSummary.builder(METRIC)
+                .description("Rows returned per repository call")
+                .baseUnit("rows")
+                .tag("repository", repository)
+                .tag("method", m.getName())
+                .register(registry))
+                .record(rows);
+    }
+}
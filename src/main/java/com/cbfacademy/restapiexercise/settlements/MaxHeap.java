@@ -0,0 +1,69 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+// Binary max-heap of user ids ordered by a long key, stored in two parallel primitive arrays
+class MaxHeap {
+
+    private final int[] ids;
+    private final long[] keys;
+    private int size;
+
+    MaxHeap(int capacity) {
+        this.ids = new int[capacity];
+        this.keys = new long[capacity];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int peekId() {
+        return ids[0];
+    }
+
+    long peekKey() {
+        return keys[0];
+    }
+
+    void push(int id, long key) {
+        int i = size++;
+        while (i > 0) { // Sift up
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] >= key) {
+                break;
+            }
+            ids[i] = ids[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+        ids[i] = id;
+        keys[i] = key;
+    }
+
+    void pop() { // Removes the largest entry
+        size--;
+        if (size == 0) {
+            return;
+        }
+
+        int id = ids[size];
+        long key = keys[size];
+        int i = 0;
+        while (true) { // Sift the last entry down from the root
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[child + 1] > keys[child]) {
+                child++;
+            }
+            if (key >= keys[child]) {
+                break;
+            }
+            ids[i] = ids[child];
+            keys[i] = keys[child];
+            i = child;
+        }
+        ids[i] = id;
+        keys[i] = key;
+    }
+}
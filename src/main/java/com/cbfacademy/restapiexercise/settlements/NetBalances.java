@@ -0,0 +1,64 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cbfacademy.restapiexercise.IOUS.Cents;
+
+// Net position of every user in an IOU graph. Each user gets a dense int id, and positions are held as
+// whole cents in a long[] indexed by that id - no BigDecimal or boxed values per user or per IOU.
+// Positive means the user is owed money, negative means they owe it.
+public class NetBalances {
+
+    private final Map<String, Integer> ids; // user name -> dense id
+    private String[] names;
+    private long[] cents;
+
+    public NetBalances(int expectedUsers) {
+        int capacity = Math.max(16, expectedUsers);
+        this.ids = new HashMap<>(capacity * 4 / 3 + 1);
+        this.names = new String[capacity];
+        this.cents = new long[capacity];
+    }
+
+    public void add(String borrower, String lender, BigDecimal amount) { // Records that borrower owes lender amount
+        add(borrower, lender, Cents.of(amount));
+    }
+
+    public void add(String borrower, String lender, long amountInCents) {
+        int from = idOf(borrower);
+        int to = idOf(lender);
+        cents[from] -= amountInCents;
+        cents[to] += amountInCents;
+    }
+
+    public int size() { // Number of distinct users seen
+        return ids.size();
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public long cents(int id) {
+        return cents[id];
+    }
+
+    private int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+
+        int next = ids.size();
+        if (next == names.length) { // Grow both columns together
+            names = Arrays.copyOf(names, next * 2);
+            cents = Arrays.copyOf(cents, next * 2);
+        }
+        names[next] = name;
+        ids.put(name, next);
+        return next;
+    }
+}
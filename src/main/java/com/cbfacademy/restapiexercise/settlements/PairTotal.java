@@ -0,0 +1,7 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import java.math.BigDecimal;
+
+// Sum of every IOU from one borrower to one lender
+public record PairTotal(String borrower, String lender, BigDecimal amount) {
+}
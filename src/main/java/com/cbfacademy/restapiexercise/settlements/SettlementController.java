@@ -0,0 +1,30 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+@RestController
+@RequestMapping(path = "/api/settlements")
+public class SettlementController {
+
+    private final SettlementService settlementService;
+
+    @Autowired
+    public SettlementController(SettlementService settlementService) {
+        this.settlementService = settlementService;
+    }
+
+    @PostMapping(path = "/plan") // Works out the transfers that would settle the selected IOUs - nothing is changed
+    public SettlementPlan plan(@RequestBody SettlementRequest request) {
+        try {
+            return settlementService.plan(request);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+}
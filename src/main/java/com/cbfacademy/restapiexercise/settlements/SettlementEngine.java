@@ -0,0 +1,53 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.stereotype.Component;
+
+import com.cbfacademy.restapiexercise.IOUS.Cents;
+
+// Works out who should pay whom to settle a group's debts in few transfers. Only each user's net position matters,
+// so the greedy max-creditor/max-debtor heuristic repeatedly matches the user owed the most with the user owing the most.
+// Every step zeroes at least one of the two, so a group of n users never needs more than n - 1 transfers.
+// Runs in O(n log n) on top of the O(IOUs) pass that built the balances.
+@Component
+public class SettlementEngine {
+
+    public SettlementPlan settle(NetBalances balances) {
+        int users = balances.size();
+        MaxHeap creditors = new MaxHeap(users); // keyed by how much they are owed
+        MaxHeap debtors = new MaxHeap(users); // keyed by how much they owe
+        for (int id = 0; id < users; id++) {
+            long cents = balances.cents(id);
+            if (cents > 0) {
+                creditors.push(id, cents);
+            } else if (cents < 0) {
+                debtors.push(id, -cents);
+            }
+        }
+
+        List<Transfer> transfers = new ArrayList<>();
+        long total = 0;
+        while (!creditors.isEmpty() && !debtors.isEmpty()) {
+            int creditor = creditors.peekId();
+            long owed = creditors.peekKey();
+            int debtor = debtors.peekId();
+            long owes = debtors.peekKey();
+            creditors.pop();
+            debtors.pop();
+
+            long amount = Math.min(owed, owes);
+            transfers.add(new Transfer(balances.name(debtor), balances.name(creditor), Cents.toAmount(amount)));
+            total += amount;
+
+            if (owed > amount) { // Whoever isn't settled yet goes back in with what is left
+                creditors.push(creditor, owed - amount);
+            } else if (owes > amount) {
+                debtors.push(debtor, owes - amount);
+            }
+        }
+
+        return new SettlementPlan(users, transfers, Cents.toAmount(total));
+    }
+}
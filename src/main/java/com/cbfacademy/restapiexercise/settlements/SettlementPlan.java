@@ -0,0 +1,8 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+// The transfers that settle every debt in a group, plus some totals to sanity check it against
+public record SettlementPlan(int users, List<Transfer> transfers, BigDecimal totalTransferred) {
+}
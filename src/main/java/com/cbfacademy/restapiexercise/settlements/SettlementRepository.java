@@ -0,0 +1,35 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.Repository;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+
+// Sums IOUs per (borrower, lender) pair in the database, so the engine receives one row per pair rather than one per IOU. Without a
+// date window the sums are already materialised in the balances table (see BalanceLedger) and are read from there instead
+@org.springframework.stereotype.Repository
+public interface SettlementRepository extends Repository<IOU, UUID> {
+
+    @Query("SELECT new com.cbfacademy.restapiexercise.settlements.PairTotal(i.borrower, i.lender, SUM(i.amount)) FROM IOU i "
+            + "WHERE i.dateTime >= :from AND i.dateTime < :to AND i.borrower IS NOT NULL AND i.lender IS NOT NULL AND i.amount IS NOT NULL "
+            + "GROUP BY i.borrower, i.lender")
+    List<PairTotal> sumByPair(Instant from, Instant to);
+
+    @Query("SELECT new com.cbfacademy.restapiexercise.settlements.PairTotal(i.borrower, i.lender, SUM(i.amount)) FROM IOU i "
+            + "WHERE i.dateTime >= :from AND i.dateTime < :to AND i.borrower IN :users AND i.lender IN :users AND i.amount IS NOT NULL "
+            + "GROUP BY i.borrower, i.lender")
+    List<PairTotal> sumByPairAmong(Collection<String> users, Instant from, Instant to);
+
+    @Query("SELECT new com.cbfacademy.restapiexercise.settlements.PairTotal(b.borrower, b.lender, b.amount) FROM Balance b")
+    List<PairTotal> balances();
+
+    // Only the pairs within the group - a primary key range per borrower rather than the whole balances table
+    @Query("SELECT new com.cbfacademy.restapiexercise.settlements.PairTotal(b.borrower, b.lender, b.amount) FROM Balance b "
+            + "WHERE b.borrower IN :users AND b.lender IN :users")
+    List<PairTotal> balancesAmong(Collection<String> users);
+}
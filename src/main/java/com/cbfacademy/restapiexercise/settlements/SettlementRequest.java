@@ -0,0 +1,8 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import java.time.Instant;
+import java.util.Set;
+
+// Which IOUs to settle: those between the given users (everyone when empty) dated within [from, to) (unbounded when null)
+public record SettlementRequest(Set<String> users, Instant from, Instant to) {
+}
@@ -0,0 +1,47 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+@Service
+public class SettlementService {
+
+    private static final Instant EARLIEST = Instant.parse("1000-01-01T00:00:00Z"); // Bounds of the MySQL DATETIME range, used for open-ended windows
+    private static final Instant LATEST = Instant.parse("9999-12-31T23:59:59Z");
+
+    private final SettlementRepository settlementRepository;
+    private final SettlementEngine settlementEngine;
+
+    @Autowired
+    public SettlementService(SettlementRepository settlementRepository, SettlementEngine settlementEngine) {
+        this.settlementRepository = settlementRepository;
+        this.settlementEngine = settlementEngine;
+    }
+
+    public SettlementPlan plan(SettlementRequest request) throws IllegalArgumentException {
+        Set<String> users = request.users() == null ? Set.of() : request.users();
+        if (request.from() != null && request.to() != null && !request.from().isBefore(request.to())) {
+            throw new IllegalArgumentException("from must be before to");
+        }
+
+        List<PairTotal> totals;
+        if (request.from() == null && request.to() == null) { // No date window - the materialised balances already hold the per-pair totals
+            totals = users.isEmpty() ? settlementRepository.balances() : settlementRepository.balancesAmong(users);
+        } else {
+            Instant from = request.from() == null ? EARLIEST : request.from();
+            Instant to = request.to() == null ? LATEST : request.to();
+            totals = users.isEmpty()
+                    ? settlementRepository.sumByPair(from, to)
+                    : settlementRepository.sumByPairAmong(users, from, to);
+        }
+
+        NetBalances balances = new NetBalances(users.size());
+        totals.forEach(total -> balances.add(total.borrower(), total.lender(), total.amount()));
+
+        return settlementEngine.settle(balances);
+    }
+}
@@ -0,0 +1,7 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import java.math.BigDecimal;
+
+// One payment in a settlement plan: from pays to the given amount
+public record Transfer(String from, String to, BigDecimal amount) {
+}
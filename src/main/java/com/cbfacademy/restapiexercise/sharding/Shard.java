@@ -0,0 +1,154 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import java.util.function.Function;
+
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.data.jpa.repository.support.JpaRepositoryFactory;
+import org.springframework.data.repository.core.support.PersistenceExceptionTranslationRepositoryProxyPostProcessor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.dao.DataAccessException;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.orm.jpa.JpaDialect;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.zaxxer.hikari.HikariDataSource;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// One shard: its own pool, its own JPA persistence unit holding just the IOU entity, and an IOURepository over them.
+// Shard transactions never take part in Spring's transaction synchronization, so the listeners bound to the main
+// database's transaction (balances, caches, the change tracker) only ever fire for that one.
+public class Shard implements AutoCloseable {
+
+    private final int index;
+    private final HikariDataSource dataSource;
+    private final LocalContainerEntityManagerFactoryBean entityManagerFactoryBean;
+    private final EntityManagerFactory entityManagerFactory;
+    private final JpaDialect jpaDialect;
+    private final JpaTransactionManager transactionManager;
+    private final EntityManager entityManager; // Bound to whichever transaction on this shard the calling thread has open
+    private final IOURepository repository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    private final TransactionTemplate transaction;
+
+    Shard(int index, HikariDataSource dataSource, LocalContainerEntityManagerFactoryBean entityManagerFactoryBean, ListableBeanFactory beanFactory) {
+        this.index = index;
+        this.dataSource = dataSource;
+        this.entityManagerFactoryBean = entityManagerFactoryBean;
+        this.entityManagerFactory = entityManagerFactoryBean.getObject();
+        this.jpaDialect = entityManagerFactoryBean.getJpaDialect();
+        this.transactionManager = new JpaTransactionManager(entityManagerFactory);
+        this.transactionManager.setTransactionSynchronization(AbstractPlatformTransactionManager.SYNCHRONIZATION_NEVER);
+        this.entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        JpaRepositoryFactory repositoryFactory = new JpaRepositoryFactory(entityManager);
+        repositoryFactory.addRepositoryProxyPostProcessor(new PersistenceExceptionTranslationRepositoryProxyPostProcessor(beanFactory)); // DataAccessExceptions, as from the main repository
+        this.repository = repositoryFactory.getRepository(IOURepository.class);
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.transaction = new TransactionTemplate(transactionManager);
+    }
+
+    public int index() {
+        return index;
+    }
+
+    public JdbcTemplate jdbcTemplate() { // For ShardRebalancer, which copies rows with plain JDBC
+        return jdbcTemplate;
+    }
+
+    public TransactionTemplate readOnlyTransaction() {
+        return readOnlyTransaction;
+    }
+
+    // Runs work against this shard on the calling thread. Inside a transaction on the main database the shard's transaction
+    // joins it: opened on first use, committed just before the main one commits and rolled back if it rolls back. An IOU and
+    // the balances it changes therefore commit together, unless the main commit itself fails after the shard's went through.
+    // Outside one, work gets a transaction of its own.
+    <T> T call(Function<IOURepository, T> work) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            return transaction.execute(status -> work.apply(repository));
+        }
+        joinCallersTransaction();
+        return work.apply(repository);
+    }
+
+    <T> T write(Function<IOURepository, T> work) { // Same, flushing straight away so a failed insert or update throws here rather than at commit
+        return call(repository -> {
+            T result = work.apply(repository);
+            entityManager.flush();
+            return result;
+        });
+    }
+
+    <T> T read(Function<IOURepository, T> work) { // Always a read-only transaction of its own - for the scatter-gather worker threads
+        return readOnlyTransaction.execute(status -> work.apply(repository));
+    }
+
+    void detach(Object entity) { // Lets a streamed IOU be garbage collected once it has been handed on
+        entityManager.detach(entity);
+    }
+
+    // Opened by hand rather than through transactionManager, which would suspend the caller's transaction synchronizations while
+    // the shard's transaction is open - and with them the one that commits it
+    private void joinCallersTransaction() {
+        if (TransactionSynchronizationManager.hasResource(entityManagerFactory)) {
+            return; // Already joined on this thread
+        }
+        DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+        definition.setReadOnly(TransactionSynchronizationManager.isCurrentTransactionReadOnly());
+        EntityManager transactional = entityManagerFactory.createEntityManager();
+        Object transactionData;
+        try {
+            transactionData = jpaDialect.beginTransaction(transactional, definition);
+        } catch (Exception e) {
+            transactional.close();
+            throw new CannotCreateTransactionException("Could not open a transaction on shard " + index, e);
+        }
+        EntityManagerHolder holder = new EntityManagerHolder(transactional);
+        holder.setSynchronizedWithTransaction(true);
+        TransactionSynchronizationManager.bindResource(entityManagerFactory, holder);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void beforeCommit(boolean readOnly) { // If this throws, the main transaction rolls back instead of committing
+                try {
+                    transactional.getTransaction().commit();
+                } catch (RuntimeException e) {
+                    DataAccessException translated = EntityManagerFactoryUtils.convertJpaAccessExceptionIfPossible(e);
+                    throw translated != null ? translated : e;
+                }
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(entityManagerFactory);
+                try {
+                    if (transactional.getTransaction().isActive()) {
+                        transactional.getTransaction().rollback();
+                    }
+                } finally {
+                    jpaDialect.cleanupTransaction(transactionData);
+                    transactional.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        entityManagerFactoryBean.destroy();
+        dataSource.close();
+    }
+}
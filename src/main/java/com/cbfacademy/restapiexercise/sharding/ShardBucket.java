@@ -0,0 +1,57 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+@Entity // Which shard holds one virtual bucket of IOUs, kept in the main database so every instance routes the same way
+@Table(name = "shard_buckets")
+public class ShardBucket {
+
+    @Id
+    private int bucket;
+
+    @Column(nullable = false)
+    private int shard; // Where reads and writes for the bucket go
+
+    private Integer movingTo; // Set while ShardRebalancer copies the bucket to another shard. Writes are refused until the copy is done
+
+    private Integer drainingFrom; // Set after the move until the old copy has been deleted from this shard
+
+    public ShardBucket() {
+    }
+
+    public ShardBucket(int bucket, int shard) {
+        this.bucket = bucket;
+        this.shard = shard;
+    }
+
+    public int getBucket() {
+        return bucket;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    public Integer getMovingTo() {
+        return movingTo;
+    }
+
+    public void setMovingTo(Integer movingTo) {
+        this.movingTo = movingTo;
+    }
+
+    public Integer getDrainingFrom() {
+        return drainingFrom;
+    }
+
+    public void setDrainingFrom(Integer drainingFrom) {
+        this.drainingFrom = drainingFrom;
+    }
+}
@@ -0,0 +1,9 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+// Thrown for a write to an IOU whose bucket ShardRebalancer is copying to another shard - the copy takes seconds, so retry shortly
+public class ShardBucketMovingException extends RuntimeException {
+
+    public ShardBucketMovingException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,8 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import org.springframework.data.repository.ListCrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ShardBucketRepository extends ListCrudRepository<ShardBucket, Integer> {
+}
@@ -0,0 +1,42 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+@RestController
+@RequestMapping(path = "/api/shards")
+@ConditionalOnProperty(name = "ious.sharding.enabled", havingValue = "true")
+public class ShardController {
+
+    private final ShardMap shardMap;
+    private final ShardRebalancer rebalancer;
+
+    @Autowired
+    public ShardController(ShardMap shardMap, ShardRebalancer rebalancer) {
+        this.shardMap = shardMap;
+        this.rebalancer = rebalancer;
+    }
+
+    @GetMapping // How many buckets each shard owns, and how many are part way through a move
+    public ShardMap.Status getStatus() {
+        return shardMap.status();
+    }
+
+    @PostMapping(path = "/rebalance") // Spreads the IOUs evenly over the first ?shards= shards, all of them by default
+    public ShardRebalancer.RebalanceResult rebalance(@RequestParam(required = false) Integer shards) {
+        try {
+            return rebalancer.rebalance(shards == null ? shardMap.shardCount() : shards);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+// Thrown when an update would give an IOU a borrower in another bucket. The id records the bucket, so delete the IOU and create a new one instead
+public class ShardKeyChangeException extends IllegalArgumentException {
+
+    public ShardKeyChangeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,37 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import java.util.UUID;
+
+import com.cbfacademy.restapiexercise.IOUS.UuidV7Generator;
+
+// IOUs are spread over a fixed number of virtual buckets by a hash of the borrower, and buckets are assigned to shards by
+// ShardMap. Changing the number of shards moves whole buckets, so no IOU ever needs a new id. The bucket is written into
+// every id (10 of the 62 random bits of a version 7 UUID), so a lookup by id goes straight to the right shard.
+public final class ShardKeys {
+
+    public static final int BUCKETS = 1024; // Also the most shards there can ever be
+    private static final int BUCKET_SHIFT = 52; // The bucket sits just below the two variant bits
+    private static final long BUCKET_MASK = (long) (BUCKETS - 1) << BUCKET_SHIFT;
+
+    private ShardKeys() {
+    }
+
+    public static int bucketOf(String borrower) { // Stable across JVMs and releases: String.hashCode is fixed by the language spec
+        int hash = borrower == null ? 0 : borrower.hashCode();
+        hash ^= hash >>> 16; // MurmurHash3's finaliser, so borrowers that differ in one character still land far apart
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash & (BUCKETS - 1);
+    }
+
+    public static int bucketOf(UUID id) {
+        return (int) ((id.getLeastSignificantBits() & BUCKET_MASK) >>> BUCKET_SHIFT);
+    }
+
+    public static UUID newId(int bucket) { // A version 7 UUID, still in creation order, carrying the bucket
+        UUID id = UuidV7Generator.next();
+        return new UUID(id.getMostSignificantBits(), (id.getLeastSignificantBits() & ~BUCKET_MASK) | ((long) bucket << BUCKET_SHIFT));
+    }
+}
@@ -0,0 +1,158 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+// Which shard owns each bucket, read from the shard_buckets table in the main database so every instance routes alike.
+// Each instance keeps its own copy and re-reads it every ious.sharding.refresh-interval; ShardRebalancer waits out that
+// interval between the steps of a move so no instance is ever more than one step behind.
+@Component
+@ConditionalOnProperty(name = "ious.sharding.enabled", havingValue = "true")
+public class ShardMap {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardMap.class);
+    private static final int NONE = -1;
+
+    public record Status(int shards, Map<Integer, Integer> bucketsPerShard, int bucketsMoving, int bucketsDraining) {
+    }
+
+    // One consistent view of every bucket, replaced as a whole on refresh
+    private record Assignment(int[] shard, int[] movingTo, int[] drainingFrom, boolean rebalancing) {
+    }
+
+    private final ShardBucketRepository repository;
+    private final int shardCount;
+    private volatile Assignment assignment;
+
+    @Autowired
+    public ShardMap(ShardBucketRepository repository, @Value("${ious.sharding.shard-count}") int shardCount) {
+        if (shardCount < 1 || shardCount > ShardKeys.BUCKETS) {
+            throw new IllegalStateException("ious.sharding.shard-count must be between 1 and " + ShardKeys.BUCKETS);
+        }
+        this.repository = repository;
+        this.shardCount = shardCount;
+        if (repository.count() == 0) {
+            initialise();
+        }
+        this.assignment = load(); // Fails startup if buckets live on shards this instance hasn't been given
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    public int shardOf(int bucket) {
+        return assignment.shard()[bucket];
+    }
+
+    public int shardForWrite(int bucket) throws ShardBucketMovingException { // Writes to a bucket being copied would be lost, so they wait
+        Assignment current = assignment;
+        if (current.movingTo()[bucket] != NONE) {
+            throw new ShardBucketMovingException("Bucket " + bucket + " is being moved to shard " + current.movingTo()[bucket] + ", please retry shortly");
+        }
+        return current.shard()[bucket];
+    }
+
+    public boolean owns(int shard, UUID id) { // False for the rows a move leaves behind, or has only half copied
+        return assignment.shard()[ShardKeys.bucketOf(id)] == shard;
+    }
+
+    public boolean isRebalancing() {
+        return assignment.rebalancing();
+    }
+
+    public int[] shards() { // Owning shard of every bucket, indexed by bucket
+        return assignment.shard().clone();
+    }
+
+    public List<ShardBucket> buckets() { // The rows as they are now, not as this instance last saw them
+        return repository.findAll();
+    }
+
+    public Status status() {
+        Assignment current = assignment;
+        Map<Integer, Integer> perShard = new TreeMap<>();
+        int moving = 0;
+        int draining = 0;
+        for (int bucket = 0; bucket < ShardKeys.BUCKETS; bucket++) {
+            perShard.merge(current.shard()[bucket], 1, Integer::sum);
+            moving += current.movingTo()[bucket] == NONE ? 0 : 1;
+            draining += current.drainingFrom()[bucket] == NONE ? 0 : 1;
+        }
+        return new Status(shardCount, perShard, moving, draining);
+    }
+
+    // Applies change to the given buckets' rows and saves them, then picks the result up straight away on this instance
+    public void update(Collection<Integer> buckets, Consumer<ShardBucket> change) {
+        List<ShardBucket> rows = repository.findAllById(buckets);
+        rows.forEach(change);
+        repository.saveAll(rows);
+        refresh();
+    }
+
+    @Scheduled(fixedDelayString = "${ious.sharding.refresh-interval:PT5S}", initialDelayString = "${ious.sharding.refresh-interval:PT5S}")
+    public void refresh() {
+        try {
+            assignment = load();
+        } catch (IllegalStateException e) { // e.g. another instance has been given more shards - keep routing as before rather than guess
+            log.error("Keeping the current shard map: {}", e.getMessage());
+        }
+    }
+
+    private void initialise() { // First start with sharding on: deal the buckets out round robin
+        List<ShardBucket> rows = new ArrayList<>(ShardKeys.BUCKETS);
+        for (int bucket = 0; bucket < ShardKeys.BUCKETS; bucket++) {
+            rows.add(new ShardBucket(bucket, bucket % shardCount));
+        }
+        try {
+            repository.saveAll(rows);
+            log.info("Assigned {} buckets to {} shards", ShardKeys.BUCKETS, shardCount);
+        } catch (DataIntegrityViolationException e) {
+            log.info("Another instance assigned the buckets first"); // Its assignment is read back by load()
+        }
+    }
+
+    private Assignment load() {
+        int[] shard = new int[ShardKeys.BUCKETS];
+        int[] movingTo = new int[ShardKeys.BUCKETS];
+        int[] drainingFrom = new int[ShardKeys.BUCKETS];
+        boolean[] seen = new boolean[ShardKeys.BUCKETS];
+        boolean rebalancing = false;
+        for (ShardBucket row : repository.findAll()) {
+            int bucket = row.getBucket();
+            shard[bucket] = checkShard(bucket, row.getShard());
+            movingTo[bucket] = row.getMovingTo() == null ? NONE : checkShard(bucket, row.getMovingTo());
+            drainingFrom[bucket] = row.getDrainingFrom() == null ? NONE : checkShard(bucket, row.getDrainingFrom());
+            rebalancing |= movingTo[bucket] != NONE || drainingFrom[bucket] != NONE;
+            seen[bucket] = true;
+        }
+        for (int bucket = 0; bucket < ShardKeys.BUCKETS; bucket++) {
+            if (!seen[bucket]) {
+                throw new IllegalStateException("shard_buckets has no row for bucket " + bucket);
+            }
+        }
+        return new Assignment(shard, movingTo, drainingFrom, rebalancing);
+    }
+
+    private int checkShard(int bucket, int shard) {
+        if (shard < 0 || shard >= shardCount) {
+            throw new IllegalStateException("Bucket " + bucket + " is on shard " + shard + " but ious.sharding.shard-count is " + shardCount
+                    + " - rebalance onto fewer shards before lowering it");
+        }
+        return shard;
+    }
+}
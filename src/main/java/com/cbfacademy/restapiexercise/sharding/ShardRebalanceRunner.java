@@ -0,0 +1,28 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+// Spreads the IOUs over every configured shard at startup when run with --ious.sharding.rebalance-on-startup=true,
+// e.g. straight after raising ious.sharding.shard-count
+@Component
+@ConditionalOnProperty(name = "ious.sharding.rebalance-on-startup", havingValue = "true")
+public class ShardRebalanceRunner implements ApplicationRunner {
+
+    private final ShardRebalancer rebalancer;
+    private final ShardMap shardMap;
+
+    @Autowired
+    public ShardRebalanceRunner(ShardRebalancer rebalancer, ShardMap shardMap) {
+        this.rebalancer = rebalancer;
+        this.shardMap = shardMap;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        rebalancer.rebalance(shardMap.shardCount());
+    }
+}
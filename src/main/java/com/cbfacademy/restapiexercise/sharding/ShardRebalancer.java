@@ -0,0 +1,278 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.stereotype.Service;
+
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.UuidColumns;
+
+// Moves buckets between shards so the IOUs end up spread evenly over the first n of them, e.g. after raising
+// ious.sharding.shard-count (grow) or before lowering it (shrink). Moves as few buckets as it can, a batch at a time, and
+// stays online throughout: for each batch it
+//   1. marks the buckets as moving, which holds writes to them back (ShardBucketMovingException, a 503 with Retry-After)
+//   2. copies their rows to the new shard, where reads ignore them until
+//   3. the buckets are switched to the new shard, which takes reads and writes from then on, and finally
+//   4. deletes the old copies, which reads had stopped seeing in step 3.
+// Between steps it waits ious.sharding.rebalance.settle-time for every instance to pick the change up. Each step is recorded in
+// shard_buckets first, so a rebalance that dies part way is finished off by the next one.
+@Service
+@ConditionalOnProperty(name = "ious.sharding.enabled", havingValue = "true")
+public class ShardRebalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardRebalancer.class);
+    private static final int BATCH_SIZE = 1000; // Rows per JDBC batch when copying or deleting
+    private static final String SELECT = "SELECT id, borrower, lender, amount, date_time, version FROM ious";
+    // Upserts, so a copy that was interrupted can simply be run again
+    private static final String UPSERT = "INSERT INTO ious (id, borrower, lender, amount, date_time, version) VALUES (?, ?, ?, ?, ?, ?)"
+            + " ON DUPLICATE KEY UPDATE borrower = VALUES(borrower), lender = VALUES(lender), amount = VALUES(amount),"
+            + " date_time = VALUES(date_time), version = VALUES(version)";
+    private static final String DELETE = "DELETE FROM ious WHERE id = ?";
+
+    private final Shards shards;
+    private final ShardMap shardMap;
+    private final int batchBuckets;
+    private final Duration settleTime;
+    private final ReentrantLock running = new ReentrantLock();
+
+    @Autowired
+    public ShardRebalancer(Shards shards, ShardMap shardMap, @Value("${ious.sharding.rebalance.batch-buckets:64}") int batchBuckets,
+            @Value("${ious.sharding.rebalance.settle-time:PT10S}") Duration settleTime) {
+        this.shards = shards;
+        this.shardMap = shardMap;
+        this.batchBuckets = batchBuckets;
+        this.settleTime = settleTime;
+    }
+
+    public record RebalanceResult(int shards, int bucketsMoved, long rowsCopied, long rowsDeleted, Map<Integer, Integer> bucketsPerShard, long millis) {
+    }
+
+    // Spreads the buckets over shards 0 to targetShards - 1. Throws IllegalStateException if a rebalance is already running here
+    public RebalanceResult rebalance(int targetShards) throws IllegalArgumentException, IllegalStateException {
+        if (targetShards < 1 || targetShards > shards.size()) {
+            throw new IllegalArgumentException("shards must be between 1 and " + shards.size() + " (ious.sharding.shard-count)");
+        }
+        if (!running.tryLock()) {
+            throw new IllegalStateException("A rebalance is already running");
+        }
+        try {
+            long started = System.nanoTime();
+            Rows rows = finishInterruptedMoves();
+            Map<Integer, Integer> moves = plan(shardMap.shards(), targetShards);
+            List<Integer> buckets = new ArrayList<>(moves.keySet());
+            for (int from = 0; from < buckets.size(); from += batchBuckets) {
+                List<Integer> batch = buckets.subList(from, Math.min(from + batchBuckets, buckets.size()));
+                shardMap.update(batch, bucket -> bucket.setMovingTo(moves.get(bucket.getBucket())));
+                rows = rows.plus(move(batch));
+                log.info("Moved {} of {} buckets", from + batch.size(), buckets.size());
+            }
+            RebalanceResult result = new RebalanceResult(targetShards, moves.size(), rows.copied(), rows.deleted(), shardMap.status().bucketsPerShard(),
+                    (System.nanoTime() - started) / 1_000_000);
+            log.info("Rebalanced the IOUs: {}", result);
+            return result;
+        } finally {
+            running.unlock();
+        }
+    }
+
+    // Which buckets go where so each of the first targetShards shards ends up with BUCKETS / targetShards of them, give or take
+    // one, moving as few as possible: buckets on shards being emptied, and the highest numbered buckets of shards over their share
+    static Map<Integer, Integer> plan(int[] shardOf, int targetShards) {
+        List<List<Integer>> owned = new ArrayList<>();
+        IntStream.range(0, targetShards).forEach(shard -> owned.add(new ArrayList<>()));
+        List<Integer> freed = new ArrayList<>();
+        for (int bucket = 0; bucket < shardOf.length; bucket++) {
+            (shardOf[bucket] < targetShards ? owned.get(shardOf[bucket]) : freed).add(bucket);
+        }
+
+        int[] quota = new int[targetShards];
+        List<Integer> fullestFirst = IntStream.range(0, targetShards).boxed()
+                .sorted(Comparator.comparing((Integer shard) -> owned.get(shard).size()).reversed().thenComparing(shard -> shard)).toList();
+        for (int i = 0; i < targetShards; i++) { // The shards already holding most get the remainder, so they keep more of what they have
+            quota[fullestFirst.get(i)] = shardOf.length / targetShards + (i < shardOf.length % targetShards ? 1 : 0);
+        }
+        for (int shard = 0; shard < targetShards; shard++) {
+            List<Integer> buckets = owned.get(shard);
+            while (buckets.size() > quota[shard]) {
+                freed.add(buckets.remove(buckets.size() - 1));
+            }
+        }
+
+        freed.sort(null);
+        Map<Integer, Integer> moves = new TreeMap<>();
+        int next = 0;
+        for (int shard = 0; shard < targetShards; shard++) {
+            for (int missing = quota[shard] - owned.get(shard).size(); missing > 0; missing--) {
+                moves.put(freed.get(next++), shard);
+            }
+        }
+        return moves;
+    }
+
+    private Rows finishInterruptedMoves() {
+        List<Integer> moving = new ArrayList<>();
+        List<Integer> draining = new ArrayList<>();
+        for (ShardBucket bucket : shardMap.buckets()) {
+            if (bucket.getMovingTo() != null) {
+                moving.add(bucket.getBucket());
+            } else if (bucket.getDrainingFrom() != null) {
+                draining.add(bucket.getBucket());
+            }
+        }
+        if (moving.isEmpty() && draining.isEmpty()) {
+            return new Rows(0, 0);
+        }
+        log.info("Finishing an interrupted rebalance: {} buckets still moving and {} still draining", moving.size(), draining.size());
+        Rows rows = moving.isEmpty() ? new Rows(0, 0) : move(moving);
+        return draining.isEmpty() ? rows : rows.plus(new Rows(0, drain(draining)));
+    }
+
+    private Rows move(List<Integer> batch) { // Steps 2 to 4 for buckets already marked as moving
+        awaitOtherInstances();
+        long copied = copy(batch);
+        shardMap.update(batch, bucket -> {
+            bucket.setDrainingFrom(bucket.getShard());
+            bucket.setShard(bucket.getMovingTo());
+            bucket.setMovingTo(null);
+        });
+        awaitOtherInstances();
+        return new Rows(copied, drain(batch));
+    }
+
+    private long copy(List<Integer> batch) {
+        Map<Integer, ShardBucket> buckets = byBucket(batch);
+        Map<Integer, Set<Integer>> bySource = new HashMap<>();
+        buckets.values().forEach(bucket -> bySource.computeIfAbsent(bucket.getShard(), shard -> new HashSet<>()).add(bucket.getBucket()));
+
+        long copied = 0;
+        for (Map.Entry<Integer, Set<Integer>> source : bySource.entrySet()) {
+            Map<Integer, List<Row>> pending = new HashMap<>(); // Rows waiting to be written, by target shard
+            long[] rows = { 0 };
+            scan(shards.get(source.getKey()), source.getValue(), row -> {
+                int target = buckets.get(ShardKeys.bucketOf(row.id())).getMovingTo();
+                List<Row> forTarget = pending.computeIfAbsent(target, shard -> new ArrayList<>());
+                forTarget.add(row);
+                if (forTarget.size() == BATCH_SIZE) {
+                    upsert(shards.get(target), forTarget);
+                    forTarget.clear();
+                }
+                rows[0]++;
+            });
+            pending.forEach((target, remaining) -> upsert(shards.get(target), remaining));
+            copied += rows[0];
+        }
+        return copied;
+    }
+
+    private long drain(List<Integer> batch) { // Deletes the copies left behind on the old shards, then forgets them
+        Map<Integer, Set<Integer>> byOldShard = new HashMap<>();
+        byBucket(batch).values().forEach(bucket -> byOldShard.computeIfAbsent(bucket.getDrainingFrom(), shard -> new HashSet<>()).add(bucket.getBucket()));
+
+        long deleted = 0;
+        for (Map.Entry<Integer, Set<Integer>> old : byOldShard.entrySet()) {
+            Shard shard = shards.get(old.getKey());
+            List<UUID> ids = new ArrayList<>();
+            scan(shard, old.getValue(), row -> ids.add(row.id()));
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                List<UUID> chunk = ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()));
+                shard.jdbcTemplate().batchUpdate(DELETE, chunk, chunk.size(),
+                        (statement, id) -> statement.setObject(1, UuidColumns.write(id, statement.getConnection())));
+            }
+            deleted += ids.size();
+        }
+        shardMap.update(batch, bucket -> bucket.setDrainingFrom(null));
+        return deleted;
+    }
+
+    // Streams every row of one shard's ious table, handing on those in the given buckets. Buckets aren't a column, so it reads the lot
+    private void scan(Shard shard, Set<Integer> buckets, Consumer<Row> consumer) {
+        shard.readOnlyTransaction().executeWithoutResult(status -> shard.jdbcTemplate().query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(SELECT, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(IOURepository.STREAM_FETCH_SIZE);
+            return statement;
+        }, resultSet -> {
+            UUID id = UuidColumns.read(resultSet.getObject(1));
+            if (buckets.contains(ShardKeys.bucketOf(id))) {
+                Timestamp dateTime = resultSet.getTimestamp(5);
+                consumer.accept(new Row(id, resultSet.getString(2), resultSet.getString(3), resultSet.getBigDecimal(4),
+                        dateTime == null ? null : dateTime.toInstant(), resultSet.getObject(6) == null ? null : resultSet.getLong(6)));
+            }
+        }));
+    }
+
+    private void upsert(Shard target, List<Row> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        target.jdbcTemplate().batchUpdate(UPSERT, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement statement, int i) throws SQLException {
+                Row row = rows.get(i);
+                statement.setObject(1, UuidColumns.write(row.id(), statement.getConnection()));
+                statement.setString(2, row.borrower());
+                statement.setString(3, row.lender());
+                statement.setBigDecimal(4, row.amount());
+                statement.setTimestamp(5, row.dateTime() == null ? null : Timestamp.from(row.dateTime()));
+                statement.setObject(6, row.version());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return rows.size();
+            }
+        });
+    }
+
+    private Map<Integer, ShardBucket> byBucket(List<Integer> batch) {
+        Map<Integer, ShardBucket> buckets = new HashMap<>();
+        Set<Integer> wanted = new HashSet<>(batch);
+        shardMap.buckets().stream().filter(bucket -> wanted.contains(bucket.getBucket())).forEach(bucket -> buckets.put(bucket.getBucket(), bucket));
+        return buckets;
+    }
+
+    private void awaitOtherInstances() {
+        if (settleTime.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(settleTime);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rebalancing - the next rebalance will finish the buckets already started", e);
+        }
+    }
+
+    private record Row(UUID id, String borrower, String lender, BigDecimal amount, Instant dateTime, Long version) {
+    }
+
+    private record Rows(long copied, long deleted) {
+
+        Rows plus(Rows other) {
+            return new Rows(copied + other.copied, deleted + other.deleted);
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.repository.query.FluentQuery;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountTotals;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+
+// IOURepository spread over the shards, standing in for the single-database one when ious.sharding.enabled=true. Calls that
+// name a borrower or an id go to the one shard owning its bucket; everything else runs on every shard in parallel and the
+// results are merged. Rows a shard holds for a bucket it doesn't own - a half-made copy while the bucket moves in, or the old
+// copy waiting to be deleted after it moved out - are left out of merged results, so each IOU is seen exactly once.
+public class ShardedIOURepository implements IOURepository, DisposableBean {
+
+    // The order the page and stream queries sort in. UUIDs compare as unsigned bytes, as MySQL's binary(16) and H2's uuid do
+    static final Comparator<IOU> PAGE_ORDER = Comparator.comparing(IOU::getDateTime, Comparator.nullsFirst(Comparator.<Instant>naturalOrder()))
+            .thenComparing(IOU::getId, ShardedIOURepository::compareIds);
+
+    private final Shards shards;
+    private final ShardMap shardMap;
+    private final ExecutorService scatter = Executors.newVirtualThreadPerTaskExecutor(); // Workers only wait on their shard's connection pool
+
+    public ShardedIOURepository(Shards shards, ShardMap shardMap) {
+        this.shards = shards;
+        this.shardMap = shardMap;
+    }
+
+    @Override
+    public <S extends IOU> S save(S iou) throws ShardKeyChangeException, ShardBucketMovingException {
+        Shard shard = shardForWrite(iou);
+        return shard.write(repository -> repository.save(iou));
+    }
+
+    @Override
+    public <S extends IOU> List<S> saveAll(Iterable<S> ious) throws ShardKeyChangeException, ShardBucketMovingException {
+        Map<Shard, List<Integer>> positions = new LinkedHashMap<>(); // Each shard's IOUs, by their position in ious
+        List<S> input = new ArrayList<>();
+        for (S iou : ious) {
+            positions.computeIfAbsent(shardForWrite(iou), shard -> new ArrayList<>()).add(input.size());
+            input.add(iou);
+        }
+        List<S> saved = new ArrayList<>(input);
+        positions.forEach((shard, indexes) -> {
+            List<S> batch = indexes.stream().map(input::get).toList();
+            List<S> result = shard.write(repository -> repository.saveAll(batch));
+            for (int i = 0; i < indexes.size(); i++) {
+                saved.set(indexes.get(i), result.get(i));
+            }
+        });
+        return saved;
+    }
+
+    @Override
+    public Optional<IOU> findById(UUID id) {
+        return shardOf(id).call(repository -> repository.findById(id));
+    }
+
+    @Override
+    public boolean existsById(UUID id) {
+        return shardOf(id).call(repository -> repository.existsById(id));
+    }
+
+    @Override
+    public Optional<IOU> findDetachedById(UUID id) {
+        return shardOf(id).call(repository -> repository.findDetachedById(id));
+    }
+
+    @Override
+    public List<IOU> findByBorrower(String borrower) { // Every IOU of a borrower shares one bucket
+        return shards.get(shardMap.shardOf(ShardKeys.bucketOf(borrower))).call(repository -> repository.findByBorrower(borrower));
+    }
+
+    @Override
+    public List<IOU> findAllById(Iterable<UUID> ids) {
+        Map<Shard, List<UUID>> byShard = new LinkedHashMap<>();
+        ids.forEach(id -> byShard.computeIfAbsent(shardOf(id), shard -> new ArrayList<>()).add(id));
+        List<IOU> found = new ArrayList<>();
+        byShard.forEach((shard, shardIds) -> found.addAll(shard.call(repository -> repository.findAllById(shardIds))));
+        return found;
+    }
+
+    // An id keeps its bucket for life, so an update that moves the IOU to a borrower in another bucket is refused
+    @Override
+    public int updateIfVersionMatches(UUID id, long version, String borrower, String lender, BigDecimal amount, Instant dateTime)
+            throws ShardKeyChangeException, ShardBucketMovingException {
+        int bucket = ShardKeys.bucketOf(id);
+        if (ShardKeys.bucketOf(borrower) != bucket) {
+            throw new ShardKeyChangeException("IOU " + id + " can't be given borrower " + borrower + ", who is stored on another shard - delete it and create a new IOU instead");
+        }
+        return shards.get(shardMap.shardForWrite(bucket)).write(repository -> repository.updateIfVersionMatches(id, version, borrower, lender, amount, dateTime));
+    }
+
+    @Override
+    public int deleteIfVersionMatches(UUID id, long version) throws ShardBucketMovingException {
+        return writeShardOf(id).write(repository -> repository.deleteIfVersionMatches(id, version));
+    }
+
+    @Override
+    public void deleteById(UUID id) throws ShardBucketMovingException {
+        writeShardOf(id).write(repository -> {
+            repository.deleteById(id);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(IOU iou) throws ShardBucketMovingException {
+        deleteById(iou.getId());
+    }
+
+    @Override
+    public void deleteAllById(Iterable<? extends UUID> ids) throws ShardBucketMovingException {
+        ids.forEach(this::deleteById);
+    }
+
+    @Override
+    public void deleteAll(Iterable<? extends IOU> ious) throws ShardBucketMovingException {
+        ious.forEach(this::delete);
+    }
+
+    @Override
+    public void deleteAll() throws ShardBucketMovingException {
+        settled("deleteAll()");
+        shards.all().forEach(shard -> shard.write(repository -> {
+            repository.deleteAll();
+            return null;
+        }));
+    }
+
+    @Override
+    public List<IOU> findAll() {
+        return concat(onEveryShard(IOURepository::findAll));
+    }
+
+    @Override
+    public List<IOU> findAllDetached() {
+        return concat(onEveryShard(IOURepository::findAllDetached));
+    }
+
+    @Override
+    public List<IOU> findByAmountGreaterThan(BigDecimal amount) {
+        return concat(onEveryShard(repository -> repository.findByAmountGreaterThan(amount)));
+    }
+
+    @Override
+    public List<IOU> findByAmountLessThanEqual(BigDecimal amount) {
+        return concat(onEveryShard(repository -> repository.findByAmountLessThanEqual(amount)));
+    }
+
+    @Override
+    public List<IOU> findAll(Specification<IOU> spec) {
+        return concat(onEveryShard(repository -> repository.findAll(spec)));
+    }
+
+    // Each shard returns its own first limit rows in page order, so the first limit of their merge are the first limit overall
+    @Override
+    public List<IOU> findFirstPage(Limit limit) {
+        return page(null, null, limit);
+    }
+
+    @Override
+    public List<IOU> findPageAfter(Instant dateTime, UUID id, Limit limit) {
+        return page(dateTime, id, limit);
+    }
+
+    @Override
+    public List<IOU> findPageAfterUndated(UUID id, Limit limit) {
+        return page(null, id, limit);
+    }
+
+    @Override
+    public Optional<IOU> findOne(Specification<IOU> spec) {
+        List<IOU> found = findAll(spec);
+        if (found.size() > 1) {
+            throw new IncorrectResultSizeDataAccessException(1, found.size());
+        }
+        return found.stream().findFirst();
+    }
+
+    // Backs the filtered pages, so each shard's list is taken to be in (dateTime, id) order and the merge keeps that order. A shard
+    // that returned rows of a bucket it doesn't own may have left out rows it does own to make up its limit, so that case is refused
+    @Override
+    @SuppressWarnings("unchecked")
+    public <S extends IOU, R> R findBy(Specification<IOU> spec, Function<FluentQuery.FetchableFluentQuery<S>, R> queryFunction) throws ShardBucketMovingException {
+        List<List<IOU>> results = onEveryShard(repository -> {
+            R result = repository.findBy(spec, queryFunction);
+            if (!(result instanceof List<?> list)) {
+                throw new UnsupportedOperationException("Sharded findBy only supports queries that return a List, e.g. q -> q.sortBy(...).limit(n).all()");
+            }
+            return (List<IOU>) list;
+        });
+        List<IOU> owned = concat(results);
+        if (owned.size() < results.stream().mapToInt(List::size).sum()) {
+            throw new ShardBucketMovingException("Some of the matching IOUs are being moved to another shard, please retry shortly");
+        }
+        owned.sort(PAGE_ORDER);
+        return (R) owned;
+    }
+
+    // Totals are added up in SQL on each shard. While buckets are moving, some rows exist twice, so they are added up from the owned rows instead
+    @Override
+    public IOUAmountTotals sumAmounts() {
+        if (shardMap.isRebalancing()) {
+            List<IOU> owned = findAllDetached().stream().filter(iou -> iou.getAmount() != null).toList();
+            return new IOUAmountTotals((long) owned.size(), owned.stream().map(IOU::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add));
+        }
+        List<IOUAmountTotals> totals = onEveryShard(IOURepository::sumAmounts);
+        return new IOUAmountTotals(totals.stream().mapToLong(IOUAmountTotals::count).sum(),
+                totals.stream().map(IOUAmountTotals::sum).reduce(BigDecimal.ZERO, BigDecimal::add));
+    }
+
+    @Override
+    public long count() {
+        if (shardMap.isRebalancing()) {
+            return findAllDetached().size();
+        }
+        return onEveryShard(IOURepository::count).stream().mapToLong(Long::longValue).sum();
+    }
+
+    @Override
+    public long count(Specification<IOU> spec) {
+        if (shardMap.isRebalancing()) {
+            return findAll(spec).size();
+        }
+        return onEveryShard(repository -> repository.count(spec)).stream().mapToLong(Long::longValue).sum();
+    }
+
+    @Override
+    public boolean exists(Specification<IOU> spec) {
+        if (shardMap.isRebalancing()) {
+            return !findAll(spec).isEmpty();
+        }
+        return onEveryShard(repository -> repository.exists(spec)).contains(true);
+    }
+
+    @Override
+    public long delete(Specification<IOU> spec) throws ShardBucketMovingException {
+        settled("delete(Specification)");
+        return shards.all().stream().mapToLong(shard -> shard.write(repository -> repository.delete(spec))).sum();
+    }
+
+    // Merges the shards' streams, each already in (dateTime, id) order, into one. Like the single-database version it must be
+    // called inside a transaction and closed after use; every shard's cursor stays open until then
+    @Override
+    public Stream<IOU> streamAll() {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new InvalidDataAccessApiUsageException("streamAll() must be called inside a transaction");
+        }
+        List<Stream<IOU>> streams = new ArrayList<>();
+        PriorityQueue<Cursor> heads = new PriorityQueue<>(Comparator.comparing(Cursor::current, PAGE_ORDER));
+        try {
+            for (Shard shard : shards.all()) {
+                Stream<IOU> stream = shard.call(IOURepository::streamAll);
+                streams.add(stream);
+                Cursor cursor = new Cursor(shard, stream.iterator());
+                if (cursor.advance()) {
+                    heads.add(cursor);
+                }
+            }
+        } catch (RuntimeException e) {
+            streams.forEach(Stream::close);
+            throw e;
+        }
+
+        Iterator<IOU> merged = new Iterator<>() {
+            private Cursor last; // Its current IOU was handed out last, so is detached before moving on
+
+            @Override
+            public boolean hasNext() {
+                if (last != null) {
+                    last.shard.detach(last.current);
+                    if (last.advance()) {
+                        heads.add(last);
+                    }
+                    last = null;
+                }
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public IOU next() {
+                if (!hasNext()) {
+                    throw new java.util.NoSuchElementException();
+                }
+                last = heads.poll();
+                return last.current;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> streams.forEach(Stream::close));
+    }
+
+    @Override
+    public Page<IOU> findAll(Specification<IOU> spec, Pageable pageable) {
+        throw new UnsupportedOperationException("Offset pages can't be merged across shards - use findFirstPage/findPageAfter");
+    }
+
+    @Override
+    public List<IOU> findAll(Specification<IOU> spec, Sort sort) {
+        throw new UnsupportedOperationException("Only (dateTime, id) order can be merged across shards - use findBy with sortBy");
+    }
+
+    @Override
+    public void destroy() {
+        scatter.close();
+    }
+
+    // One shard's stream, positioned on the IOU it will hand out next
+    private class Cursor {
+
+        private final Shard shard;
+        private final Iterator<IOU> rows;
+        private IOU current;
+
+        Cursor(Shard shard, Iterator<IOU> rows) {
+            this.shard = shard;
+            this.rows = rows;
+        }
+
+        IOU current() {
+            return current;
+        }
+
+        boolean advance() { // Skips rows this shard holds for buckets it doesn't own
+            while (rows.hasNext()) {
+                IOU next = rows.next();
+                if (shardMap.owns(shard.index(), next.getId())) {
+                    current = next;
+                    return true;
+                }
+                shard.detach(next);
+            }
+            return false;
+        }
+    }
+
+    private Shard shardForWrite(IOU iou) throws ShardKeyChangeException, ShardBucketMovingException {
+        int bucket = ShardKeys.bucketOf(iou.getBorrower());
+        if (iou.getId() == null) {
+            iou.setId(ShardKeys.newId(bucket)); // Assigned here so the id carries the bucket
+        } else if (ShardKeys.bucketOf(iou.getId()) != bucket) {
+            throw new ShardKeyChangeException("IOU " + iou.getId() + " can't be given borrower " + iou.getBorrower() + ", who is stored on another shard - delete it and create a new IOU instead");
+        }
+        return shards.get(shardMap.shardForWrite(bucket));
+    }
+
+    private Shard shardOf(UUID id) {
+        return shards.get(shardMap.shardOf(ShardKeys.bucketOf(id)));
+    }
+
+    private Shard writeShardOf(UUID id) throws ShardBucketMovingException {
+        return shards.get(shardMap.shardForWrite(ShardKeys.bucketOf(id)));
+    }
+
+    private void settled(String operation) throws ShardBucketMovingException {
+        if (shardMap.isRebalancing()) {
+            throw new ShardBucketMovingException(operation + " can't run while shards are being rebalanced, please retry once it has finished");
+        }
+    }
+
+    // Runs work on every shard at once, each in a read-only transaction of its own. Results are in shard order
+    private <T> List<T> onEveryShard(Function<IOURepository, T> work) {
+        return gather(shard -> shard.read(work));
+    }
+
+    private <T> List<T> gather(Function<Shard, T> work) {
+        List<Future<T>> futures = new ArrayList<>(shards.size());
+        for (Shard shard : shards.all()) {
+            futures.add(scatter.submit(() -> work.apply(shard)));
+        }
+        List<T> results = new ArrayList<>(shards.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+            throw new IllegalStateException("Interrupted while querying the shards", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause; // Already translated to a DataAccessException by the shard's repository
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+
+    private List<IOU> concat(List<? extends List<IOU>> perShard) { // perShard is in shard order, as from onEveryShard
+        List<IOU> all = new ArrayList<>();
+        for (int shard = 0; shard < perShard.size(); shard++) {
+            for (IOU iou : perShard.get(shard)) {
+                if (shardMap.owns(shard, iou.getId())) {
+                    all.add(iou);
+                }
+            }
+        }
+        return all;
+    }
+
+    private List<IOU> page(Instant dateTime, UUID id, Limit limit) {
+        List<IOU> merged = new ArrayList<>();
+        gather(shard -> shard.read(repository -> ownedPage(shard, repository, dateTime, id, limit))).forEach(merged::addAll);
+        merged.sort(PAGE_ORDER);
+        return limit.isLimited() && merged.size() > limit.max() ? List.copyOf(merged.subList(0, limit.max())) : merged;
+    }
+
+    // Up to limit rows from one shard that it owns, reading on past the rows it doesn't so a move in progress can't cut the page short
+    private List<IOU> ownedPage(Shard shard, IOURepository repository, Instant dateTime, UUID id, Limit limit) {
+        List<IOU> owned = new ArrayList<>();
+        while (true) {
+            List<IOU> rows = id == null ? repository.findFirstPage(limit)
+                    : dateTime == null ? repository.findPageAfterUndated(id, limit) : repository.findPageAfter(dateTime, id, limit);
+            rows.stream().filter(iou -> shardMap.owns(shard.index(), iou.getId())).forEach(owned::add);
+            if (!limit.isLimited() || rows.size() < limit.max() || owned.size() >= limit.max()) {
+                return owned;
+            }
+            IOU last = rows.get(rows.size() - 1);
+            dateTime = last.getDateTime();
+            id = last.getId();
+        }
+    }
+
+    static int compareIds(UUID a, UUID b) {
+        int high = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+        return high != 0 ? high : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    }
+}
@@ -0,0 +1,88 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateProperties;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateSettings;
+import org.springframework.boot.autoconfigure.orm.jpa.JpaProperties;
+import org.springframework.boot.orm.jpa.EntityManagerFactoryBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.zaxxer.hikari.HikariDataSource;
+
+// With ious.sharding.enabled=true, the ious table is spread over ious.sharding.shard-count databases, ious.sharding.url with
+// {shard} replaced by 0, 1, 2... Everything else - balances, idempotency keys and the shard map itself - stays in the main
+// database (spring.datasource.*). IOUService and friends are unchanged: they get ShardedIOURepository as their IOURepository.
+@Configuration
+@ConditionalOnProperty(name = "ious.sharding.enabled", havingValue = "true")
+public class ShardingConfig {
+
+    // Features that read or write the ious table with SQL of their own, so would only ever see the main database's (empty) copy
+    private static final Map<String, Boolean> INCOMPATIBLE = Map.of(
+            "ious.event-log.enabled", true, // value = the feature's default
+            "ious.read-model.enabled", false,
+            "ious.write-behind.enabled", false,
+            "ious.replica.enabled", false,
+            "ious.balances.rebuild-on-startup", false);
+
+    @Bean(destroyMethod = "close")
+    public Shards shards(Environment environment, EntityManagerFactoryBuilder builder, JpaProperties jpaProperties, HibernateProperties hibernateProperties,
+            ListableBeanFactory beanFactory) {
+        List<String> conflicts = INCOMPATIBLE.entrySet().stream()
+                .filter(feature -> environment.getProperty(feature.getKey(), Boolean.class, feature.getValue()))
+                .map(Map.Entry::getKey).sorted().toList();
+        if (!conflicts.isEmpty()) {
+            throw new IllegalStateException("ious.sharding.enabled=true can't be combined with " + String.join(", ", conflicts) + " - set them to false");
+        }
+
+        // The same Hibernate settings as the main database, except the dialect: each shard's is worked out from its own connection
+        Map<String, Object> jpa = new HashMap<>(hibernateProperties.determineHibernateProperties(jpaProperties.getProperties(),
+                new HibernateSettings().ddlAuto(() -> "update")));
+        jpa.remove("hibernate.dialect");
+
+        int count = environment.getRequiredProperty("ious.sharding.shard-count", Integer.class);
+        String url = environment.getRequiredProperty("ious.sharding.url");
+        if (count > 1 && !url.contains("{shard}")) {
+            throw new IllegalStateException("ious.sharding.url must contain {shard} so each shard gets a database of its own");
+        }
+        List<Shard> shards = new ArrayList<>(count);
+        try {
+            for (int index = 0; index < count; index++) {
+                HikariDataSource dataSource = new HikariDataSource();
+                dataSource.setPoolName("shard-" + index);
+                dataSource.setJdbcUrl(url.replace("{shard}", Integer.toString(index)));
+                dataSource.setUsername(environment.getProperty("ious.sharding.username", environment.getProperty("spring.datasource.username")));
+                dataSource.setPassword(environment.getProperty("ious.sharding.password", environment.getProperty("spring.datasource.password")));
+                dataSource.setMaximumPoolSize(environment.getProperty("ious.sharding.maximum-pool-size", Integer.class, 10));
+
+                LocalContainerEntityManagerFactoryBean entityManagerFactory = builder.dataSource(dataSource)
+                        .packages(IOU.class)
+                        .persistenceUnit("shard-" + index)
+                        .properties(jpa)
+                        .build();
+                entityManagerFactory.afterPropertiesSet();
+                shards.add(new Shard(index, dataSource, entityManagerFactory, beanFactory));
+            }
+        } catch (RuntimeException e) {
+            shards.forEach(Shard::close);
+            throw e;
+        }
+        return new Shards(shards);
+    }
+
+    @Bean
+    @Primary // Injected wherever an IOURepository is asked for, instead of the one Spring Data builds over the main database
+    public ShardedIOURepository shardedIOURepository(Shards shards, ShardMap shardMap) {
+        return new ShardedIOURepository(shards, shardMap);
+    }
+}
@@ -0,0 +1,30 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import java.util.List;
+
+// Every shard this instance has open, in index order - shard i is Shards.get(i)
+public class Shards implements AutoCloseable {
+
+    private final List<Shard> shards;
+
+    Shards(List<Shard> shards) {
+        this.shards = List.copyOf(shards);
+    }
+
+    public Shard get(int index) {
+        return shards.get(index);
+    }
+
+    public List<Shard> all() {
+        return shards;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    @Override
+    public void close() {
+        shards.forEach(Shard::close);
+    }
+}
@@ -0,0 +1,245 @@
+package com.cbfacademy.restapiexercise.writebehind;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUBatchService;
+import com.cbfacademy.restapiexercise.IOUS.IOUChangedEvent;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.UuidV7Generator;
+import com.cbfacademy.restapiexercise.datasource.ReplicaRoutingDataSource;
+import com.cbfacademy.restapiexercise.eventlog.IOUEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceException;
+
+// Opt-in (ious.write-behind.enabled=true) write-behind for POST /api/ious. The IOU gets its id straight away and is queued
+// on local disk, and the request returns as soon as that is durable. One background writer drains the queue into the ious
+// table, ious.write-behind.batch-size IOUs per transaction. An IOU queued but not yet written can't be read back through
+// the API yet - GET /api/ious/write-behind/{id} says whether it has been, or whether the database refused it.
+@Service
+@ConditionalOnProperty(name = "ious.write-behind.enabled", havingValue = "true")
+public class IOUWriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(IOUWriteBehind.class);
+    static final int MAX_NAME_LENGTH = 255; // The borrower and lender column size - longer names would only fail later, in the writer
+    static final int MAX_AMOUNT_DIGITS = 36; // Digits before the point: amount is a DECIMAL(38,2) column
+    static final String REJECTED = "rejected.ndjson";
+
+    private final IOUWriteQueue queue;
+    private final Path rejectedFile;
+    private final int batchSize;
+    private final IOURepository iouRepository;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ObjectMapper objectMapper;
+    private final Set<UUID> rejectedIds = ConcurrentHashMap.newKeySet(); // Everything in rejectedFile, so GET /write-behind/{id} can say so
+
+    private volatile Thread writer;
+    private volatile boolean running;
+    private volatile long written; // Since startup
+    private volatile long rejected;
+
+    @Autowired
+    public IOUWriteBehind(@Value("${ious.write-behind.directory:data/write-behind}") Path directory,
+            @Value("${ious.write-behind.segment-size:16MB}") DataSize segmentSize, @Value("${ious.write-behind.capacity:100000}") int capacity,
+            @Value("${ious.write-behind.batch-size:500}") int batchSize, IOURepository iouRepository, EntityManager entityManager,
+            TransactionTemplate transactionTemplate, ApplicationEventPublisher eventPublisher, ObjectMapper objectMapper) throws IOException {
+        this.queue = new IOUWriteQueue(directory, segmentSize, capacity);
+        this.rejectedFile = directory.resolve(REJECTED);
+        this.batchSize = batchSize;
+        this.iouRepository = iouRepository;
+        this.entityManager = entityManager;
+        this.transactionTemplate = transactionTemplate;
+        this.eventPublisher = eventPublisher;
+        this.objectMapper = objectMapper;
+        if (Files.exists(rejectedFile)) {
+            for (String line : Files.readAllLines(rejectedFile)) {
+                if (!line.isBlank()) {
+                    rejectedIds.add(objectMapper.readValue(line, IOU.class).getId());
+                }
+            }
+        }
+    }
+
+    // Queues the IOU and returns its id once it is on disk
+    public UUID submit(IOU iou) throws IllegalArgumentException, WriteQueueFullException {
+        return enqueue(prepare(iou));
+    }
+
+    // Checks the IOU and gives it its id, without queuing it yet - see IdempotentIOUService, which only queues once the key has committed
+    public IOU prepare(IOU iou) throws IllegalArgumentException {
+        String problem = IOUBatchService.validate(iou);
+        if (problem == null && (iou.getBorrower().length() > MAX_NAME_LENGTH || iou.getLender().length() > MAX_NAME_LENGTH)) {
+            problem = "borrower and lender can be at most " + MAX_NAME_LENGTH + " characters";
+        }
+        if (problem == null && iou.getAmount().precision() - iou.getAmount().scale() > MAX_AMOUNT_DIGITS) {
+            problem = "amount can have at most " + MAX_AMOUNT_DIGITS + " digits before the decimal point";
+        }
+        if (problem != null) {
+            throw new IllegalArgumentException(problem); // Caught now, while the client can still be told
+        }
+
+        IOU queued = new IOU(iou);
+        queued.setId(UuidV7Generator.next());
+        queued.setVersion(null); // Inserted as a new row, whatever the client sent
+        return queued;
+    }
+
+    public UUID enqueue(IOU prepared) throws WriteQueueFullException { // Returns once the IOU is on disk
+        return queue.append(prepared).id();
+    }
+
+    public Optional<Status> getStatus(UUID id) { // QUEUED until the writer has inserted it, then WRITTEN - or REJECTED if the database refused it
+        if (queue.find(id).isPresent()) {
+            return Optional.of(Status.QUEUED);
+        }
+        if (existsOnPrimary(id)) { // Before the rejected list, so the row itself has the last word
+            return Optional.of(Status.WRITTEN);
+        }
+        return rejectedIds.contains(id) ? Optional.of(Status.REJECTED) : Optional.empty();
+    }
+
+    public enum Status {
+        QUEUED, WRITTEN, REJECTED
+    }
+
+    public QueueStatus getQueueStatus() {
+        IOUWriteQueue.Status status = queue.status();
+        return new QueueStatus(status.queued(), status.capacity(), status.lastQueued(), status.lastWritten(), status.oldestQueuedAt(),
+                written, rejected, running);
+    }
+
+    @EventListener(ApplicationReadyEvent.class) // Once the database is ready, including IOUs queued before the last shutdown or crash
+    public void start() {
+        running = true;
+        writer = Thread.ofPlatform().name("ious-write-behind").daemon().start(this::run);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        running = false;
+        Thread current = writer;
+        if (current != null) {
+            queue.wakeUp();
+            current.join(Duration.ofSeconds(30)); // Finishes the batch in hand; the rest stays queued on disk for next time
+        }
+        queue.close();
+    }
+
+    // Writes the next batch and returns how many IOUs left the queue. A failure that isn't about the IOUs themselves (the database
+    // being down, say) is thrown and the batch stays queued
+    public int drainOnce() {
+        List<IOUEvent> batch = queue.peek(batchSize);
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> insert(batch));
+            written += batch.size();
+        } catch (DataIntegrityViolationException | PersistenceException e) {
+            entityManager.clear();
+            drainOneByOne(batch); // Some IOUs are already in the table (from before a crash) or can't be inserted at all
+        }
+        queue.acknowledge(batch.get(batch.size() - 1).sequence());
+        return batch.size();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (drainOnce() == 0) {
+                    queue.awaitAppend(Duration.ofSeconds(1));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Could not write queued IOUs, retrying in 1s", e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void drainOneByOne(List<IOUEvent> batch) {
+        Set<UUID> existing = new HashSet<>();
+        ReplicaRoutingDataSource.onPrimary(() -> iouRepository.findAllById(batch.stream().map(IOUEvent::id).toList())) // Not yet on the replica
+                .forEach(iou -> existing.add(iou.getId()));
+        entityManager.clear();
+        for (IOUEvent event : batch) {
+            if (existing.contains(event.id())) {
+                continue; // Inserted before a crash stopped the checkpoint from moving past it
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> insert(List.of(event)));
+                written++;
+            } catch (DataIntegrityViolationException | PersistenceException e) {
+                entityManager.clear();
+                if (existsOnPrimary(event.id())) {
+                    continue; // Its own id already taken: it was written after all, by an earlier attempt
+                }
+                reject(event, e);
+            }
+        }
+    }
+
+    private boolean existsOnPrimary(UUID id) { // The replica may not have the row yet
+        return ReplicaRoutingDataSource.onPrimary(() -> iouRepository.existsById(id));
+    }
+
+    private void insert(List<IOUEvent> batch) {
+        List<IOU> ious = batch.stream().map(IOUEvent::toIOU).toList();
+        iouRepository.saveAll(ious); // Keeps the queued id, see UuidV7Generator.allowAssignedIdentifiers
+        entityManager.flush();
+        ious.forEach(iou -> eventPublisher.publishEvent(IOUChangedEvent.created(iou)));
+        entityManager.clear();
+    }
+
+    private void reject(IOUEvent event, RuntimeException cause) { // Kept on disk rather than retried forever, so one bad IOU can't block the queue
+        rejected++;
+        log.error("Could not write queued IOU {}, moved it to {}", event.id(), rejectedFile, cause);
+        try {
+            Files.writeString(rejectedFile, objectMapper.writeValueAsString(event.toIOU()) + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not record rejected IOU " + event.id(), e);
+        }
+        rejectedIds.add(event.id());
+    }
+
+    // lastQueued and lastWritten are queue sequence numbers; oldestQueuedAt is null when the queue is empty
+    public record QueueStatus(int queued, int capacity, long lastQueued, long lastWritten, java.time.Instant oldestQueuedAt, long written,
+            long rejected, boolean running) {
+    }
+}
@@ -0,0 +1,196 @@
+package com.cbfacademy.restapiexercise.writebehind;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import org.springframework.util.unit.DataSize;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.eventlog.IOUEvent;
+import com.cbfacademy.restapiexercise.eventlog.IOUEventLog;
+
+// Durable FIFO of IOUs waiting to be inserted. Each IOU is appended to a segment-file log (the same format as the IOU event
+// log) and fsynced before append() returns, so an acknowledged IOU survives a crash. A checkpoint file records the last
+// sequence known to be in the database; on startup everything after it is queued again. Queued IOUs are also kept in memory,
+// in sequence order, so the writer never has to read the files back while running.
+class IOUWriteQueue implements Closeable {
+
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final IOUEventLog log;
+    private final Path checkpoint;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock(); // Guards everything below
+    private final Condition appended = lock.newCondition();
+    private final LinkedHashMap<UUID, IOUEvent> queued = new LinkedHashMap<>(); // By id, in sequence order
+    private long acknowledged; // Everything up to this sequence is in the database
+
+    IOUWriteQueue(Path directory, DataSize segmentSize, int capacity) throws IOException {
+        this.log = new IOUEventLog(directory, segmentSize);
+        this.checkpoint = directory.resolve(CHECKPOINT);
+        this.capacity = capacity;
+        acknowledged = readCheckpoint();
+        log.read(acknowledged + 1, event -> { // Whatever wasn't written before the last shutdown or crash
+            if (event.type() == IOUEvent.Type.CREATED) { // Skips commit markers, logged if a caller appended inside a transaction
+                queued.put(event.id(), event);
+            }
+            return true;
+        });
+    }
+
+    // Appends the IOU, which must already have its id, and returns once it is on disk. If the fsync fails the IOU stays queued
+    // and may still be written, so a caller that gets an exception here can't assume it wasn't
+    IOUEvent append(IOU iou) throws WriteQueueFullException {
+        IOUEvent event;
+        lock.lock();
+        try {
+            if (queued.size() >= capacity) {
+                throw new WriteQueueFullException(capacity);
+            }
+            event = log.append(IOUEvent.Type.CREATED, iou); // Under the lock, so the in-memory queue stays in sequence order
+            queued.put(event.id(), event);
+        } finally {
+            lock.unlock();
+        }
+
+        log.syncUpTo(event.sequence()); // Outside the lock - concurrent appends share one fsync
+        lock.lock();
+        try {
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return event;
+    }
+
+    // Up to max of the oldest queued IOUs that are safely on disk, oldest first. They stay queued until acknowledged
+    List<IOUEvent> peek(int max) {
+        long durable = log.durableSequence();
+        List<IOUEvent> batch = new ArrayList<>(Math.min(max, 1024));
+        lock.lock();
+        try {
+            for (IOUEvent event : queued.values()) {
+                if (batch.size() == max || event.sequence() > durable) {
+                    break;
+                }
+                batch.add(event);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return batch;
+    }
+
+    void awaitAppend(Duration timeout) throws InterruptedException { // Wakes the writer when there is something new to write
+        lock.lock();
+        try {
+            appended.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void wakeUp() {
+        lock.lock();
+        try {
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Marks everything up to sequence as written: it leaves the queue, the checkpoint moves on and fully written segments go
+    void acknowledge(long sequence) {
+        lock.lock();
+        try {
+            for (var iterator = queued.values().iterator(); iterator.hasNext() && iterator.next().sequence() <= sequence;) {
+                iterator.remove();
+            }
+            acknowledged = Math.max(acknowledged, sequence);
+            writeCheckpoint(acknowledged);
+        } finally {
+            lock.unlock();
+        }
+        log.deleteSegmentsBefore(sequence + 1);
+    }
+
+    Optional<IOUEvent> find(UUID id) {
+        lock.lock();
+        try {
+            return Optional.ofNullable(queued.get(id));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Status status() {
+        lock.lock();
+        try {
+            Instant oldest = queued.isEmpty() ? null : queued.values().iterator().next().recordedAt();
+            return new Status(queued.size(), capacity, log.lastSequence(), acknowledged, oldest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    record Status(int queued, int capacity, long lastQueued, long lastWritten, Instant oldestQueuedAt) {
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private long readCheckpoint() throws IOException { // [long sequence][int CRC32C of it], 0 when there is no checkpoint yet
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+        if (buffer.remaining() != 12 || buffer.getInt(8) != checksum(buffer.getLong(0))) {
+            throw new IOException("Corrupt write-behind checkpoint " + checkpoint);
+        }
+        return buffer.getLong(0);
+    }
+
+    private void writeCheckpoint(long sequence) { // Written aside and renamed over the old one, so a crash leaves one or the other
+        Path temporary = checkpoint.resolveSibling(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(12).putLong(sequence).putInt(checksum(sequence)).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the write-behind checkpoint", e);
+        }
+        try {
+            Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the write-behind checkpoint", e);
+        }
+    }
+
+    private static int checksum(long sequence) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(8).putLong(0, sequence));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,38 @@
+package com.cbfacademy.restapiexercise.writebehind;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+@RestController
+@RequestMapping(path = "/api/ious/write-behind")
+@ConditionalOnProperty(name = "ious.write-behind.enabled", havingValue = "true")
+public class WriteBehindController {
+
+    private final IOUWriteBehind writeBehind;
+
+    @Autowired
+    public WriteBehindController(IOUWriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    @GetMapping // How full the queue is and how far behind the writer is
+    public IOUWriteBehind.QueueStatus getQueueStatus() {
+        return writeBehind.getQueueStatus();
+    }
+
+    @GetMapping(path = "/{id}") // Where an IOU accepted with 202 has got to - once WRITTEN it can be fetched from /api/ious/{id}; REJECTED never will be
+    public Map<String, Object> getStatus(@PathVariable UUID id) {
+        IOUWriteBehind.Status status = writeBehind.getStatus(id)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No queued or written IOU with id " + id));
+        return Map.of("id", id, "status", status);
+    }
+}
@@ -0,0 +1,9 @@
+package com.cbfacademy.restapiexercise.writebehind;
+
+// Thrown instead of queueing an IOU when the write-behind queue already holds ious.write-behind.capacity IOUs
+public class WriteQueueFullException extends RuntimeException {
+
+    public WriteQueueFullException(int capacity) {
+        super("The write-behind queue is full (" + capacity + " IOUs waiting to be written)");
+    }
+}
@@ -0,0 +1,43 @@
+package com.cbfacademy.restapiexercise;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.predicate.RuntimeHintsPredicates;
+import org.springframework.context.annotation.Description;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountTotals;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.UuidV7Generator;
+import com.cbfacademy.restapiexercise.eventlog.IOUEvent;
+import com.cbfacademy.restapiexercise.settlements.PairTotal;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RestApiRuntimeHintsTest {
+
+	@Test
+	@Description("The native image can run the JPQL constructor queries, the id generator and the JSON mappings")
+	void registersReflectionHints() throws Exception {
+		// Arrange
+		RuntimeHints hints = new RuntimeHints();
+
+		// Act
+		new RestApiRuntimeHints().registerHints(hints, getClass().getClassLoader());
+
+		// Assert
+		assertTrue(RuntimeHintsPredicates.reflection().onConstructor(IOU.class.getDeclaredConstructor(UUID.class, String.class, String.class,
+				BigDecimal.class, Instant.class, Long.class)).test(hints));
+		assertTrue(RuntimeHintsPredicates.reflection().onType(IOUAmountTotals.class).withMemberCategory(MemberCategory.INVOKE_DECLARED_CONSTRUCTORS).test(hints));
+		assertTrue(RuntimeHintsPredicates.reflection().onType(PairTotal.class).withMemberCategory(MemberCategory.INVOKE_DECLARED_CONSTRUCTORS).test(hints));
+		assertTrue(RuntimeHintsPredicates.reflection().onType(UuidV7Generator.class).withMemberCategory(MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS).test(hints));
+		assertTrue(RuntimeHintsPredicates.reflection().onType(IOURepository.class).withMemberCategory(MemberCategory.INVOKE_PUBLIC_METHODS).test(hints));
+		assertTrue(RuntimeHintsPredicates.reflection().onMethod(IOU.class, "getBorrower").test(hints)); // Jackson's getters
+		assertTrue(RuntimeHintsPredicates.reflection().onMethod(IOUEvent.class, "borrower").test(hints));
+	}
+}
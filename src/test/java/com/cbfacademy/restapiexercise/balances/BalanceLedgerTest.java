@@ -0,0 +1,148 @@
+package com.cbfacademy.restapiexercise.balances;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+import jakarta.persistence.EntityManager;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DataJpaTest
+@Import({ IOUService.class, IOUAmountAggregate.class, BalanceLedger.class, BalanceService.class })
+public class BalanceLedgerTest {
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private BalanceService balanceService;
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private BalanceRepository balanceRepository;
+
+	@Autowired
+	private UserBalanceRepository userBalanceRepository;
+
+	@Autowired
+	private TransactionTemplate transactionTemplate;
+
+	@Test
+	@Description("Balances follow IOU creates, updates and deletes")
+	void balancesFollowIOUChanges() {
+		// Arrange: Alice owes Bob 100 and 50, Bob owes Alice 30, Alice owes Carol 20.
+		iouService.createIOU(newIOU("Alice", "Bob", "100.00"));
+		IOU second = newIOU("Alice", "Bob", "50.00");
+		iouService.createIOU(second);
+		iouService.createIOU(newIOU("Bob", "Alice", "30.00"));
+		IOU carol = newIOU("Alice", "Carol", "20.00");
+		iouService.createIOU(carol);
+
+		// Act: Alice's second IOU to Bob is moved to Carol, then the original IOU to Carol is deleted.
+		iouService.updateIOU(second.getId(), newIOU("Alice", "Carol", "50.00"));
+		iouService.deleteIOU(carol.getId());
+		entityManager.flush();
+		entityManager.clear();
+
+		// Assert: Alice owes Bob 100 - 30 = 70 net, and Carol 50.
+		assertBalance(balanceService.getPairBalance("Alice", "Bob"), "100.00", "30.00", "70.00");
+		assertBalance(balanceService.getPairBalance("Carol", "Alice"), "0", "50.00", "-50.00");
+		UserBalanceSummary alice = balanceService.getUserBalance("Alice");
+		assertAmount("150.00", alice.borrowed());
+		assertAmount("30.00", alice.lent());
+		assertAmount("-120.00", alice.net());
+		assertAmount("0", balanceService.getUserBalance("Nobody").net());
+	}
+
+	@Test
+	@Description("Rebuilding from the ious table backfills IOUs that were never seen by the ledger")
+	void rebuildBackfillsFromIOUs() {
+		// Arrange: write straight to the repository, bypassing IOUService and the ledger.
+		iouRepository.saveAll(List.of(newIOU("Dan", "Eve", "10.00"), newIOU("Dan", "Eve", "5.00"), newIOU("Eve", "Frank", "7.00")));
+
+		// Act
+		balanceService.rebuild();
+
+		// Assert
+		assertBalance(balanceService.getPairBalance("Dan", "Eve"), "15.00", "0", "15.00");
+		assertAmount("8.00", balanceService.getUserBalance("Eve").net());
+	}
+
+	@Test
+	@Description("IOUs in both directions between the same two users commit side by side without deadlocking on the balance rows")
+	@Transactional(propagation = Propagation.NOT_SUPPORTED) // Each IOU commits on its own, so the writers really do contend for the rows
+	void oppositeIOUsDoNotDeadlock() throws Exception {
+		// Arrange: half the writers lend one way, half the other, all released together.
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> writers = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			boolean forwards = i % 2 == 0;
+			writers.add(executor.submit(() -> {
+				start.await();
+				for (int j = 0; j < 50; j++) {
+					iouService.createIOU(forwards ? newIOU("Gina", "Hal", "1.00") : newIOU("Hal", "Gina", "2.00"));
+				}
+				return null;
+			}));
+		}
+
+		try {
+			// Act
+			start.countDown();
+			for (Future<?> writer : writers) {
+				writer.get(); // Rethrows a deadlock
+			}
+
+			// Assert: 200 IOUs each way.
+			assertBalance(balanceService.getPairBalance("Gina", "Hal"), "200.00", "400.00", "-200.00");
+			assertAmount("200.00", balanceService.getUserBalance("Gina").net());
+		} finally {
+			executor.shutdown();
+			iouRepository.deleteAll();
+			transactionTemplate.executeWithoutResult(status -> {
+				balanceRepository.deleteAllBalances();
+				userBalanceRepository.deleteAllUserBalances();
+			});
+		}
+	}
+
+	private void assertBalance(PairBalance balance, String aOwesB, String bOwesA, String net) {
+		assertAmount(aOwesB, balance.aOwesB());
+		assertAmount(bOwesA, balance.bOwesA());
+		assertAmount(net, balance.net());
+	}
+
+	private void assertAmount(String expected, BigDecimal actual) {
+		assertEquals(0, new BigDecimal(expected).compareTo(actual), () -> "expected " + expected + " but was " + actual);
+	}
+
+	private IOU newIOU(String borrower, String lender, String amount) {
+		return new IOU(borrower, lender, new BigDecimal(amount), Instant.now());
+	}
+}
@@ -0,0 +1,192 @@
+package com.cbfacademy.restapiexercise.datasource;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Description;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import com.cbfacademy.restapiexercise.RestApiExerciseApplication;
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Drives the whole application over HTTP once on platform threads and once on virtual threads and prints p50/p99 latency
+// and throughput for each. Excluded from the normal build; run it with: ./mvnw test -Dgroups=load -DexcludedGroups=none
+@Tag("load")
+public class ExecutionModeLoadTest {
+
+	private static final int CLIENTS = 500; // more than Tomcat's 200 platform threads, far more than the 10 pooled connections
+	private static final Duration WARMUP = Duration.ofSeconds(3);
+	private static final Duration MEASURE = Duration.ofSeconds(10);
+	private static final long DB_ROUND_TRIP_MILLIS = 2; // simulated network latency per statement, H2 in memory has none
+
+	@Test
+	@Description("Both execution modes serve a mixed read/write load without errors behind the connection bulkhead")
+	void compareExecutionModes() throws Exception {
+		// Act
+		Result platform = run(false);
+		Result virtual = run(true);
+
+		// Assert: nothing was shed or failed, and print the comparison.
+		System.out.printf("%n%-10s %10s %10s %10s %8s%n", "mode", "req/s", "p50 ms", "p99 ms", "errors");
+		System.out.println(platform.format("platform"));
+		System.out.println(virtual.format("virtual"));
+		assertTrue(platform.latencies().length > 0 && virtual.latencies().length > 0);
+		assertEquals(0, platform.errors());
+		assertEquals(0, virtual.errors());
+	}
+
+	private Result run(boolean virtualThreads) throws Exception {
+		try (ConfigurableApplicationContext context = new SpringApplicationBuilder(RestApiExerciseApplication.class)
+				.initializers(c -> c.getBeanFactory().addBeanPostProcessor(new SlowNetwork())) // wraps the pool before the bulkhead does
+				.run("--server.port=0", "--spring.threads.virtual.enabled=" + virtualThreads, "--logging.level.root=WARN");
+				ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+			// Arrange: 200 IOUs, a handful of which are read by id over and over (and so served from the cache).
+			IOURepository iouRepository = context.getBean(IOURepository.class);
+			List<IOU> ious = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				ious.add(new IOU("Borrower" + (i % 20), "Lender" + (i % 7), new BigDecimal(i + ".00"), Instant.now()));
+			}
+			List<UUID> hotIds = iouRepository.saveAll(ious).stream().limit(20).map(IOU::getId).toList();
+
+			String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port") + "/api/ious";
+			HttpClient http = HttpClient.newBuilder().executor(clients).build();
+			long measureFrom = System.nanoTime() + WARMUP.toNanos();
+			long stopAt = measureFrom + MEASURE.toNanos();
+
+			// Act: every client loops until the deadline, recording only requests sent after the warmup.
+			List<Future<long[]>> results = new ArrayList<>();
+			for (int c = 0; c < CLIENTS; c++) {
+				results.add(clients.submit(() -> {
+					long[] latencies = new long[1024];
+					int count = 0;
+					long errors = 0;
+					while (System.nanoTime() < stopAt) {
+						HttpRequest request = nextRequest(base, hotIds);
+						long start = System.nanoTime();
+						int status = http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+						long elapsed = System.nanoTime() - start;
+						if (start < measureFrom) {
+							continue;
+						}
+						if (status >= 300) {
+							errors++;
+						}
+						if (count == latencies.length) {
+							latencies = Arrays.copyOf(latencies, count * 2);
+						}
+						latencies[count++] = elapsed;
+					}
+					long[] own = Arrays.copyOf(latencies, count + 1);
+					own[count] = -errors; // errors ride along as a negative last element
+					return own;
+				}));
+			}
+
+			List<long[]> perClient = new ArrayList<>();
+			for (Future<long[]> result : results) {
+				perClient.add(result.get());
+			}
+			return Result.of(perClient, MEASURE);
+		}
+	}
+
+	private static HttpRequest nextRequest(String base, List<UUID> hotIds) {
+		int roll = ThreadLocalRandom.current().nextInt(100);
+		if (roll < 50) { // cached read
+			UUID id = hotIds.get(ThreadLocalRandom.current().nextInt(hotIds.size()));
+			return HttpRequest.newBuilder(URI.create(base + "/id/" + id)).GET().build();
+		}
+		if (roll < 90) { // database read
+			return HttpRequest.newBuilder(URI.create(base + "?limit=20")).GET().build();
+		}
+		// write, spread over many users so the balance rows it upserts aren't one hot row every writer queues on
+		String body = "{\"borrower\":\"User" + ThreadLocalRandom.current().nextInt(1000) + "\",\"lender\":\"User" + (1000 + ThreadLocalRandom.current().nextInt(1000))
+				+ "\",\"amount\":12.50,\"dateTime\":\"" + Instant.now() + "\"}";
+		return HttpRequest.newBuilder(URI.create(base)).header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(body)).build();
+	}
+
+	private record Result(long[] latencies, long errors, Duration window) {
+
+		static Result of(List<long[]> perClient, Duration window) {
+			long errors = 0;
+			int total = 0;
+			for (long[] own : perClient) {
+				errors -= own[own.length - 1];
+				total += own.length - 1;
+			}
+			long[] latencies = new long[total];
+			int at = 0;
+			for (long[] own : perClient) {
+				System.arraycopy(own, 0, latencies, at, own.length - 1);
+				at += own.length - 1;
+			}
+			Arrays.sort(latencies);
+			return new Result(latencies, errors, window);
+		}
+
+		double percentileMillis(double p) {
+			return latencies[(int) Math.max(0, Math.ceil(p * latencies.length) - 1)] / 1_000_000.0;
+		}
+
+		String format(String mode) {
+			return String.format("%-10s %10.0f %10.2f %10.2f %8d", mode, latencies.length / (double) window.toSeconds(),
+					percentileMillis(0.50), percentileMillis(0.99), errors);
+		}
+	}
+
+	// Adds a fixed round trip to every statement so requests actually wait on the "network", as they would against MySQL
+	private static class SlowNetwork implements BeanPostProcessor {
+
+		@Override
+		public Object postProcessAfterInitialization(Object bean, String beanName) {
+			if (!(bean instanceof DataSource dataSource) || bean instanceof BulkheadDataSource) {
+				return bean;
+			}
+			return new DelegatingDataSource(dataSource) {
+				@Override
+				public Connection getConnection() throws SQLException {
+					Connection connection = super.getConnection();
+					return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+						if (method.getName().startsWith("prepare") || method.getName().equals("createStatement")) {
+							Thread.sleep(DB_ROUND_TRIP_MILLIS);
+						}
+						try {
+							return method.invoke(connection, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					});
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.cbfacademy.restapiexercise.datasource;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.cache.CacheType;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.core.AutoConfigureCache;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOUBatchService;
+import com.cbfacademy.restapiexercise.IOUS.IOUCaches;
+import com.cbfacademy.restapiexercise.IOUS.IOUChangeTracker;
+import com.cbfacademy.restapiexercise.IOUS.IOUController;
+import com.cbfacademy.restapiexercise.IOUS.IOUExportService;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+import com.cbfacademy.restapiexercise.idempotency.IdempotentIOUService;
+import com.cbfacademy.restapiexercise.writebehind.IOUWriteBehind;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.persistence.EntityManager;
+import jakarta.servlet.http.Cookie;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest
+@Import({ ReplicaRoutingConfig.class, IOUService.class, IOUAmountAggregate.class, IOUCaches.class, IOUChangeTracker.class, IOUController.class,
+		IOUBatchService.class, IOUExportService.class, IdempotentIOUService.class })
+@ImportAutoConfiguration(JacksonAutoConfiguration.class) // For the controller
+@AutoConfigureCache(cacheProvider = CacheType.CAFFEINE) // The real caches rather than @DataJpaTest's no-op ones, so a miss that read the replica would stick
+@TestPropertySource(properties = {
+		"ious.replica.enabled=true", // The primary is the usual test database; the replica is a second, separate H2 database
+		"ious.replica.datasource.jdbc-url=jdbc:h2:mem:replica-${random.uuid};MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+		"ious.replica.datasource.username=sa" })
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // Each service call picks its own route, as it does in production
+public class ReplicaRoutingTest {
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	@Qualifier("primaryDataSource")
+	private DataSource primary;
+
+	@Autowired
+	@Qualifier("replicaDataSource")
+	private DataSource replica;
+
+	@Autowired
+	private CacheManager cacheManager;
+
+	@Autowired
+	private IOUAmountAggregate amountAggregate;
+
+	@Autowired
+	private IOUController iouController;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private TransactionTemplate transactionTemplate;
+
+	@Autowired
+	private ApplicationEventPublisher eventPublisher;
+
+	private IOU written; // Only on the primary - as if replication hadn't caught up yet
+	private UUID replicated; // Only on the replica
+
+	@BeforeEach
+	void setUp() {
+		// Arrange: give the replica the primary's schema, then put one IOU in each database.
+		JdbcTemplate primaryJdbc = new JdbcTemplate(primary);
+		JdbcTemplate replicaJdbc = new JdbcTemplate(replica);
+		if (replicaJdbc.queryForObject("SELECT COUNT(*) FROM information_schema.tables WHERE table_name = 'ious'", Integer.class) == 0) {
+			for (String statement : primaryJdbc.queryForList("SCRIPT NODATA", String.class)) {
+				if (statement.startsWith("CREATE") && !statement.startsWith("CREATE USER")) {
+					replicaJdbc.execute(statement);
+				}
+			}
+		}
+		primaryJdbc.update("DELETE FROM ious");
+		replicaJdbc.update("DELETE FROM ious");
+		cacheManager.getCacheNames().forEach(name -> cacheManager.getCache(name).clear());
+		written = iouService.createIOU(new IOU("Primary", "Lender", new BigDecimal("10.00"), Instant.now()));
+		replicated = UUID.randomUUID();
+		replicaJdbc.update("INSERT INTO ious (id, borrower, lender, amount, date_time, version) VALUES (?, ?, ?, ?, ?, 0)",
+				replicated, "Replica", "Lender", new BigDecimal("20.00"), Timestamp.from(Instant.now()));
+	}
+
+	@Test
+	@Description("Read-only service methods read from the replica, while writes go to the primary")
+	void readsGoToTheReplica() {
+		// Act
+		List<IOU> all = iouService.getAllIOUs();
+
+		// Assert
+		assertEquals(List.of(replicated), all.stream().map(IOU::getId).toList());
+		assertEquals(1, new JdbcTemplate(primary).queryForObject("SELECT COUNT(*) FROM ious WHERE borrower = 'Primary'", Integer.class));
+	}
+
+	@Test
+	@Description("Cached lookups and the running totals load from the primary, so a lagging replica's rows are never kept")
+	void cachedReadsComeFromThePrimary() {
+		// Act
+		Optional<IOU> justWritten = iouService.getIOU(written.getId());
+		List<IOU> byBorrower = iouService.getIOUsByBorrower("Primary");
+		amountAggregate.reconcile();
+
+		// Assert: the replica doesn't have the new IOU yet, but the cache and the totals do.
+		assertEquals(written.getId(), justWritten.orElseThrow().getId());
+		assertEquals(List.of(written.getId()), byBorrower.stream().map(IOU::getId).toList());
+		assertEquals(List.of(), iouService.getIOUsByBorrower("Replica"));
+		assertEquals(1, amountAggregate.totals().count());
+		assertEquals(0, new BigDecimal("10.00").compareTo(amountAggregate.totals().sum()));
+		assertTrue(cacheManager.getCache(IOUCaches.IOU_CACHE).get(written.getId()) != null); // Really cached, not just read through
+	}
+
+	@Test
+	@Description("GET /api/ious?borrower= fills the borrower cache from the primary, even though the list's version is read first")
+	void borrowerListThroughTheEndpointIsCachedFromThePrimary() {
+		// Arrange
+		MockHttpServletRequest get = new MockHttpServletRequest("GET", "/api/ious");
+		get.setParameter("borrower", "Primary");
+
+		// Act
+		ResponseEntity<List<IOU>> response = iouController.getAllIOUs("Primary", null, null, null, null, null, null, null,
+				new ServletWebRequest(get, new MockHttpServletResponse()));
+
+		// Assert: the replica doesn't have the IOU yet, so neither the response nor the cache may have come from there.
+		assertEquals(List.of(written.getId()), response.getBody().stream().map(IOU::getId).toList());
+		assertEquals(List.of(written.getId()), iouService.getIOUsByBorrower("Primary").stream().map(IOU::getId).toList());
+	}
+
+	@Test
+	@Description("The write-behind writer checks the primary for IOUs it already wrote, so one the replica lacks isn't inserted twice and rejected")
+	void writeBehindRecognisesItsOwnUnreplicatedWrites(@TempDir Path directory) throws Exception {
+		// Arrange: two queued IOUs, the first already in the primary - written before a crash stopped the checkpoint - but not replicated yet.
+		IOUWriteBehind writeBehind = new IOUWriteBehind(directory, DataSize.ofMegabytes(1), 100, 10, iouRepository, entityManager,
+				transactionTemplate, eventPublisher, new ObjectMapper().findAndRegisterModules());
+		try {
+			UUID inserted = writeBehind.submit(new IOU("Queued0", "Lender", new BigDecimal("1.00"), Instant.now()));
+			UUID pending = writeBehind.submit(new IOU("Queued1", "Lender", new BigDecimal("2.00"), Instant.now()));
+			new JdbcTemplate(primary).update("INSERT INTO ious (id, borrower, lender, amount, date_time, version) VALUES (?, ?, ?, ?, ?, 0)",
+					inserted, "Queued0", "Lender", new BigDecimal("1.00"), Timestamp.from(Instant.now()));
+
+			// Act
+			assertEquals(2, writeBehind.drainOnce());
+
+			// Assert
+			assertEquals(Optional.of(IOUWriteBehind.Status.WRITTEN), writeBehind.getStatus(inserted));
+			assertEquals(Optional.of(IOUWriteBehind.Status.WRITTEN), writeBehind.getStatus(pending));
+			assertEquals(0, writeBehind.getQueueStatus().rejected());
+			assertEquals(1, writeBehind.getQueueStatus().written());
+			assertFalse(Files.exists(directory.resolve("rejected.ndjson")));
+		} finally {
+			writeBehind.stop();
+		}
+	}
+
+	@Test
+	@Description("After a write, the same client reads from the primary until the window closes")
+	void clientReadsItsOwnWrites() throws Exception {
+		ReadYourWritesFilter filter = new ReadYourWritesFilter(Duration.ofSeconds(5));
+
+		// Act: a POST hands the client the cookie; its next GET sends it back.
+		MockHttpServletResponse postResponse = new MockHttpServletResponse();
+		filter.doFilter(new MockHttpServletRequest("POST", "/api/ious"), postResponse, (request, response) -> {
+		});
+		Cookie cookie = postResponse.getCookie(ReadYourWritesFilter.COOKIE);
+		assertNotNull(cookie);
+
+		List<?>[] withCookie = new List<?>[1];
+		MockHttpServletRequest get = new MockHttpServletRequest("GET", "/api/ious");
+		get.setCookies(cookie);
+		filter.doFilter(get, new MockHttpServletResponse(), (request, response) -> withCookie[0] = iouService.getAllIOUs());
+
+		List<?>[] expired = new List<?>[1];
+		MockHttpServletRequest late = new MockHttpServletRequest("GET", "/api/ious");
+		late.setCookies(new Cookie(ReadYourWritesFilter.COOKIE, Long.toString(System.currentTimeMillis() - 1)));
+		filter.doFilter(late, new MockHttpServletResponse(), (request, response) -> expired[0] = iouService.getAllIOUs());
+
+		// Assert: the primary has the new IOU; once the window has passed, reads are back on the replica, which doesn't.
+		assertEquals(List.of(written.getId()), withCookie[0].stream().map(iou -> ((IOU) iou).getId()).toList());
+		assertEquals(List.of(replicated), expired[0].stream().map(iou -> ((IOU) iou).getId()).toList());
+		assertEquals(ReplicaRoutingDataSource.Route.PRIMARY, ReplicaRoutingDataSource.currentRoute());
+	}
+
+	@TestConfiguration
+	@EnableCaching
+	static class Caching {
+	}
+}
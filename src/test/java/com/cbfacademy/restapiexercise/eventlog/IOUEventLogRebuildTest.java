@@ -0,0 +1,257 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.cache.CacheType;
+import org.springframework.boot.test.autoconfigure.core.AutoConfigureCache;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountTotals;
+import com.cbfacademy.restapiexercise.IOUS.IOUChangeTracker;
+import com.cbfacademy.restapiexercise.IOUS.IOUReadModel;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+import com.cbfacademy.restapiexercise.balances.BalanceLedger;
+import com.cbfacademy.restapiexercise.balances.BalanceService;
+import com.cbfacademy.restapiexercise.balances.UserBalanceSummary;
+
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DataJpaTest
+@AutoConfigureCache(cacheProvider = CacheType.CAFFEINE)
+@Import({ IOUService.class, IOUAmountAggregate.class, BalanceLedger.class, BalanceService.class, IOUEventLog.class, IOUSnapshots.class,
+		IOUEventLogRebuilder.class, IOUChangeTracker.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // Events are logged as each write commits, so the writes must really commit
+public class IOUEventLogRebuildTest {
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private BalanceService balanceService;
+
+	@Autowired
+	private IOUAmountAggregate amountAggregate;
+
+	@Autowired
+	private IOUSnapshots snapshots;
+
+	@Autowired
+	private IOUEventLogRebuilder rebuilder;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private IOUEventLog eventLog;
+
+	@Autowired
+	private CacheManager cacheManager;
+
+	@Autowired
+	private IOUChangeTracker changeTracker;
+
+	@Autowired
+	private ObjectProvider<IOUReadModel> readModel;
+
+	@AfterEach
+	void tearDown() {
+		iouRepository.findAll().forEach(iou -> iouService.deleteIOU(iou.getId())); // Logged, so the next test's rebuild doesn't bring them back
+		balanceService.rebuild();
+	}
+
+	@Test
+	@Description("Wiping the ious table and rebuilding from the snapshot and log restores the IOUs, balances and aggregate")
+	void rebuildsTableAndDerivedData() {
+		// Arrange: writes before and after a snapshot, plus one change whose commit fails after it was logged.
+		List<IOU> ious = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			IOU iou = new IOU("User" + (i % 5), "User" + ((i + 1) % 5), new BigDecimal(i + ".25"), Instant.now().truncatedTo(ChronoUnit.MICROS));
+			iouService.createIOU(iou);
+			ious.add(iou);
+		}
+		iouService.updateIOU(ious.get(0).getId(), new IOU("User0", "User3", new BigDecimal("99.99"), Instant.now().truncatedTo(ChronoUnit.MICROS)));
+		iouService.deleteIOU(ious.get(1).getId());
+		snapshots.take();
+		iouService.updateIOU(ious.get(0).getId(), new IOU("User4", "User3", new BigDecimal("12.34"), Instant.now().truncatedTo(ChronoUnit.MICROS)));
+		iouService.deleteIOU(ious.get(2).getId());
+		iouService.createIOU(new IOU("User9", "User0", new BigDecimal("7.00"), Instant.now().truncatedTo(ChronoUnit.MICROS)));
+		assertThrows(IllegalStateException.class, () -> new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+			iouService.deleteIOU(ious.get(3).getId());
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void beforeCommit(boolean readOnly) { // Runs after the event log's own beforeCommit, so the delete is already logged
+					throw new IllegalStateException("Commit failed");
+				}
+			});
+		}));
+
+		List<String> expected = table();
+		IOUAmountTotals expectedTotals = iouRepository.sumAmounts();
+		UserBalanceSummary expectedBalance = balanceService.getUserBalance("User0");
+
+		// Act: lose the table and the balances, then rebuild.
+		jdbcTemplate.execute("DELETE FROM ious");
+		jdbcTemplate.execute("DELETE FROM balances");
+		IOUEventLogRebuilder.RebuildResult result = rebuilder.rebuild(false);
+
+		// Assert
+		assertEquals(39, expected.size());
+		assertEquals(expected, table());
+		assertEquals(expectedTotals, amountAggregate.totals());
+		assertEquals(expectedBalance, balanceService.getUserBalance("User0"));
+		assertEquals(39, result.snapshotRows());
+		assertEquals(3, result.eventsReplayed());
+		assertEquals(1, result.eventsRolledBack());
+	}
+
+	@Test
+	@Description("With no snapshot and an empty log, the rebuild refuses instead of emptying the table")
+	void refusesToRebuildFromNothing(@TempDir Path emptyDirectory) throws Exception {
+		// Arrange: a rebuilder over a log directory of its own with nothing in it, as on a fresh instance.
+		iouService.createIOU(new IOU("User0", "User1", BigDecimal.TEN, Instant.now()));
+		IOUEventLog emptyLog = new IOUEventLog(emptyDirectory, DataSize.ofMegabytes(1));
+		IOUEventLogRebuilder emptyRebuilder = new IOUEventLogRebuilder(emptyLog, new IOUSnapshots(emptyLog, jdbcTemplate, transactionManager), jdbcTemplate,
+				balanceService, amountAggregate, cacheManager, readModel, changeTracker, transactionManager);
+
+		// Act / Assert
+		try {
+			assertThrows(IllegalStateException.class, () -> emptyRebuilder.rebuild(true));
+			assertEquals(1, iouRepository.count());
+		} finally {
+			emptyLog.close();
+		}
+	}
+
+	@Test
+	@Description("Changes logged just before a crash are replayed only if the table shows they committed")
+	void settlesChangesLeftInDoubtByACrash(@TempDir Path crashedDirectory) throws Exception {
+		// Arrange: one IOU logged outside a transaction, then two logged inside one that never completes, as when the process
+		// dies between the append and the commit. Only the second of those reached the table.
+		IOUEventLog crashedLog = new IOUEventLog(crashedDirectory, DataSize.ofMegabytes(1));
+		IOU outside = crashedIOU("Outside");
+		IOU lost = crashedIOU("Lost");
+		IOU committed = crashedIOU("Committed");
+		crashedLog.append(IOUEvent.Type.CREATED, outside);
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			crashedLog.append(IOUEvent.Type.CREATED, lost);
+			crashedLog.append(IOUEvent.Type.CREATED, committed);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization(); // No afterCompletion, so no markers
+		}
+		insertRow(committed);
+		crashedLog.close();
+
+		IOUEventLog reopened = new IOUEventLog(crashedDirectory, DataSize.ofMegabytes(1));
+		try {
+			IOUEventLogRebuilder crashedRebuilder = new IOUEventLogRebuilder(reopened, new IOUSnapshots(reopened, jdbcTemplate, transactionManager),
+					jdbcTemplate, balanceService, amountAggregate, cacheManager, readModel, changeTracker, transactionManager);
+
+			// Act
+			int settled = crashedRebuilder.resolveInDoubt();
+			jdbcTemplate.execute("DELETE FROM ious");
+			IOUEventLogRebuilder.RebuildResult result = crashedRebuilder.rebuild(false);
+
+			// Assert: the lost IOU is not brought back as a phantom, and the markers written make a second pass a no-op.
+			assertEquals(2, settled);
+			assertEquals(List.of("Committed", "Outside"), iouRepository.findAll().stream().map(IOU::getBorrower).sorted().toList());
+			assertEquals(2, result.eventsReplayed());
+			assertEquals(1, result.eventsRolledBack());
+			assertEquals(0, result.eventsUnsettled());
+			assertEquals(0, crashedRebuilder.resolveInDoubt());
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	@Description("A snapshot cut short fails the rebuild before the live table is touched")
+	void damagedSnapshotLeavesTheTableAlone() throws Exception {
+		// Arrange
+		for (int i = 0; i < 20; i++) {
+			iouService.createIOU(new IOU("User" + (i % 5), "User" + ((i + 1) % 5), new BigDecimal(i + 1), Instant.now()));
+		}
+		IOUSnapshots.Snapshot snapshot = snapshots.take();
+		try (FileChannel file = FileChannel.open(eventLog.directory().resolve(snapshot.file()), StandardOpenOption.WRITE)) {
+			file.truncate(file.size() - 10);
+		}
+		List<String> before = table();
+
+		// Act / Assert
+		assertThrows(UncheckedIOException.class, () -> rebuilder.rebuild(true));
+		assertEquals(before, table());
+		assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM information_schema.tables WHERE table_name = 'ious_rebuild'", Integer.class));
+		snapshots.take(); // Overwrites the damaged one for the tests that follow
+	}
+
+	@Test
+	@Description("A rebuild that would drop rows the log doesn't know about needs forcing")
+	void refusesToShrinkTheTableUnlessForced() {
+		// Arrange: one IOU written through the service, and one straight into the table, so never logged.
+		iouService.createIOU(new IOU("User0", "User1", BigDecimal.ONE, Instant.now()));
+		jdbcTemplate.update("INSERT INTO ious (id, borrower, lender, amount, date_time, version) VALUES (?, ?, ?, ?, ?, 0)",
+				UUID.randomUUID(), "Unlogged", "User1", BigDecimal.TEN, Timestamp.from(Instant.now()));
+
+		// Act / Assert
+		assertThrows(IllegalStateException.class, () -> rebuilder.rebuild(false));
+		assertEquals(2, iouRepository.count());
+		rebuilder.rebuild(true);
+		assertEquals(List.of("User0"), iouRepository.findAll().stream().map(IOU::getBorrower).toList());
+	}
+
+	private IOU crashedIOU(String borrower) {
+		IOU iou = new IOU(borrower, "User1", BigDecimal.ONE, Instant.now().truncatedTo(ChronoUnit.MICROS));
+		iou.setId(UUID.randomUUID());
+		iou.setVersion(0L);
+		return iou;
+	}
+
+	private void insertRow(IOU iou) {
+		jdbcTemplate.update("INSERT INTO ious (id, borrower, lender, amount, date_time, version) VALUES (?, ?, ?, ?, ?, ?)",
+				iou.getId(), iou.getBorrower(), iou.getLender(), iou.getAmount(), Timestamp.from(iou.getDateTime()), iou.getVersion());
+	}
+
+	private List<String> table() { // Every column of every row, in id order
+		return iouRepository.findAll().stream()
+				.sorted(Comparator.comparing(IOU::getId))
+				.map(iou -> iou.getId() + "," + iou.getBorrower() + "," + iou.getLender() + "," + iou.getAmount() + "," + iou.getDateTime() + "," + iou.getVersion())
+				.toList();
+	}
+}
@@ -0,0 +1,131 @@
+package com.cbfacademy.restapiexercise.eventlog;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.annotation.Description;
+import org.springframework.util.unit.DataSize;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IOUEventLogTest {
+
+	@TempDir
+	private Path directory;
+
+	private IOUEventLog eventLog;
+
+	@AfterEach
+	void tearDown() throws IOException {
+		eventLog.close();
+	}
+
+	@Test
+	@Description("Events read back exactly as written, including after the log is reopened")
+	void survivesReopen() throws IOException {
+		// Arrange
+		eventLog = open(DataSize.ofMegabytes(1));
+		IOU iou = newIOU(0);
+		iou.setAmount(new BigDecimal("1234.5600"));
+		eventLog.append(IOUEvent.Type.CREATED, iou);
+		eventLog.append(IOUEvent.Type.DELETED, iou);
+
+		// Act
+		eventLog.close();
+		eventLog = open(DataSize.ofMegabytes(1));
+		eventLog.append(IOUEvent.Type.CREATED, newIOU(1));
+
+		// Assert: sequences carry on from where the last run stopped, and every field round-trips, amount scale included.
+		List<IOUEvent> events = readAll(1);
+		assertEquals(List.of(1L, 2L, 3L), events.stream().map(IOUEvent::sequence).toList());
+		assertEquals(List.of(IOUEvent.Type.CREATED, IOUEvent.Type.DELETED, IOUEvent.Type.CREATED), events.stream().map(IOUEvent::type).toList());
+		IOU read = events.get(0).toIOU();
+		assertEquals(iou.getId(), read.getId());
+		assertEquals(iou.getVersion(), read.getVersion());
+		assertEquals("Borrower0", read.getBorrower());
+		assertEquals(new BigDecimal("1234.5600"), read.getAmount());
+		assertEquals(iou.getDateTime(), read.getDateTime());
+		assertEquals(3, eventLog.lastSequence());
+	}
+
+	@Test
+	@Description("A record cut short by a crash is dropped on startup and the log carries on after the last whole record")
+	void truncatesTornTail() throws IOException {
+		// Arrange: three whole records followed by the first half of a fourth.
+		eventLog = open(DataSize.ofMegabytes(1));
+		for (int i = 0; i < 3; i++) {
+			eventLog.append(IOUEvent.Type.CREATED, newIOU(i));
+		}
+		eventLog.close();
+		Path segment = segments().get(0);
+		long whole = Files.size(segment);
+		Files.write(segment, new byte[] { 0, 0, 0, 90, 1, 2, 3, 4, 5, 6 }, StandardOpenOption.APPEND);
+
+		// Act
+		eventLog = open(DataSize.ofMegabytes(1));
+		eventLog.append(IOUEvent.Type.CREATED, newIOU(3));
+
+		// Assert
+		assertEquals(List.of(1L, 2L, 3L, 4L), readAll(1).stream().map(IOUEvent::sequence).toList());
+		assertTrue(Files.size(segment) > whole);
+	}
+
+	@Test
+	@Description("The log rolls over to a new segment when one fills up, and reads can start from any sequence")
+	void rollsSegments() throws IOException {
+		// Act: about 80 bytes a record in 4KB segments.
+		eventLog = open(DataSize.ofKilobytes(4));
+		for (int i = 0; i < 500; i++) {
+			eventLog.append(IOUEvent.Type.CREATED, newIOU(i));
+		}
+
+		// Assert
+		assertTrue(segments().size() > 5);
+		for (Path segment : segments()) {
+			assertTrue(Files.size(segment) <= 4096);
+		}
+		List<IOUEvent> tail = readAll(321);
+		assertEquals(180, tail.size());
+		assertEquals(321, tail.get(0).sequence());
+		assertEquals(500, tail.get(tail.size() - 1).sequence());
+	}
+
+	private IOUEventLog open(DataSize segmentSize) throws IOException {
+		return new IOUEventLog(directory, segmentSize, Clock.fixed(Instant.parse("2024-01-01T00:00:00Z"), ZoneOffset.UTC));
+	}
+
+	private List<IOUEvent> readAll(long fromSequence) {
+		List<IOUEvent> events = new ArrayList<>();
+		eventLog.read(fromSequence, events::add);
+		return events;
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().toList();
+		}
+	}
+
+	private IOU newIOU(int i) {
+		IOU iou = new IOU("Borrower" + i, "Lender", new BigDecimal("10.00"), Instant.parse("2024-01-01T10:15:30.123456Z"));
+		iou.setId(UUID.randomUUID());
+		iou.setVersion((long) i);
+		return iou;
+	}
+}
@@ -0,0 +1,153 @@
+package com.cbfacademy.restapiexercise.idempotency;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest
+@Import({ IdempotentIOUService.class, IOUService.class, IOUAmountAggregate.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // Each request commits on its own, as it does in production
+public class IdempotentIOUServiceTest {
+
+	private static final Instant DATE_TIME = Instant.parse("2024-01-01T00:00:00Z");
+
+	@Autowired
+	private IdempotentIOUService idempotentIOUService;
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private IdempotencyKeyRepository keyRepository;
+
+	@AfterEach
+	void tearDown() {
+		keyRepository.deleteAll();
+		iouRepository.deleteAll();
+	}
+
+	@Test
+	@Description("100 parallel retries with the same key create exactly one IOU and all get its id back")
+	void parallelRetriesCreateOneIOU() throws Exception {
+		// Arrange: 100 threads released together, each sending the same request with the same key.
+		ExecutorService executor = Executors.newFixedThreadPool(100);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<IdempotentIOUService.Result>> results = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			results.add(executor.submit(() -> {
+				start.await();
+				return idempotentIOUService.createIOU("retry-key", newIOU("10.00"), iou -> iouService.createIOU(iou).getId());
+			}));
+		}
+
+		// Act
+		start.countDown();
+		List<IdempotentIOUService.Result> answers = new ArrayList<>();
+		for (Future<IdempotentIOUService.Result> result : results) {
+			answers.add(result.get());
+		}
+		executor.shutdown();
+
+		// Assert: one row; one request created it and the other 99 were told about it.
+		assertEquals(1, iouRepository.count());
+		IOU created = iouRepository.findAll().get(0);
+		assertTrue(answers.stream().allMatch(answer -> answer.id().equals(created.getId())));
+		assertEquals(1, answers.stream().filter(answer -> !answer.replayed()).count());
+	}
+
+	@Test
+	@Description("A retry of a recent key is answered from memory, and a key reused for a different IOU is refused")
+	void recentKeysAreAnsweredFromMemory() {
+		// Arrange
+		IdempotentIOUService.Result first = idempotentIOUService.createIOU("key-1", newIOU("10.00"), iou -> iouService.createIOU(iou).getId());
+
+		// Act: take the key out of the table - only the in-memory copy can answer now. 10 and 10.00 are the same amount.
+		keyRepository.deleteAll();
+		IdempotentIOUService.Result retry = idempotentIOUService.createIOU("key-1", newIOU("10"), iou -> iouService.createIOU(iou).getId());
+
+		// Assert
+		assertEquals(new IdempotentIOUService.Result(first.id(), true), retry);
+		assertEquals(1, iouRepository.count());
+		assertThrows(IdempotencyKeyMismatchException.class,
+				() -> idempotentIOUService.createIOU("key-1", newIOU("11.00"), iou -> iouService.createIOU(iou).getId()));
+		assertThrows(IllegalArgumentException.class,
+				() -> idempotentIOUService.createIOU("x".repeat(300), newIOU("10.00"), iou -> iouService.createIOU(iou).getId()));
+	}
+
+	@Test
+	@Description("A key whose IOU could not be created can be used again")
+	void failedCreateFreesTheKey() {
+		assertThrows(IllegalStateException.class, () -> idempotentIOUService.createIOU("key-2", newIOU("10.00"), iou -> {
+			iouService.createIOU(iou);
+			throw new IllegalStateException("Simulated failure after the insert");
+		}));
+
+		IdempotentIOUService.Result result = idempotentIOUService.createIOU("key-2", newIOU("10.00"), iou -> iouService.createIOU(iou).getId());
+
+		assertEquals(false, result.replayed());
+		assertEquals(1, iouRepository.count());
+	}
+
+	@Test
+	@Description("An IOU that can't join the key's transaction is only published once the key has committed, and a failed publish frees the key")
+	void publishesOnlyAfterTheKeyCommits() {
+		// Arrange: stands in for write-behind, whose queue on disk can't be rolled back.
+		List<IOU> published = new ArrayList<>();
+		List<Boolean> keyCommittedWhenPublished = new ArrayList<>();
+		UnaryOperator<IOU> prepare = iou -> {
+			IOU prepared = new IOU(iou);
+			prepared.setId(UUID.randomUUID());
+			return prepared;
+		};
+
+		// Act: the first publish fails, as a full queue would; the retry goes through, and a second retry is replayed.
+		assertThrows(IllegalStateException.class, () -> idempotentIOUService.createIOU("key-3", newIOU("10.00"), prepare, iou -> {
+			throw new IllegalStateException("Simulated full queue");
+		}));
+		boolean keyReleased = keyRepository.findById("key-3").isEmpty();
+		IdempotentIOUService.Result result = idempotentIOUService.createIOU("key-3", newIOU("10.00"), prepare, iou -> {
+			keyCommittedWhenPublished.add(keyRepository.findById("key-3").map(key -> iou.getId().equals(key.getIouId())).orElse(false));
+			published.add(iou);
+		});
+		IdempotentIOUService.Result retry = idempotentIOUService.createIOU("key-3", newIOU("10.00"), prepare, published::add);
+
+		// Assert
+		assertTrue(keyReleased);
+		assertEquals(1, published.size());
+		assertEquals(List.of(true), keyCommittedWhenPublished);
+		assertEquals(new IdempotentIOUService.Result(published.get(0).getId(), false), result);
+		assertEquals(new IdempotentIOUService.Result(result.id(), true), retry);
+	}
+
+	private static IOU newIOU(String amount) {
+		return new IOU("Borrower", "Lender", new BigDecimal(amount), DATE_TIME);
+	}
+}
@@ -0,0 +1,82 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.Description;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountTotals;
+import com.cbfacademy.restapiexercise.IOUS.IOUChangedEvent;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IOUAmountAggregateTest {
+
+	private IOURepository iouRepository;
+	private IOUAmountAggregate aggregate;
+
+	@BeforeEach
+	void setUp() {
+		iouRepository = mock(IOURepository.class);
+		when(iouRepository.sumAmounts()).thenReturn(new IOUAmountTotals(2L, new BigDecimal("300.00")));
+		aggregate = new IOUAmountAggregate(iouRepository);
+	}
+
+	@Test
+	@Description("The average is loaded from the table once and then kept up to date from change events")
+	void tracksChangesWithoutRescanning() {
+		// Act: first read loads 2 IOUs totalling 300, then one IOU is created, updated and another deleted.
+		assertEquals(0, new BigDecimal("150").compareTo(aggregate.average().orElseThrow()));
+
+		IOU created = newIOU("60.00");
+		aggregate.onIOUChanged(IOUChangedEvent.created(created));
+		IOU updated = new IOU(created);
+		updated.setAmount(new BigDecimal("90.00"));
+		aggregate.onIOUChanged(IOUChangedEvent.updated(created, updated));
+		aggregate.onIOUChanged(IOUChangedEvent.deleted(newIOU("100.00")));
+
+		// Assert: (300 + 90 - 100) / 2 = 145, and the table was only read once.
+		assertEquals(new IOUAmountTotals(2L, new BigDecimal("290.00")), aggregate.totals());
+		assertEquals(0, new BigDecimal("145").compareTo(aggregate.average().orElseThrow()));
+		verify(iouRepository, times(1)).sumAmounts();
+	}
+
+	@Test
+	@Description("Reconciliation replaces drifted totals with the values in the table")
+	void reconcileFixesDrift() {
+		// Arrange: load the totals, then change the table behind the aggregate's back.
+		aggregate.average();
+		when(iouRepository.sumAmounts()).thenReturn(new IOUAmountTotals(3L, new BigDecimal("330.00")));
+
+		// Act
+		aggregate.reconcile();
+
+		// Assert
+		assertEquals(new IOUAmountTotals(3L, new BigDecimal("330.00")), aggregate.totals());
+	}
+
+	@Test
+	@Description("There is no average when there are no IOUs")
+	void emptyTableHasNoAverage() {
+		when(iouRepository.sumAmounts()).thenReturn(new IOUAmountTotals(null, null));
+
+		assertEquals(Optional.empty(), aggregate.average());
+	}
+
+	private IOU newIOU(String amount) {
+		IOU iou = new IOU("John", "Alice", new BigDecimal(amount), Instant.now());
+		iou.setId(UUID.randomUUID());
+		return iou;
+	}
+}
@@ -0,0 +1,93 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUBatchResult;
+import com.cbfacademy.restapiexercise.IOUS.IOUBatchService;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.UuidV7Generator;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest
+@Import(IOUBatchService.class)
+@TestPropertySource(properties = { "ious.batch.chunk-size=100", "ious.batch.max-items=1000" })
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // Let every chunk commit for real, as it does in production
+public class IOUBatchServiceTest {
+
+	@Autowired
+	private IOUBatchService iouBatchService;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@AfterEach
+	void tearDown() {
+		iouRepository.deleteAll();
+	}
+
+	@Test
+	@Description("Valid IOUs are saved and each bad IOU is reported without undoing the rest of its chunk")
+	void reportsPerItemFailures() {
+		// Arrange: 250 IOUs where #10 has no amount and #120 has a borrower too long for the column.
+		List<IOU> ious = new ArrayList<>();
+		for (int i = 0; i < 250; i++) {
+			ious.add(new IOU("Borrower" + i, "Lender", new BigDecimal("5.00"), Instant.now()));
+		}
+		ious.get(10).setAmount(null);
+		ious.get(120).setBorrower("x".repeat(300));
+
+		// Act
+		IOUBatchResult result = iouBatchService.createIOUs(ious.iterator());
+
+		// Assert: only the two bad IOUs are missing.
+		assertEquals(250, result.received());
+		assertEquals(248, result.created());
+		assertEquals(248, iouRepository.count());
+		assertEquals(List.of(10, 120), result.failures().stream().map(IOUBatchResult.Failure::index).toList());
+	}
+
+	@Test
+	@Description("Reading stops at the configured maximum, keeping what was already saved")
+	void stopsAtMaxItems() {
+		List<IOU> ious = new ArrayList<>();
+		for (int i = 0; i < 1001; i++) {
+			ious.add(new IOU("Borrower", "Lender", BigDecimal.ONE, Instant.now()));
+		}
+
+		IOUBatchResult result = iouBatchService.createIOUs(ious.iterator());
+
+		assertEquals(1000, result.created());
+		assertEquals(1, result.failures().size());
+		assertEquals(1000, result.failures().get(0).index());
+	}
+
+	@Test
+	@Description("Generated ids are version 7 UUIDs in creation order")
+	void idsAreTimeOrdered() {
+		UUID previous = UuidV7Generator.next();
+		for (int i = 0; i < 10_000; i++) {
+			UUID next = UuidV7Generator.next();
+			assertEquals(7, next.version());
+			assertEquals(2, next.variant());
+			assertTrue(Long.compareUnsigned(previous.getMostSignificantBits(), next.getMostSignificantBits()) < 0);
+			previous = next;
+		}
+	}
+}
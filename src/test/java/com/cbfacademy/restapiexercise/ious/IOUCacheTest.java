@@ -0,0 +1,86 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.cache.CacheType;
+import org.springframework.boot.test.autoconfigure.core.AutoConfigureCache;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOUCaches;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest
+@AutoConfigureCache(cacheProvider = CacheType.CAFFEINE) // Slice tests switch caching off by default
+@Import({ IOUService.class, IOUAmountAggregate.class, IOUCaches.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // Invalidation happens on commit, so the writes must really commit
+public class IOUCacheTest {
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private IOUCaches iouCaches;
+
+	@AfterEach
+	void tearDown() {
+		iouRepository.deleteAll();
+	}
+
+	@Test
+	@Description("Reads after an update or delete never return the cached old IOU")
+	void noStaleReadsAfterWrites() {
+		// Arrange: create an IOU for John and warm both caches.
+		IOU iou = new IOU("John", "Alice", new BigDecimal("100.00"), Instant.now());
+		iouService.createIOU(iou);
+		UUID id = iou.getId();
+		assertEquals("John", iouService.getIOU(id).orElseThrow().getBorrower());
+		assertEquals(1, iouService.getIOUsByBorrower("John").size());
+		assertEquals(0, iouService.getIOUsByBorrower("Mary").size());
+		assertEquals(1, iouService.getIOU(id).map(found -> 1).orElse(0)); // served from the cache
+		assertTrue(iouCaches.stats().get(IOUCaches.IOU_CACHE).hits() >= 1);
+
+		// Act: move the IOU from John to Mary.
+		iouService.updateIOU(id, new IOU("Mary", "Alice", new BigDecimal("150.00"), Instant.now()));
+
+		// Assert: the by-id entry and both borrowers' lists reflect the update.
+		IOU updated = iouService.getIOU(id).orElseThrow();
+		assertEquals("Mary", updated.getBorrower());
+		assertEquals(0, new BigDecimal("150.00").compareTo(updated.getAmount()));
+		assertEquals(List.of(), iouService.getIOUsByBorrower("John"));
+		assertEquals(1, iouService.getIOUsByBorrower("Mary").size());
+
+		// Act + Assert: deleting it removes it from both caches.
+		iouService.deleteIOU(id);
+		assertTrue(iouService.getIOU(id).isEmpty());
+		assertEquals(List.of(), iouService.getIOUsByBorrower("Mary"));
+	}
+
+	@Test
+	@Description("A lookup that missed is not remembered once the IOU is created")
+	void createInvalidatesCachedMisses() {
+		assertEquals(List.of(), iouService.getIOUsByBorrower("Zoe"));
+
+		iouService.createIOU(new IOU("Zoe", "Alice", BigDecimal.TEN, Instant.now()));
+
+		assertEquals(1, iouService.getIOUsByBorrower("Zoe").size());
+	}
+}
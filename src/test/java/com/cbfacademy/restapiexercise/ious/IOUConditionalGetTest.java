@@ -0,0 +1,132 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.annotation.Description;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUChangeCounterRepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+import jakarta.persistence.EntityManagerFactory;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class IOUConditionalGetTest {
+
+	@Autowired
+	private TestRestTemplate restTemplate;
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
+	@Autowired
+	private IOUChangeCounterRepository changeCounters;
+
+	private Statistics statistics;
+
+	@BeforeEach
+	void setUp() {
+		statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+	}
+
+	@Test
+	@Description("A single IOU is tagged with its version and a matching If-None-Match gets a 304 without a database query")
+	void singleIOUNotModifiedUntilUpdated() {
+		// Arrange: the first GET returns the IOU and puts it in the cache.
+		IOU iou = iouService.createIOU(new IOU("Etag", "Lender", new BigDecimal("5.00"), Instant.now()));
+		String url = "/api/ious/id/" + iou.getId();
+		ResponseEntity<String> first = restTemplate.getForEntity(url, String.class);
+		String etag = first.getHeaders().getETag();
+		assertEquals("\"0\"", etag);
+
+		// Act
+		long statements = statistics.getPrepareStatementCount();
+		ResponseEntity<String> again = get(url, HttpHeaders.IF_NONE_MATCH, etag);
+		long statementsForRevalidation = statistics.getPrepareStatementCount() - statements;
+		IOU changed = new IOU(iou);
+		changed.setAmount(new BigDecimal("6.00"));
+		iouService.updateIOU(iou.getId(), changed);
+		ResponseEntity<String> afterUpdate = get(url, HttpHeaders.IF_NONE_MATCH, etag);
+
+		// Assert
+		assertEquals(HttpStatus.NOT_MODIFIED, again.getStatusCode());
+		assertNull(again.getBody());
+		assertEquals(0, statementsForRevalidation);
+		assertEquals(HttpStatus.OK, afterUpdate.getStatusCode());
+		assertEquals("\"1\"", afterUpdate.getHeaders().getETag());
+	}
+
+	@Test
+	@Description("Lists carry ETag and Last-Modified from the persisted table version and revalidate with one small query until the table changes")
+	void listNotModifiedUntilTableChanges() {
+		// Arrange
+		iouService.createIOU(new IOU("Etag", "Lender", new BigDecimal("5.00"), Instant.now()));
+		ResponseEntity<String> first = restTemplate.getForEntity("/api/ious/high", String.class);
+		String etag = first.getHeaders().getETag();
+		assertNotNull(etag);
+		assertNotEquals(-1, first.getHeaders().getLastModified());
+
+		// Act
+		long statements = statistics.getPrepareStatementCount();
+		ResponseEntity<String> byEtag = get("/api/ious/high", HttpHeaders.IF_NONE_MATCH, etag);
+		ResponseEntity<String> byDate = get("/api/ious?borrower=Etag", HttpHeaders.IF_MODIFIED_SINCE, first.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED));
+		long statementsForRevalidation = statistics.getPrepareStatementCount() - statements;
+		iouService.createIOU(new IOU("Etag", "Lender", new BigDecimal("50.00"), Instant.now()));
+		ResponseEntity<String> afterCreate = get("/api/ious/high", HttpHeaders.IF_NONE_MATCH, etag);
+
+		// Assert
+		assertEquals(HttpStatus.NOT_MODIFIED, byEtag.getStatusCode());
+		assertEquals(HttpStatus.NOT_MODIFIED, byDate.getStatusCode());
+		assertEquals(2, statementsForRevalidation); // The table version, once per request - the lists themselves are never read
+		assertEquals(HttpStatus.OK, afterCreate.getStatusCode());
+		assertNotEquals(etag, afterCreate.getHeaders().getETag());
+	}
+
+	@Test
+	@Description("Different queries never share an ETag, and a change counted by anyone else - another instance, say - moves it on")
+	void listEtagCoversTheQueryAndPersistedChanges() {
+		// Arrange
+		iouService.createIOU(new IOU("Etag", "Lender", new BigDecimal("5.00"), Instant.now()));
+		String etag = restTemplate.getForEntity("/api/ious?borrower=Etag", String.class).getHeaders().getETag();
+
+		// Act
+		ResponseEntity<String> otherBorrower = get("/api/ious?borrower=Other", HttpHeaders.IF_NONE_MATCH, etag);
+		ResponseEntity<String> sameQuery = get("/api/ious?borrower=Etag", HttpHeaders.IF_NONE_MATCH, etag);
+		changeCounters.increment(0, Instant.now()); // As another instance's write would, without this one hearing about it
+		ResponseEntity<String> afterOutsideChange = get("/api/ious?borrower=Etag", HttpHeaders.IF_NONE_MATCH, etag);
+
+		// Assert
+		assertEquals(HttpStatus.OK, otherBorrower.getStatusCode());
+		assertNotEquals(etag, otherBorrower.getHeaders().getETag());
+		assertEquals(HttpStatus.NOT_MODIFIED, sameQuery.getStatusCode());
+		assertEquals(HttpStatus.OK, afterOutsideChange.getStatusCode());
+		assertNotEquals(etag, afterOutsideChange.getHeaders().getETag());
+	}
+
+	private ResponseEntity<String> get(String url, String header, String value) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(header, value);
+		return restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+	}
+}
@@ -0,0 +1,92 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUExportService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DataJpaTest
+@Import(IOUExportService.class)
+public class IOUExportServiceTest {
+
+	private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+	@Autowired
+	private IOUExportService iouExportService;
+
+	@Autowired
+	private TestEntityManager entityManager;
+
+	private final List<IOU> saved = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() {
+		// Arrange: five IOUs a minute apart, one with a name that needs quoting in CSV.
+		for (int i = 0; i < 5; i++) {
+			saved.add(entityManager.persist(new IOU("Borrower" + i, "Lender", new BigDecimal("1" + i + ".50"), START.plusSeconds(60L * i))));
+		}
+		saved.get(2).setBorrower("Smith, \"Jo\""); // an update, so this one is at version 1
+		entityManager.flush();
+		entityManager.clear();
+	}
+
+	@Test
+	@Description("CSV export has a header, quotes awkward names and honours the date range")
+	void exportsCsv() throws Exception {
+		// Act: from is inclusive and to exclusive, so minutes 1, 2 and 3.
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long rows = iouExportService.export(IOUExportService.Format.CSV, START.plusSeconds(60), START.plusSeconds(240), out);
+
+		// Assert
+		String[] lines = out.toString(StandardCharsets.UTF_8).split("\r\n");
+		assertEquals(3, rows);
+		assertEquals(4, lines.length);
+		assertEquals("id,borrower,lender,amount,dateTime,version", lines[0]);
+		assertEquals(saved.get(1).getId() + ",Borrower1,Lender,11.50,2024-01-01T00:01:00Z,0", lines[1]);
+		assertEquals(saved.get(2).getId() + ",\"Smith, \"\"Jo\"\"\",Lender,12.50,2024-01-01T00:02:00Z,1", lines[2]);
+	}
+
+	@Test
+	@Description("NDJSON export writes one IOU per line that reads back as the same IOU")
+	void exportsNdjson() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long rows = iouExportService.export(IOUExportService.Format.NDJSON, null, null, out);
+
+		ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+		String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+		assertEquals(5, rows);
+		assertEquals(5, lines.length);
+		for (int i = 0; i < 5; i++) {
+			IOU iou = objectMapper.readValue(lines[i], IOU.class);
+			assertEquals(saved.get(i).getId(), iou.getId());
+			assertEquals(saved.get(i).getBorrower(), iou.getBorrower());
+			assertEquals(0, saved.get(i).getAmount().compareTo(iou.getAmount()));
+			assertEquals(saved.get(i).getDateTime(), iou.getDateTime());
+		}
+	}
+
+	@Test
+	@Description("Unknown formats and empty date ranges are rejected")
+	void rejectsBadInput() {
+		assertThrows(IllegalArgumentException.class, () -> IOUExportService.Format.parse("xml"));
+		assertThrows(IllegalArgumentException.class, () -> iouExportService.export(IOUExportService.Format.CSV, START, START, new ByteArrayOutputStream()));
+	}
+}
@@ -0,0 +1,136 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOUCursor;
+import com.cbfacademy.restapiexercise.IOUS.IOUFilter;
+import com.cbfacademy.restapiexercise.IOUS.IOUPage;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest
+@Import({ IOUService.class, IOUAmountAggregate.class })
+@TestPropertySource(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector=com.cbfacademy.restapiexercise.ious.IOUQueryPlanTest$LastSelect")
+public class IOUQueryPlanTest {
+
+	private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private TestEntityManager entityManager;
+
+	@BeforeEach
+	void setUp() {
+		// Arrange: enough rows spread over borrowers, lenders, times and amounts that an index is worth using.
+		List<IOU> ious = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			ious.add(new IOU("Borrower" + (i % 50), "Lender" + (i % 40), new BigDecimal(i % 500 + ".00"), START.plusSeconds(i)));
+		}
+		iouRepository.saveAll(ious);
+		entityManager.flush();
+		jdbcTemplate.execute("ANALYZE");
+	}
+
+	@Test
+	@Description("Every filter combination is answered from one of the composite indexes, never a full scan")
+	void filtersUseIndexes() {
+		Instant from = START.plusSeconds(100);
+		Instant to = START.plusSeconds(900);
+		BigDecimal min = new BigDecimal("490.00");
+
+		assertUsesIndex("idx_ious_borrower_date_time", new IOUFilter("Borrower7", null, null, null, null, null));
+		assertUsesIndex("idx_ious_borrower_date_time", new IOUFilter("Borrower7", null, from, to, null, null));
+		assertUsesIndex("idx_ious_borrower_date_time", new IOUFilter("Borrower7", null, null, null, min, null));
+		assertUsesIndex("idx_ious_lender_date_time", new IOUFilter(null, "Lender3", from, to, null, null));
+		assertUsesIndex("idx_ious_date_time_id", new IOUFilter(null, null, from, to, null, null));
+		assertUsesIndex("idx_ious_amount", new IOUFilter(null, null, null, null, min, null));
+	}
+
+	@Test
+	@Description("Filtered pages only contain matching IOUs and page through all of them")
+	void filteredPagesMatch() {
+		IOUFilter filter = new IOUFilter("Borrower7", null, START.plusSeconds(100), START.plusSeconds(900), null, null);
+
+		List<IOU> seen = new ArrayList<>();
+		IOUCursor cursor = null;
+		do {
+			IOUPage page = iouService.getIOUPage(filter, cursor, 5);
+			seen.addAll(page.items());
+			cursor = page.next();
+		} while (cursor != null);
+
+		// 100..899 seconds, every 50th IOU belongs to Borrower7 -> 16 IOUs
+		assertEquals(16, seen.size());
+		assertTrue(seen.stream().allMatch(iou -> iou.getBorrower().equals("Borrower7")
+				&& !iou.getDateTime().isBefore(filter.from()) && iou.getDateTime().isBefore(filter.to())));
+	}
+
+	private void assertUsesIndex(String index, IOUFilter filter) {
+		// Act: run the real query so Hibernate generates the SQL, then ask H2 how it would execute that SQL.
+		LastSelect.sql = null;
+		iouService.getIOUPage(filter, new IOUCursor(START, new UUID(0, 0)), 10);
+		String plan = explain(LastSelect.sql);
+
+		// Assert
+		assertTrue(plan.contains("public." + index), filter + " should use " + index + " but the plan was:\n" + plan);
+	}
+
+	private String explain(String sql) { // Parameters are left unbound - H2 picks the index from the statement's shape, not its values
+		return jdbcTemplate.execute((ConnectionCallback<String>) connection -> {
+			try (PreparedStatement explain = connection.prepareStatement("EXPLAIN " + sql)) {
+				for (int i = 1; i <= explain.getParameterMetaData().getParameterCount(); i++) {
+					explain.setObject(i, null);
+				}
+				try (ResultSet plan = explain.executeQuery()) {
+					plan.next();
+					return plan.getString(1);
+				}
+			}
+		});
+	}
+
+	// Remembers the last SELECT on the ious table that Hibernate sent
+	public static class LastSelect implements StatementInspector {
+
+		static volatile String sql;
+
+		@Override
+		public String inspect(String statement) {
+			if (statement.startsWith("select") && statement.contains(" from ious ")) {
+				sql = statement;
+			}
+			return statement;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOUChangedEvent;
+import com.cbfacademy.restapiexercise.IOUS.IOUReadModel;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+import com.cbfacademy.restapiexercise.balances.BalanceLedger;
+import com.cbfacademy.restapiexercise.balances.BalanceService;
+import com.cbfacademy.restapiexercise.balances.UserBalance;
+import com.cbfacademy.restapiexercise.balances.UserBalanceRepository;
+import com.cbfacademy.restapiexercise.balances.UserBalanceSummary;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest
+@Import({ IOUService.class, IOUAmountAggregate.class, IOUReadModel.class, BalanceLedger.class, BalanceService.class })
+@TestPropertySource(properties = "ious.read-model.enabled=true")
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // The read model follows commits, so the writes must really commit
+public class IOUReadModelTest {
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private IOUAmountAggregate amountAggregate;
+
+	@Autowired
+	private IOUReadModel readModel;
+
+	@Autowired
+	private UserBalanceRepository userBalanceRepository;
+
+	@Autowired
+	private BalanceService balanceService;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@AfterEach
+	void tearDown() {
+		iouRepository.deleteAll();
+		balanceService.rebuild();
+		readModel.load(); // deleteAll() bypasses IOUService, so nothing told the read model
+	}
+
+	@Test
+	@Description("/high, /low and the top debtor and creditor lists from memory match the database, through writes and a reload")
+	void matchesTheDatabase() {
+		// Arrange: random IOUs between ten users, then some updates and deletes.
+		Random random = new Random(42);
+		List<IOU> ious = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			IOU iou = new IOU("User" + random.nextInt(10), "User" + random.nextInt(10), BigDecimal.valueOf(random.nextInt(100_000), 2),
+					Instant.now().truncatedTo(ChronoUnit.MICROS));
+			iouService.createIOU(iou);
+			ious.add(iou);
+		}
+		for (int i = 0; i < 20; i++) {
+			iouService.updateIOU(ious.get(i).getId(), new IOU("User3", "User" + i % 10, new BigDecimal("123.455"), Instant.now()));
+			iouService.deleteIOU(ious.get(100 + i).getId());
+		}
+
+		// Act and Assert: kept current from the writes...
+		assertTrue(readModel.isLoaded());
+		assertEquals(180, readModel.size());
+		assertMatchesDatabase();
+
+		// ...and picks up rows written behind its back on the next load.
+		jdbcTemplate.update("INSERT INTO ious (id, borrower, lender, amount, date_time, version) VALUES (?, 'User0', 'User1', 5000.00, ?, 0)",
+				UUID.randomUUID(), Timestamp.from(Instant.now()));
+		balanceService.rebuild();
+		amountAggregate.reconcile();
+		readModel.load();
+		assertEquals(181, readModel.size());
+		assertMatchesDatabase();
+	}
+
+	@Test
+	@Description("A million IOUs fit in well under 100MB")
+	void footprintPerMillion() {
+		// Act: a million creates, as IOUService would publish them.
+		Instant now = Instant.now();
+		for (int i = 0; i < 1_000_000; i++) {
+			IOU iou = new IOU("User" + i % 100_000, "User" + (i + 1) % 100_000, new BigDecimal("10.00"), now);
+			iou.setId(UUID.randomUUID());
+			iou.setVersion(0L);
+			readModel.onIOUChanged(IOUChangedEvent.created(iou));
+		}
+
+		// Assert: 48 bytes of columns plus the id index per IOU, with room to grow, plus 100k user names.
+		assertEquals(1_000_000, readModel.size());
+		long bytes = readModel.footprintBytes();
+		assertTrue(bytes > 56_000_000 && bytes < 100_000_000, "footprint was " + bytes);
+	}
+
+	private void assertMatchesDatabase() {
+		BigDecimal average = amountAggregate.average().orElseThrow();
+		assertEquals(ids(iouRepository.findByAmountGreaterThan(average)), ids(readModel.getHighValueIOUs().orElseThrow()));
+		assertEquals(ids(iouRepository.findByAmountLessThanEqual(average)), ids(readModel.getBelowOrEqualValueIOUs().orElseThrow()));
+		List<IOU> everyIOU = new ArrayList<>(readModel.getHighValueIOUs().orElseThrow()); // Every field survives the trip through the columns
+		everyIOU.addAll(readModel.getBelowOrEqualValueIOUs().orElseThrow());
+		assertEquals(describe(iouRepository.findAll()), describe(everyIOU));
+		assertEquals(fromTable(userBalanceRepository.findTopDebtors(5)), summaries(readModel.getTopDebtors(5).orElseThrow()));
+		assertEquals(fromTable(userBalanceRepository.findTopCreditors(5)), summaries(readModel.getTopCreditors(5).orElseThrow()));
+	}
+
+	private List<String> ids(List<IOU> ious) {
+		return ious.stream().map(iou -> iou.getId().toString()).sorted().toList();
+	}
+
+	private List<String> describe(List<IOU> ious) {
+		return ious.stream()
+				.map(iou -> iou.getId() + "," + iou.getBorrower() + "," + iou.getLender() + "," + iou.getAmount() + "," + iou.getDateTime() + "," + iou.getVersion())
+				.sorted()
+				.toList();
+	}
+
+	private List<UserBalanceSummary> fromTable(List<UserBalance> balances) {
+		return balances.stream().map(balance -> new UserBalanceSummary(balance.getName(), balance.getBorrowed(), balance.getLent(),
+				balance.getLent().subtract(balance.getBorrowed()))).toList();
+	}
+
+	private List<UserBalanceSummary> summaries(List<IOUReadModel.UserTotals> totals) {
+		return totals.stream().map(user -> new UserBalanceSummary(user.user(), user.borrowed(), user.lent(), user.net())).toList();
+	}
+}
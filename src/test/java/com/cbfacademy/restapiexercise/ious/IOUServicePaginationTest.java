@@ -0,0 +1,157 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOUCursor;
+import com.cbfacademy.restapiexercise.IOUS.IOUFilter;
+import com.cbfacademy.restapiexercise.IOUS.IOUPage;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+import jakarta.persistence.EntityManager;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest // Boots only the JPA layer against the embedded test database
+@Import({ IOUService.class, IOUAmountAggregate.class })
+public class IOUServicePaginationTest {
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private EntityManager entityManager;
+
+	private List<UUID> expectedOrder; // ids in (dateTime, id) order as the database sorts them
+
+	@BeforeEach
+	void setUp() {
+		// Arrange: several IOUs share a timestamp so the id tie-breaker is exercised.
+		Instant base = Instant.parse("2024-01-01T00:00:00Z");
+		for (int i = 0; i < 7; i++) {
+			iouRepository.save(new IOU("Borrower" + i, "Lender" + i, new BigDecimal("10.00"), base.plusSeconds(i / 3)));
+		}
+		expectedOrder = new ArrayList<>();
+		iouService.streamAllIOUs(iou -> expectedOrder.add(iou.getId()));
+	}
+
+	@Test
+	@Description("Cursor pages cover every IOU exactly once, in order")
+	void pagesCoverEveryIOUOnce() {
+		// Act: walk the pages two rows at a time.
+		List<UUID> seen = new ArrayList<>();
+		IOUCursor cursor = null;
+		int pages = 0;
+		do {
+			IOUPage page = iouService.getIOUPage(cursor, 2);
+			page.items().forEach(iou -> seen.add(iou.getId()));
+			cursor = page.next();
+			pages++;
+		} while (cursor != null);
+
+		// Assert: 7 rows in pages of 2 is 4 pages, with nothing skipped or repeated.
+		assertEquals(7, expectedOrder.size());
+		assertEquals(expectedOrder, seen);
+		assertEquals(4, pages);
+	}
+
+	@Test
+	@Description("IOUs without a dateTime come first and are paged through like the rest, with or without a filter")
+	void pagesCoverIOUsWithoutADateTime() {
+		// Arrange: three undated IOUs, so pages of 2 end on one of them and carry on into the dated ones.
+		for (int i = 0; i < 3; i++) {
+			iouRepository.save(new IOU("Undated" + i, "Lender", new BigDecimal("10.00"), null));
+		}
+		List<UUID> order = new ArrayList<>();
+		iouService.streamAllIOUs(iou -> order.add(iou.getId()));
+
+		// Act: page through the tokens a client would send back, then again with a filter that matches every IOU.
+		List<IOU> seen = new ArrayList<>();
+		List<IOU> filtered = new ArrayList<>();
+		List<String> tokens = new ArrayList<>();
+		IOUCursor cursor = null;
+		do {
+			IOUPage page = iouService.getIOUPage(cursor, 2);
+			seen.addAll(page.items());
+			if (page.hasNext()) {
+				tokens.add(page.next().encode());
+			}
+			cursor = page.hasNext() ? IOUCursor.decode(tokens.get(tokens.size() - 1)) : null;
+		} while (cursor != null);
+		do {
+			IOUPage page = iouService.getIOUPage(new IOUFilter(null, null, null, null, new BigDecimal("10.00"), null), cursor, 2);
+			filtered.addAll(page.items());
+			cursor = page.next();
+		} while (cursor != null);
+
+		// Assert
+		assertEquals(10, order.size());
+		assertEquals(order, seen.stream().map(IOU::getId).toList());
+		assertEquals(order, filtered.stream().map(IOU::getId).toList());
+		assertNull(seen.get(2).getDateTime());
+		assertNull(IOUCursor.decode(tokens.get(0)).dateTime());
+	}
+
+	@Test
+	@Description("The last page has no next cursor")
+	void lastPageHasNoCursor() {
+		IOUPage page = iouService.getIOUPage(null, 10);
+
+		assertEquals(7, page.items().size());
+		assertFalse(page.hasNext());
+	}
+
+	@Test
+	@Description("Cursors survive an encode/decode round trip")
+	void cursorRoundTrip() {
+		IOUCursor cursor = new IOUCursor(Instant.parse("2030-01-01T00:00:01.123456Z"), UUID.randomUUID());
+
+		assertEquals(cursor, IOUCursor.decode(cursor.encode()));
+		assertThrows(IllegalArgumentException.class, () -> IOUCursor.decode("not-a-cursor"));
+		assertTrue(iouService.getIOUPage(IOUCursor.decode(cursor.encode()), 1).items().isEmpty());
+	}
+
+	@Test
+	@Description("Query results are plain IOUs, not entities managed by the persistence context")
+	void queriesReturnDetachedIOUs() {
+		// Arrange: start from an empty persistence context, as a request would.
+		entityManager.clear();
+
+		// Act
+		List<IOU> page = iouService.getIOUPage(null, 10).items();
+		List<IOU> all = iouService.getAllIOUs();
+
+		// Assert
+		assertEquals(7, page.size());
+		assertTrue(page.stream().noneMatch(entityManager::contains));
+		assertTrue(all.stream().noneMatch(entityManager::contains));
+		assertFalse(entityManager.contains(iouService.getIOU(page.get(0).getId()).orElseThrow()));
+	}
+
+	@Test
+	@Description("Page sizes outside the allowed range are rejected")
+	void rejectsInvalidLimit() {
+		assertThrows(IllegalArgumentException.class, () -> iouService.getIOUPage(null, 0));
+		assertThrows(IllegalArgumentException.class, () -> iouService.getIOUPage(null, IOUService.MAX_PAGE_SIZE + 1));
+	}
+}
@@ -0,0 +1,82 @@
+package com.cbfacademy.restapiexercise.ious;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest
+@Import({ IOUService.class, IOUAmountAggregate.class })
+public class IOUServiceVersioningTest {
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Test
+	@Description("Each update bumps the version and a stale version is rejected")
+	void detectsConcurrentEdits() {
+		// Arrange: two clients read version 0 of the same IOU.
+		IOU iou = new IOU("John", "Alice", new BigDecimal("100.00"), Instant.now());
+		iouService.createIOU(iou);
+		UUID id = iou.getId();
+
+		// Act: the first client's update wins...
+		IOU first = new IOU("John", "Alice", new BigDecimal("120.00"), Instant.now());
+		first.setVersion(0L);
+		IOU saved = iouService.updateIOU(id, first);
+
+		// Assert: ...and the second client, still holding version 0, gets a conflict instead of overwriting it.
+		assertEquals(1L, saved.getVersion());
+		IOU second = new IOU("John", "Alice", new BigDecimal("80.00"), Instant.now());
+		second.setVersion(0L);
+		assertThrows(OptimisticLockingFailureException.class, () -> iouService.updateIOU(id, second));
+		assertEquals(0, new BigDecimal("120.00").compareTo(iouRepository.findById(id).orElseThrow().getAmount()));
+	}
+
+	@Test
+	@Description("Updates without a version use the current one, and missing IOUs are reported")
+	void updatesAndDeletesInPlace() {
+		IOU iou = new IOU("John", "Alice", new BigDecimal("100.00"), Instant.now());
+		iouService.createIOU(iou);
+
+		IOU saved = iouService.updateIOU(iou.getId(), new IOU("Mary", "Alice", new BigDecimal("50.00"), Instant.now()));
+		iouService.deleteIOU(iou.getId());
+
+		assertEquals("Mary", saved.getBorrower());
+		assertEquals(1L, saved.getVersion());
+		assertTrue(iouRepository.findById(iou.getId()).isEmpty());
+		assertThrows(NoSuchElementException.class, () -> iouService.updateIOU(UUID.randomUUID(), saved));
+	}
+
+	@Test
+	@Description("Deleting an IOU that doesn't exist is reported as not found, like updating one")
+	void deleteOfUnknownIdIsNotFound() {
+		// Arrange: one IOU deleted already, and an id that never existed.
+		IOU iou = new IOU("John", "Alice", new BigDecimal("100.00"), Instant.now());
+		iouService.createIOU(iou);
+		iouService.deleteIOU(iou.getId());
+
+		// Act / Assert: NoSuchElementException is what IOUExceptionHandler turns into a 404.
+		assertThrows(NoSuchElementException.class, () -> iouService.deleteIOU(iou.getId()));
+		assertThrows(NoSuchElementException.class, () -> iouService.deleteIOU(UUID.randomUUID()));
+	}
+}
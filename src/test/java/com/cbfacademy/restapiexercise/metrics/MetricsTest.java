@@ -0,0 +1,68 @@
+package com.cbfacademy.restapiexercise.metrics;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.annotation.Description;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureObservability // Tests turn metrics export off by default
+public class MetricsTest {
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private TestRestTemplate restTemplate;
+
+	@Test
+	@Description("Repository calls record how many rows they returned")
+	void recordsRowsReturned() {
+		// Arrange
+		iouService.createIOU(new IOU("Metrics", "Lender", new BigDecimal("1.00"), Instant.now()));
+		iouService.createIOU(new IOU("Metrics", "Lender", new BigDecimal("2.00"), Instant.now()));
+
+		// Act
+		iouService.getIOUsByBorrower("Metrics");
+
+		// Assert
+		DistributionSummary rows = meterRegistry.find(RepositoryRowMetrics.METRIC).tag("repository", "IOURepository").tag("method", "findByBorrower").summary();
+		assertNotNull(rows);
+		assertEquals(1, rows.count());
+		assertEquals(2, rows.totalAmount());
+	}
+
+	@Test
+	@Description("The Prometheus endpoint exposes endpoint, repository, pool and Hibernate metrics")
+	void exposesPrometheusMetrics() {
+		// Act
+		restTemplate.getForObject("/api/ious?limit=5", String.class);
+		String scrape = restTemplate.getForObject("/actuator/prometheus", String.class);
+
+		// Assert
+		assertTrue(scrape.contains("http_server_requests_seconds_bucket{"), "endpoint histogram");
+		assertTrue(scrape.contains("spring_data_repository_invocations_seconds_bucket{"), "repository histogram");
+		assertTrue(scrape.contains("repository_rows_sum{"), "rows returned");
+		assertTrue(scrape.contains("hikaricp_connections_active{"), "pool gauges");
+		assertTrue(scrape.contains("ious_bulkhead_waiting "), "bulkhead gauges");
+		assertTrue(scrape.contains("hibernate_query_executions_total{"), "Hibernate statistics");
+	}
+}
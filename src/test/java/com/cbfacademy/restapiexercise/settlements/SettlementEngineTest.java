@@ -0,0 +1,77 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.Description;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SettlementEngineTest {
+
+	private final SettlementEngine engine = new SettlementEngine();
+
+	@Test
+	@Description("A chain of debts collapses into a single transfer")
+	void collapsesChains() {
+		// Arrange: A owes B 10, B owes C 10, C owes D 10.
+		NetBalances balances = new NetBalances(4);
+		balances.add("A", "B", new BigDecimal("10.00"));
+		balances.add("B", "C", new BigDecimal("10.00"));
+		balances.add("C", "D", new BigDecimal("10.00"));
+
+		// Act
+		SettlementPlan plan = engine.settle(balances);
+
+		// Assert: A pays D directly.
+		assertEquals(4, plan.users());
+		assertEquals(1, plan.transfers().size());
+		assertEquals(new Transfer("A", "D", new BigDecimal("10.00")), plan.transfers().get(0));
+	}
+
+	@Test
+	@Description("Every plan settles all net positions with at most n - 1 transfers")
+	void settlesRandomGraphs() {
+		Random random = new Random(42);
+		NetBalances balances = new NetBalances(0);
+		Map<String, BigDecimal> expected = new HashMap<>();
+		for (int i = 0; i < 20_000; i++) {
+			String borrower = "user" + random.nextInt(500);
+			String lender = "user" + random.nextInt(500);
+			BigDecimal amount = BigDecimal.valueOf(random.nextInt(100_000), 2);
+			balances.add(borrower, lender, amount);
+			expected.merge(borrower, amount.negate(), BigDecimal::add);
+			expected.merge(lender, amount, BigDecimal::add);
+		}
+
+		SettlementPlan plan = engine.settle(balances);
+
+		// Applying the transfers must bring every user back to zero.
+		Map<String, BigDecimal> remaining = new HashMap<>(expected);
+		for (Transfer transfer : plan.transfers()) {
+			assertTrue(transfer.amount().signum() > 0);
+			remaining.merge(transfer.from(), transfer.amount(), BigDecimal::add);
+			remaining.merge(transfer.to(), transfer.amount().negate(), BigDecimal::add);
+		}
+		remaining.values().forEach(value -> assertEquals(0, value.signum()));
+		assertTrue(plan.transfers().size() <= plan.users() - 1);
+	}
+
+	@Test
+	@Description("Half a cent rounds away from zero, the way the database stores it and the read model counts it")
+	void roundsHalfCentsLikeTheDatabase() {
+		// Arrange: HALF_EVEN would make this 0.12.
+		NetBalances balances = new NetBalances(2);
+		balances.add("A", "B", new BigDecimal("0.125"));
+
+		// Act
+		SettlementPlan plan = engine.settle(balances);
+
+		// Assert
+		assertEquals(new Transfer("A", "B", new BigDecimal("0.13")), plan.transfers().get(0));
+	}
+}
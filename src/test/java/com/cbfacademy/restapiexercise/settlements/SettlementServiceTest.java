@@ -0,0 +1,52 @@
+package com.cbfacademy.restapiexercise.settlements;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Description;
+import org.springframework.context.annotation.Import;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUAmountAggregate;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+import com.cbfacademy.restapiexercise.balances.BalanceLedger;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DataJpaTest
+@Import({ IOUService.class, IOUAmountAggregate.class, BalanceLedger.class, SettlementService.class, SettlementEngine.class })
+public class SettlementServiceTest {
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private SettlementService settlementService;
+
+	@Test
+	@Description("Plans can be limited to a group of users and a date window")
+	void filtersByUsersAndWindow() {
+		// Arrange: one IOU in January, two in February.
+		iouService.createIOU(new IOU("A", "B", new BigDecimal("10.00"), Instant.parse("2024-01-15T00:00:00Z")));
+		iouService.createIOU(new IOU("B", "C", new BigDecimal("25.00"), Instant.parse("2024-02-15T00:00:00Z")));
+		iouService.createIOU(new IOU("C", "D", new BigDecimal("40.00"), Instant.parse("2024-02-16T00:00:00Z")));
+
+		// Act
+		SettlementPlan everything = settlementService.plan(new SettlementRequest(null, null, null));
+		SettlementPlan february = settlementService.plan(new SettlementRequest(null, Instant.parse("2024-02-01T00:00:00Z"), Instant.parse("2024-03-01T00:00:00Z")));
+		SettlementPlan group = settlementService.plan(new SettlementRequest(Set.of("A", "B", "C"), null, null));
+
+		// Assert
+		assertEquals(4, everything.users());
+		assertEquals(0, new BigDecimal("40.00").compareTo(everything.totalTransferred()));
+		assertEquals(3, february.users());
+		assertEquals(0, new BigDecimal("40.00").compareTo(february.totalTransferred()));
+		assertEquals(List.of(new Transfer("A", "C", new BigDecimal("10.00")), new Transfer("B", "C", new BigDecimal("15.00"))),
+				group.transfers().stream().sorted((x, y) -> x.from().compareTo(y.from())).toList());
+	}
+}
@@ -0,0 +1,83 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.Description;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ShardKeysTest {
+
+	@Test
+	@Description("Ids carry their bucket and are still version 7 UUIDs in creation order")
+	void idsCarryTheirBucket() {
+		// Act
+		UUID first = ShardKeys.newId(0);
+		UUID second = ShardKeys.newId(ShardKeys.BUCKETS - 1);
+
+		// Assert
+		assertEquals(0, ShardKeys.bucketOf(first));
+		assertEquals(ShardKeys.BUCKETS - 1, ShardKeys.bucketOf(second));
+		assertEquals(7, second.version());
+		assertEquals(2, second.variant());
+		assertTrue((first.getMostSignificantBits() >>> 16) <= (second.getMostSignificantBits() >>> 16)); // Millisecond timestamps
+		assertTrue(ShardedIOURepository.compareIds(first, second) < 0);
+	}
+
+	@Test
+	@Description("Borrowers hash to every bucket, and always to the same one")
+	void borrowersSpreadOverBuckets() {
+		// Act
+		Set<Integer> buckets = new HashSet<>();
+		for (int i = 0; i < 100_000; i++) {
+			buckets.add(ShardKeys.bucketOf("borrower-" + i));
+		}
+
+		// Assert
+		assertEquals(ShardKeys.BUCKETS, buckets.size());
+		assertEquals(ShardKeys.bucketOf("Alice"), ShardKeys.bucketOf(new String("Alice")));
+	}
+
+	@Test
+	@Description("Growing from 3 to 4 shards moves only the buckets the new shard needs, and leaves every shard even")
+	void growMovesOnlyWhatItMust() {
+		// Arrange
+		int[] shardOf = new int[ShardKeys.BUCKETS];
+		Arrays.setAll(shardOf, bucket -> bucket % 3);
+
+		// Act
+		Map<Integer, Integer> moves = ShardRebalancer.plan(shardOf, 4);
+
+		// Assert: all 256 moves are onto shard 3, and each shard ends with 256.
+		assertEquals(ShardKeys.BUCKETS / 4, moves.size());
+		assertTrue(moves.values().stream().allMatch(shard -> shard == 3));
+		moves.forEach((bucket, shard) -> shardOf[bucket] = shard);
+		for (int shard = 0; shard < 4; shard++) {
+			int current = shard;
+			assertEquals(ShardKeys.BUCKETS / 4, Arrays.stream(shardOf).filter(owner -> owner == current).count());
+		}
+		assertTrue(ShardRebalancer.plan(shardOf, 4).isEmpty()); // Already balanced
+	}
+
+	@Test
+	@Description("Shrinking from 4 to 3 shards empties shard 3 and moves nothing else")
+	void shrinkEmptiesTheRemovedShard() {
+		// Arrange
+		int[] shardOf = new int[ShardKeys.BUCKETS];
+		Arrays.setAll(shardOf, bucket -> bucket % 4);
+
+		// Act
+		Map<Integer, Integer> moves = ShardRebalancer.plan(shardOf, 3);
+
+		// Assert
+		assertEquals(ShardKeys.BUCKETS / 4, moves.size());
+		assertTrue(moves.keySet().stream().allMatch(bucket -> shardOf[bucket] == 3));
+		assertTrue(moves.values().stream().allMatch(shard -> shard < 3));
+	}
+}
@@ -0,0 +1,225 @@
+package com.cbfacademy.restapiexercise.sharding;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Description;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOUCursor;
+import com.cbfacademy.restapiexercise.IOUS.IOUPage;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.cbfacademy.restapiexercise.IOUS.IOUService;
+import com.cbfacademy.restapiexercise.balances.BalanceService;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+@TestPropertySource(properties = {
+		"ious.sharding.enabled=true", // Three shards, each its own in-memory H2 database next to the usual test database
+		"ious.sharding.shard-count=3",
+		"ious.sharding.url=jdbc:h2:mem:shard-{shard}-${random.uuid};MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+		"ious.sharding.username=sa",
+		"ious.sharding.rebalance.settle-time=PT0S",
+		"ious.sharding.rebalance.batch-buckets=100",
+		"ious.event-log.enabled=false" })
+public class ShardedIOUsTest {
+
+	private static final Instant DATE_TIME = Instant.parse("2024-01-01T00:00:00Z");
+
+	@Autowired
+	private IOUService iouService;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private BalanceService balanceService;
+
+	@Autowired
+	private Shards shards;
+
+	@Autowired
+	private ShardMap shardMap;
+
+	@Autowired
+	private ShardRebalancer rebalancer;
+
+	@Autowired
+	private TransactionTemplate transactionTemplate;
+
+	private List<IOU> created;
+
+	@BeforeEach
+	void setUp() {
+		// Arrange: 60 IOUs from 20 borrowers, several sharing each timestamp.
+		created = new ArrayList<>();
+		for (int i = 0; i < 60; i++) {
+			created.add(iouService.createIOU(new IOU("Borrower" + (i % 20), "Lender", new BigDecimal(i + 1), DATE_TIME.plusSeconds(i / 4))));
+		}
+	}
+
+	@AfterEach
+	void tearDown() {
+		rebalancer.rebalance(3);
+		created.forEach(iou -> iouService.deleteIOU(iou.getId())); // Through the service, so the running average and caches follow
+	}
+
+	@Test
+	@Description("IOUs are spread over the shards by borrower, and every lookup finds them")
+	void routesByBorrower() {
+		// Assert: the sharded repository is the one in use, and each IOU sits on the shard its borrower's bucket maps to.
+		assertInstanceOf(ShardedIOURepository.class, iouRepository);
+		long total = 0;
+		for (Shard shard : shards.all()) {
+			long rows = shard.jdbcTemplate().queryForObject("SELECT COUNT(*) FROM ious", Long.class);
+			assertTrue(rows > 0);
+			total += rows;
+		}
+		assertEquals(60, total);
+		for (IOU iou : created) {
+			assertEquals(ShardKeys.bucketOf(iou.getBorrower()), ShardKeys.bucketOf(iou.getId()));
+			assertEquals(0, iou.getAmount().compareTo(iouService.getIOU(iou.getId()).orElseThrow().getAmount()));
+		}
+
+		// Act / Assert: single-shard and scatter-gather queries.
+		assertEquals(3, iouService.getIOUsByBorrower("Borrower7").size());
+		assertEquals(60, iouService.getAllIOUs().size());
+		assertEquals(30, iouService.getHighValueIOUs().size()); // Amounts 1 to 60 average 30.5
+		assertEquals(30, iouService.getBelowOrEqualValueIOUs().size());
+		assertEquals(60, iouRepository.count());
+	}
+
+	@Test
+	@Description("Pages merged from every shard cover each IOU once, in (dateTime, id) order")
+	void pagesMergeAcrossShards() {
+		// Arrange
+		List<UUID> streamed = new ArrayList<>();
+		iouService.streamAllIOUs(iou -> streamed.add(iou.getId()));
+
+		// Act
+		List<UUID> paged = new ArrayList<>();
+		IOUCursor cursor = null;
+		do {
+			IOUPage page = iouService.getIOUPage(cursor, 7);
+			page.items().forEach(iou -> paged.add(iou.getId()));
+			cursor = page.next();
+		} while (cursor != null);
+
+		// Assert
+		List<UUID> expected = created.stream().sorted(ShardedIOURepository.PAGE_ORDER).map(IOU::getId).toList();
+		assertEquals(expected, streamed);
+		assertEquals(expected, paged);
+	}
+
+	@Test
+	@Description("Updates stay within the IOU's bucket, and deletes reach the right shard")
+	void updatesAndDeletes() {
+		// Arrange
+		IOU iou = created.get(0);
+		IOU sameBorrower = new IOU(iou.getBorrower(), "Someone else", new BigDecimal("99.00"), DATE_TIME);
+		IOU otherBucket = new IOU(borrowerOutside(ShardKeys.bucketOf(iou.getBorrower())), "Lender", new BigDecimal("1.00"), DATE_TIME);
+
+		// Act
+		iouService.updateIOU(iou.getId(), sameBorrower);
+
+		// Assert
+		assertEquals("Someone else", iouService.getIOU(iou.getId()).orElseThrow().getLender());
+		assertThrows(ShardKeyChangeException.class, () -> iouService.updateIOU(iou.getId(), otherBucket));
+		iouService.deleteIOU(iou.getId());
+		assertTrue(iouService.getIOU(iou.getId()).isEmpty());
+		created.remove(0);
+	}
+
+	@Test
+	@Description("A shard write joins the caller's transaction and rolls back with it")
+	void rollsBackWithTheCaller() {
+		// Act
+		transactionTemplate.executeWithoutResult(status -> {
+			iouService.createIOU(new IOU("Rollback", "Lender", new BigDecimal("5.00"), DATE_TIME));
+			status.setRollbackOnly();
+		});
+
+		// Assert: neither the IOU on its shard nor the borrower's balance in the main database survived.
+		assertTrue(iouService.getIOUsByBorrower("Rollback").isEmpty());
+		assertEquals(0, BigDecimal.ZERO.compareTo(balanceService.getUserBalance("Rollback").borrowed()));
+	}
+
+	@Test
+	@Description("Writes to a bucket being moved are held back until the move is done")
+	void movingBucketRefusesWrites() {
+		// Arrange
+		int bucket = ShardKeys.bucketOf("Borrower1");
+		shardMap.update(List.of(bucket), row -> row.setMovingTo((row.getShard() + 1) % 3));
+
+		// Act / Assert: reads carry on, writes are refused.
+		try {
+			assertEquals(3, iouService.getIOUsByBorrower("Borrower1").size());
+			assertThrows(ShardBucketMovingException.class,
+					() -> iouService.createIOU(new IOU("Borrower1", "Lender", BigDecimal.ONE, DATE_TIME)));
+		} finally {
+			shardMap.update(List.of(bucket), row -> row.setMovingTo(null));
+		}
+	}
+
+	@Test
+	@Description("Rebalancing onto two shards empties the third without losing or duplicating an IOU, and back again")
+	void rebalancesWithoutLosingIOUs() {
+		// Act
+		ShardRebalancer.RebalanceResult shrunk = rebalancer.rebalance(2);
+
+		// Assert
+		long onThird = shards.get(2).jdbcTemplate().queryForObject("SELECT COUNT(*) FROM ious", Long.class);
+		assertEquals(0, onThird);
+		assertEquals(ShardKeys.BUCKETS / 2, shardMap.status().bucketsPerShard().get(0));
+		assertEquals(shrunk.rowsCopied(), shrunk.rowsDeleted());
+		assertFalse(shardMap.isRebalancing());
+		assertEveryIOUOnce();
+
+		// Act: and spread over all three again.
+		rebalancer.rebalance(3);
+
+		// Assert
+		assertEquals(3, shardMap.status().bucketsPerShard().size());
+		assertEveryIOUOnce();
+	}
+
+	private void assertEveryIOUOnce() {
+		List<IOU> all = iouService.getAllIOUs();
+		Set<UUID> ids = new HashSet<>();
+		all.forEach(iou -> ids.add(iou.getId()));
+		assertEquals(created.size(), all.size());
+		assertEquals(created.stream().map(IOU::getId).collect(Collectors.toSet()), ids);
+		long rows = 0;
+		for (Shard shard : shards.all()) {
+			rows += shard.jdbcTemplate().queryForObject("SELECT COUNT(*) FROM ious", Long.class);
+		}
+		assertEquals(created.size(), rows); // Nothing left behind on the old shards
+		created.forEach(iou -> assertTrue(iouService.getIOU(iou.getId()).isPresent()));
+	}
+
+	private static String borrowerOutside(int bucket) {
+		for (int i = 0; ; i++) {
+			if (ShardKeys.bucketOf("Other" + i) != bucket) {
+				return "Other" + i;
+			}
+		}
+	}
+}
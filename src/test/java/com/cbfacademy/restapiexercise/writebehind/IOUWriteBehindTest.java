@@ -0,0 +1,140 @@
+package com.cbfacademy.restapiexercise.writebehind;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Description;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.IOURepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.persistence.EntityManager;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // The writer commits its own transactions
+public class IOUWriteBehindTest {
+
+	@TempDir
+	private Path directory;
+
+	@Autowired
+	private IOURepository iouRepository;
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private TransactionTemplate transactionTemplate;
+
+	@Autowired
+	private ApplicationEventPublisher eventPublisher;
+
+	private IOUWriteBehind writeBehind;
+
+	@AfterEach
+	void tearDown() throws Exception {
+		writeBehind.stop();
+		iouRepository.deleteAll();
+	}
+
+	@Test
+	@Description("Every IOU accepted before a crash ends up in the table exactly once, including ones inserted before the checkpoint moved")
+	void noAcceptedIOUIsLostOrDuplicatedAfterCrash() throws Exception {
+		// Arrange: 25 IOUs accepted. The first batch of 10 is written and acknowledged; the next 4 are inserted but the
+		// crash comes before their checkpoint; the rest never reach the table.
+		writeBehind = open();
+		List<UUID> accepted = new ArrayList<>();
+		for (int i = 0; i < 25; i++) {
+			accepted.add(writeBehind.submit(new IOU("Borrower" + i, "Lender", new BigDecimal("10.00"), Instant.now())));
+		}
+		assertEquals(10, writeBehind.drainOnce());
+		for (int i = 10; i < 14; i++) {
+			IOU inserted = new IOU("Borrower" + i, "Lender", new BigDecimal("10.00"), Instant.now());
+			inserted.setId(accepted.get(i));
+			iouRepository.save(inserted);
+		}
+		assertEquals(Optional.of(IOUWriteBehind.Status.QUEUED), writeBehind.getStatus(accepted.get(12)));
+
+		// Act: crash and start again, then let the writer catch up.
+		writeBehind.stop();
+		writeBehind = open();
+		assertEquals(15, writeBehind.getQueueStatus().queued());
+		while (writeBehind.drainOnce() > 0) {
+		}
+
+		// Assert
+		assertEquals(25, iouRepository.count());
+		List<UUID> stored = iouRepository.findAll().stream().map(IOU::getId).toList();
+		assertEquals(new HashSet<>(accepted), new HashSet<>(stored));
+		assertTrue(accepted.stream().allMatch(id -> writeBehind.getStatus(id).equals(Optional.of(IOUWriteBehind.Status.WRITTEN))));
+		IOUWriteBehind.QueueStatus status = writeBehind.getQueueStatus();
+		assertEquals(0, status.queued());
+		assertEquals(25, status.lastWritten());
+		assertEquals(11, status.written()); // 4 of the 15 were already there
+		assertEquals(0, status.rejected());
+	}
+
+	@Test
+	@Description("Invalid IOUs are refused before they are queued")
+	void rejectsInvalidIOUs() throws IOException {
+		writeBehind = open();
+
+		assertThrows(IllegalArgumentException.class, () -> writeBehind.submit(new IOU("Borrower", "Lender", null, Instant.now())));
+		assertThrows(IllegalArgumentException.class,
+				() -> writeBehind.submit(new IOU("x".repeat(300), "Lender", BigDecimal.ONE, Instant.now())));
+		assertThrows(IllegalArgumentException.class,
+				() -> writeBehind.submit(new IOU("Borrower", "Lender", BigDecimal.TEN.pow(40), Instant.now())));
+		assertEquals(0, writeBehind.getQueueStatus().queued());
+		assertEquals(Optional.empty(), writeBehind.getStatus(UUID.randomUUID()));
+	}
+
+	@Test
+	@Description("An accepted IOU the database refuses is reported as REJECTED rather than unknown, also after a restart")
+	void refusedIOUIsReportedAsRejected() throws Exception {
+		// Arrange: slip an IOU past the checks straight into the queue, as one accepted by an older version might have been.
+		IOU tooLarge = new IOU("Borrower", "Lender", BigDecimal.TEN.pow(40), Instant.now());
+		tooLarge.setId(UUID.randomUUID());
+		IOUWriteQueue queue = new IOUWriteQueue(directory, DataSize.ofMegabytes(1), 100);
+		queue.append(tooLarge);
+		queue.close();
+		writeBehind = open();
+
+		// Act
+		assertEquals(1, writeBehind.drainOnce());
+		Optional<IOUWriteBehind.Status> status = writeBehind.getStatus(tooLarge.getId());
+		writeBehind.stop();
+		writeBehind = open();
+
+		// Assert
+		assertEquals(Optional.of(IOUWriteBehind.Status.REJECTED), status);
+		assertEquals(Optional.of(IOUWriteBehind.Status.REJECTED), writeBehind.getStatus(tooLarge.getId()));
+		assertEquals(0, iouRepository.count());
+	}
+
+	private IOUWriteBehind open() throws IOException {
+		return new IOUWriteBehind(directory, DataSize.ofMegabytes(1), 100, 10, iouRepository, entityManager, transactionTemplate,
+				eventPublisher, new ObjectMapper().findAndRegisterModules());
+	}
+}
@@ -0,0 +1,86 @@
+package com.cbfacademy.restapiexercise.writebehind;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.annotation.Description;
+import org.springframework.util.unit.DataSize;
+
+import com.cbfacademy.restapiexercise.IOUS.IOU;
+import com.cbfacademy.restapiexercise.IOUS.UuidV7Generator;
+import com.cbfacademy.restapiexercise.eventlog.IOUEvent;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IOUWriteQueueTest {
+
+	@TempDir
+	private Path directory;
+
+	private IOUWriteQueue queue;
+
+	@AfterEach
+	void tearDown() throws IOException {
+		queue.close();
+	}
+
+	@Test
+	@Description("IOUs appended but not acknowledged are queued again, in order, when the queue is reopened")
+	void requeuesUnacknowledgedAfterReopen() throws IOException {
+		// Arrange: five IOUs appended, the first two written and acknowledged.
+		queue = open(10);
+		List<UUID> ids = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			ids.add(queue.append(newIOU(i)).id());
+		}
+		List<IOUEvent> written = queue.peek(2);
+		queue.acknowledge(written.get(1).sequence());
+
+		// Act: reopen without acknowledging the rest, as after a crash.
+		queue.close();
+		queue = open(10);
+
+		// Assert: the last three come back with their ids and data; the first two are gone for good.
+		List<IOUEvent> requeued = queue.peek(100);
+		assertEquals(ids.subList(2, 5), requeued.stream().map(IOUEvent::id).toList());
+		assertEquals("Borrower2", requeued.get(0).toIOU().getBorrower());
+		assertTrue(queue.find(ids.get(0)).isEmpty());
+		assertEquals(new IOUWriteQueue.Status(3, 10, 5, 2, requeued.get(0).recordedAt()), queue.status());
+	}
+
+	@Test
+	@Description("A full queue refuses new IOUs until the writer acknowledges some")
+	void refusesWhenFull() throws IOException {
+		// Arrange
+		queue = open(3);
+		for (int i = 0; i < 3; i++) {
+			queue.append(newIOU(i));
+		}
+
+		// Act / Assert
+		assertThrows(WriteQueueFullException.class, () -> queue.append(newIOU(3)));
+		queue.acknowledge(queue.peek(1).get(0).sequence());
+		queue.append(newIOU(3));
+		assertEquals(3, queue.status().queued());
+	}
+
+	private IOUWriteQueue open(int capacity) throws IOException {
+		return new IOUWriteQueue(directory, DataSize.ofKilobytes(4), capacity);
+	}
+
+	private static IOU newIOU(int i) {
+		IOU iou = new IOU("Borrower" + i, "Lender", new BigDecimal("10.00"), Instant.parse("2024-01-01T00:00:00Z"));
+		iou.setId(UuidV7Generator.next());
+		return iou;
+	}
+}